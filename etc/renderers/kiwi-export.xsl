@@ -0,0 +1,14 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<xsl:stylesheet version="1.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+  <xsl:output method="text" omit-xml-declaration="yes" indent="no"/>
+  <xsl:template match="/MERGE">&lt;?xml version="1.0" encoding="utf-8"?&gt;
+&lt;image schemaversion="5.2" name="<xsl:value-of select="@ID"/>"&gt;
+  &lt;!-- Preferences --&gt;
+<xsl:value-of select="FRAGMENT[@REF='system-owner']"/>
+  &lt;!-- Repositories --&gt;
+<xsl:value-of select="FRAGMENT[@REF='system-repositories-list']"/>
+  &lt;!-- Packages --&gt;
+<xsl:value-of select="FRAGMENT[@REF='installed-packages']"/>
+&lt;/image&gt;
+</xsl:template>
+</xsl:stylesheet>
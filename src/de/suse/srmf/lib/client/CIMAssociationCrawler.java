@@ -0,0 +1,360 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client;
+
+import de.suse.srmf.lib.client.export.SRMFUtils;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.cim.CIMObjectPath;
+import javax.cim.CIMProperty;
+import javax.wbem.CloseableIterator;
+import javax.wbem.WBEMException;
+import javax.wbem.client.WBEMClient;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Breadth-first crawler of the instance associations.
+ *
+ * Every level of the graph is expanded at once with the bounded amount of
+ * AssociatorNames requests in flight. Each instance is expanded only once,
+ * no matter how many paths lead to it. Depth, fan-out per instance and
+ * the total amount of instances are limited.
+ *
+ * Configuration in srmf.conf:
+ *
+ *     .srmf.associations.inflight = 4
+ *     .srmf.associations.depth = 3
+ *     .srmf.associations.fanout = 100
+ *     .srmf.associations.limit = 10000
+ *
+ * @author bo
+ */
+public class CIMAssociationCrawler {
+    public static final int DEFAULT_IN_FLIGHT = 4;
+    public static final int DEFAULT_DEPTH = 3;
+    public static final int DEFAULT_FAN_OUT = 100;
+    public static final int DEFAULT_LIMIT = 10000;
+
+    private final WBEMClient client;
+    private final SRMFTransport transport;
+    private final String namespace;
+    private final int inFlight;
+    private final int maxDepth;
+    private final int maxFanOut;
+    private final int maxInstances;
+    private final Set<String> visited;
+    private final Set<String> edgeKeys;
+    private final List<Edge> edges;
+    private int truncated;
+    private int failed;
+
+    /**
+     * Association between two instances.
+     */
+    public static class Edge {
+        private final CIMObjectPath from;
+        private final CIMObjectPath to;
+        private final int depth;
+
+        public Edge(CIMObjectPath from, CIMObjectPath to, int depth) {
+            this.from = from;
+            this.to = to;
+            this.depth = depth;
+        }
+
+        public CIMObjectPath getFrom() {
+            return this.from;
+        }
+
+        public CIMObjectPath getTo() {
+            return this.to;
+        }
+
+        /**
+         * Depth of the source instance from the start.
+         *
+         * @return
+         */
+        public int getDepth() {
+            return this.depth;
+        }
+    }
+
+
+    /**
+     * Associated instances of one expanded instance.
+     */
+    private static class Expansion {
+        private final List<CIMObjectPath> associated;
+        private final boolean truncated;
+
+        public Expansion(List<CIMObjectPath> associated, boolean truncated) {
+            this.associated = associated;
+            this.truncated = truncated;
+        }
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param client
+     * @param transport
+     * @param namespace Namespace of the crawl, for the paths that come without one.
+     * @param config
+     */
+    public CIMAssociationCrawler(WBEMClient client, SRMFTransport transport, String namespace, SRMFConfig config) {
+        this.client = client;
+        this.transport = transport;
+        this.namespace = namespace;
+        this.inFlight = Math.max(1, Integer.parseInt(config.getItem(".srmf.associations.inflight",
+                                                                    String.valueOf(CIMAssociationCrawler.DEFAULT_IN_FLIGHT))));
+        this.maxDepth = Integer.parseInt(config.getItem(".srmf.associations.depth", String.valueOf(CIMAssociationCrawler.DEFAULT_DEPTH)));
+        this.maxFanOut = Integer.parseInt(config.getItem(".srmf.associations.fanout", String.valueOf(CIMAssociationCrawler.DEFAULT_FAN_OUT)));
+        this.maxInstances = Integer.parseInt(config.getItem(".srmf.associations.limit", String.valueOf(CIMAssociationCrawler.DEFAULT_LIMIT)));
+        this.visited = new HashSet<String>();
+        this.edgeKeys = new HashSet<String>();
+        this.edges = new ArrayList<Edge>();
+    }
+
+
+    /**
+     * Crawl the associations from the start instances.
+     *
+     * @param start
+     * @return All found edges.
+     * @throws InterruptedException
+     */
+    public List<Edge> crawl(List<CIMObjectPath> start) throws InterruptedException {
+        List<CIMObjectPath> level = new ArrayList<CIMObjectPath>();
+        for (int i = 0; i < start.size() && this.visited.size() < this.maxInstances; i++) {
+            if (this.visited.add(CIMAssociationCrawler.getPathKey(start.get(i), this.namespace))) {
+                level.add(start.get(i));
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(this.inFlight);
+        try {
+            for (int depth = 0; depth < this.maxDepth && !level.isEmpty(); depth++) {
+                level = this.expandLevel(pool, level, depth);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return Collections.unmodifiableList(this.edges);
+    }
+
+
+    /**
+     * Expand all instances of one level.
+     *
+     * @param pool
+     * @param level
+     * @param depth
+     * @return Instances of the next level, that were not seen yet.
+     * @throws InterruptedException
+     */
+    private List<CIMObjectPath> expandLevel(ExecutorService pool, List<CIMObjectPath> level, int depth)
+            throws InterruptedException {
+        List<Future<Expansion>> results = new ArrayList<Future<Expansion>>();
+        for (int i = 0; i < level.size(); i++) {
+            final CIMObjectPath path = level.get(i);
+            results.add(pool.submit(new Callable<Expansion>() {
+                @Override
+                public Expansion call() throws Exception {
+                    return CIMAssociationCrawler.this.expand(path);
+                }
+            }));
+        }
+
+        // Results are merged in the level order, so the graph is always the same
+        List<CIMObjectPath> next = new ArrayList<CIMObjectPath>();
+        for (int i = 0; i < results.size(); i++) {
+            Expansion expansion;
+            try {
+                expansion = results.get(i).get();
+            } catch (ExecutionException ex) {
+                this.failed++;
+                continue;
+            }
+            if (expansion.truncated) {
+                this.truncated++;
+            }
+
+            String fromKey = CIMAssociationCrawler.getPathKey(level.get(i), this.namespace);
+            for (CIMObjectPath to : expansion.associated) {
+                String toKey = CIMAssociationCrawler.getPathKey(to, this.namespace);
+                if (this.edgeKeys.add(fromKey + " " + toKey) && !this.edgeKeys.contains(toKey + " " + fromKey)) {
+                    this.edges.add(new Edge(level.get(i), to, depth));
+                }
+                if (this.visited.size() < this.maxInstances && this.visited.add(toKey)) {
+                    next.add(to);
+                }
+            }
+        }
+
+        return next;
+    }
+
+
+    /**
+     * Get associated instances of one instance.
+     * The result iterator is always closed, even if the broker fails in the middle.
+     *
+     * @param path
+     * @return
+     * @throws WBEMException
+     */
+    private Expansion expand(CIMObjectPath path) throws WBEMException {
+        List<CIMObjectPath> associated = new ArrayList<CIMObjectPath>();
+        boolean truncated = false;
+        this.transport.countOperation();
+        CloseableIterator<CIMObjectPath> associations = this.client.associatorNames(path, null, null, null, null);
+        try {
+            while (associations.hasNext()) {
+                if (associated.size() >= this.maxFanOut) {
+                    truncated = true;
+                    break;
+                }
+                associated.add(associations.next());
+            }
+        } catch (RuntimeException ex) {
+            if (associations.getWBEMException() != null) {
+                throw associations.getWBEMException();
+            }
+            throw ex;
+        } finally {
+            associations.close();
+        }
+
+        return new Expansion(associated, truncated);
+    }
+
+
+    /**
+     * Get key of the instance path, that does not depend on the host or the order of the keys.
+     * Brokers may leave the namespace out of the associated paths, so the same instance
+     * gets the same key, whether it came with the namespace or not.
+     *
+     * @param path
+     * @param namespace Namespace of the path, if it has none.
+     * @return
+     */
+    public static String getPathKey(CIMObjectPath path, String namespace) {
+        CIMProperty<?>[] keys = path.getKeys();
+        String[] bindings = new String[keys != null ? keys.length : 0];
+        for (int i = 0; i < bindings.length; i++) {
+            bindings[i] = keys[i].getName().toLowerCase() + "=" + CIMInstanceCapture.getValueText(keys[i].getValue());
+        }
+        Arrays.sort(bindings);
+
+        StringBuilder key = new StringBuilder();
+        String pathNamespace = path.getNamespace() != null && !path.getNamespace().isEmpty() ? path.getNamespace() : namespace;
+        key.append(pathNamespace != null ? pathNamespace : "").append(':')
+           .append(path.getObjectName() != null ? path.getObjectName().toLowerCase() : "");
+        for (int i = 0; i < bindings.length; i++) {
+            key.append(i == 0 ? '.' : ',').append(bindings[i]);
+        }
+
+        return key.toString();
+    }
+
+
+    /**
+     * Get the found edges as the document for the storage:
+     *
+     *     <ASSOCIATIONS HOST="...">
+     *       <EDGE DEPTH="0" FROM="..." TO="..."/>
+     *     </ASSOCIATIONS>
+     *
+     * @param hostname
+     * @return
+     * @throws ParserConfigurationException
+     */
+    public Document getDocument(String hostname) throws ParserConfigurationException {
+        Document document = SRMFUtils.getDocumentBuilder().newDocument();
+        Element associations = document.createElement("ASSOCIATIONS");
+        associations.setAttribute("HOST", hostname);
+        document.appendChild(associations);
+        for (Edge edge : this.edges) {
+            Element element = document.createElement("EDGE");
+            element.setAttribute("DEPTH", String.valueOf(edge.getDepth()));
+            element.setAttribute("FROM", CIMAssociationCrawler.getPathKey(edge.getFrom(), this.namespace));
+            element.setAttribute("TO", CIMAssociationCrawler.getPathKey(edge.getTo(), this.namespace));
+            associations.appendChild(element);
+        }
+
+        return document;
+    }
+
+
+    /**
+     * Amount of the instances that were seen.
+     *
+     * @return
+     */
+    public int getInstanceCount() {
+        return this.visited.size();
+    }
+
+
+    /**
+     * Amount of the instances with more associations than the fan-out limit.
+     *
+     * @return
+     */
+    public int getTruncatedCount() {
+        return this.truncated;
+    }
+
+
+    /**
+     * Amount of the instances that failed to expand.
+     *
+     * @return
+     */
+    public int getFailedCount() {
+        return this.failed;
+    }
+}
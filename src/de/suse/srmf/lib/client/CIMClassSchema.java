@@ -0,0 +1,411 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client;
+
+import de.suse.srmf.lib.client.export.SRMFUtils;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.cim.CIMClass;
+import javax.cim.CIMClassProperty;
+import javax.cim.CIMQualifier;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Definition of the CIM class as much as needed to describe and decode its instances:
+ * properties, their types, key flags, default values and ValueMap/Values qualifiers.
+ *
+ * The definition is stored as a small XML document:
+ *
+ *     <class name="CIM_Process" superclass="CIM_EnabledLogicalElement" version="2.28.0" created="...">
+ *       <property name="ExecutionState" type="uint16" array="false" key="false">
+ *         <value key="0">Unknown</value>
+ *         ...
+ *       </property>
+ *     </class>
+ *
+ * @author bo
+ */
+public class CIMClassSchema {
+    private final String name;
+    private final String superClassName;
+    private final String version;
+    private final long created;
+    private final List<SchemaProperty> properties;
+    private final Map<String, SchemaProperty> propertyNames;
+
+    /**
+     * Property of the class.
+     */
+    public static class SchemaProperty {
+        private final String name;
+        private final String type;
+        private final boolean array;
+        private final boolean key;
+        private final String defaultValue;
+        private final String[] valueMap;
+        private final String[] values;
+        private final CIMValueMap valueMapTable;
+
+        public SchemaProperty(String name, String type, boolean array, boolean key,
+                              String defaultValue, String[] valueMap, String[] values) {
+            this.name = name;
+            this.type = type;
+            this.array = array;
+            this.key = key;
+            this.defaultValue = defaultValue;
+            this.valueMap = valueMap;
+            this.values = values;
+            this.valueMapTable = valueMap != null && values != null ? new CIMValueMap(valueMap, values) : null;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public String getType() {
+            return this.type;
+        }
+
+        public boolean isArray() {
+            return this.array;
+        }
+
+        public boolean isKey() {
+            return this.key;
+        }
+
+        /**
+         * Get default value of the property in the class.
+         *
+         * @return Value text or null, if there is none.
+         */
+        public String getDefaultValue() {
+            return this.defaultValue;
+        }
+
+        /**
+         * Get ValueMap qualifier.
+         *
+         * @return Keys or null, if the property is not enumerated.
+         */
+        public String[] getValueMap() {
+            return this.valueMap != null ? this.valueMap.clone() : null;
+        }
+
+        /**
+         * Get Values qualifier.
+         *
+         * @return Meanings or null, if the property is not enumerated.
+         */
+        public String[] getValues() {
+            return this.values != null ? this.values.clone() : null;
+        }
+
+        /**
+         * Get ValueMap/Values, compiled into the lookup table.
+         *
+         * @return Table or null, if the property is not enumerated.
+         */
+        public CIMValueMap getValueMapTable() {
+            return this.valueMapTable;
+        }
+    }
+
+
+    /**
+     * Constructor from the class, taken from the broker with its qualifiers.
+     *
+     * @param cls
+     */
+    public CIMClassSchema(CIMClass cls) {
+        this.name = cls.getName();
+        this.superClassName = cls.getSuperClassName();
+        this.version = CIMClassSchema.getStringQualifier(cls.getQualifiers(), "Version");
+        this.created = System.currentTimeMillis();
+        this.properties = new ArrayList<SchemaProperty>();
+        this.propertyNames = new TreeMap<String, SchemaProperty>(String.CASE_INSENSITIVE_ORDER);
+
+        CIMClassProperty<?>[] classProperties = cls.getProperties();
+        for (int i = 0; i < classProperties.length; i++) {
+            CIMClassProperty<?> property = classProperties[i];
+            CIMQualifier<?>[] qualifiers = property.getQualifiers();
+            String[] valueMap = CIMClassSchema.getArrayQualifier(qualifiers, "ValueMap");
+            String[] values = CIMClassSchema.getArrayQualifier(qualifiers, "Values");
+            if (valueMap == null && values != null) {
+                // Without the ValueMap, values are mapped to their indices
+                valueMap = new String[values.length];
+                for (int j = 0; j < values.length; j++) {
+                    valueMap[j] = String.valueOf(j);
+                }
+            }
+
+            boolean array = property.getDataType() != null && property.getDataType().isArray();
+            this.addProperty(new SchemaProperty(property.getName(),
+                                                CIMInstanceCapture.getTypeName(property.getDataType()),
+                                                array, property.isKey(),
+                                                property.getValue() != null && !array
+                                                        ? CIMInstanceCapture.getValueText(property.getValue()) : null,
+                                                valueMap, values));
+        }
+    }
+
+
+    /**
+     * Constructor from the stored definition.
+     *
+     * @param element
+     */
+    private CIMClassSchema(Element element) {
+        this.name = element.getAttribute("name");
+        this.superClassName = element.hasAttribute("superclass") ? element.getAttribute("superclass") : null;
+        this.version = element.hasAttribute("version") ? element.getAttribute("version") : null;
+        this.created = Long.parseLong(element.getAttribute("created"));
+        this.properties = new ArrayList<SchemaProperty>();
+        this.propertyNames = new TreeMap<String, SchemaProperty>(String.CASE_INSENSITIVE_ORDER);
+
+        NodeList propertyNodeList = element.getElementsByTagName("property");
+        for (int i = 0; i < propertyNodeList.getLength(); i++) {
+            Element propertyElement = (Element) propertyNodeList.item(i);
+            NodeList valueNodeList = propertyElement.getElementsByTagName("value");
+            String[] valueMap = null;
+            String[] values = null;
+            if (valueNodeList.getLength() > 0) {
+                valueMap = new String[valueNodeList.getLength()];
+                values = new String[valueNodeList.getLength()];
+                for (int j = 0; j < valueNodeList.getLength(); j++) {
+                    Element valueElement = (Element) valueNodeList.item(j);
+                    valueMap[j] = valueElement.getAttribute("key");
+                    values[j] = valueElement.getTextContent();
+                }
+            }
+
+            this.addProperty(new SchemaProperty(propertyElement.getAttribute("name"),
+                                                propertyElement.getAttribute("type"),
+                                                Boolean.parseBoolean(propertyElement.getAttribute("array")),
+                                                Boolean.parseBoolean(propertyElement.getAttribute("key")),
+                                                propertyElement.hasAttribute("default") ? propertyElement.getAttribute("default") : null,
+                                                valueMap, values));
+        }
+    }
+
+
+    /**
+     * Load the stored definition.
+     *
+     * @param file
+     * @return
+     * @throws Exception
+     */
+    public static CIMClassSchema load(File file) throws Exception {
+        return new CIMClassSchema(SRMFUtils.getXMLDocumentFromFile(file).getDocumentElement());
+    }
+
+
+    /**
+     * Store the definition. It is written to the temporary file first,
+     * so the definition that is loaded at the same time is never half-written.
+     *
+     * @param file
+     * @throws Exception
+     */
+    public void save(File file) throws Exception {
+        Document document = SRMFUtils.getDocumentBuilder().newDocument();
+        Element cls = document.createElement("class");
+        cls.setAttribute("name", this.name);
+        if (this.superClassName != null) {
+            cls.setAttribute("superclass", this.superClassName);
+        }
+        if (this.version != null) {
+            cls.setAttribute("version", this.version);
+        }
+        cls.setAttribute("created", String.valueOf(this.created));
+        document.appendChild(cls);
+
+        for (SchemaProperty property : this.properties) {
+            Element propertyElement = document.createElement("property");
+            propertyElement.setAttribute("name", property.getName());
+            propertyElement.setAttribute("type", property.getType());
+            propertyElement.setAttribute("array", String.valueOf(property.isArray()));
+            propertyElement.setAttribute("key", String.valueOf(property.isKey()));
+            if (property.getDefaultValue() != null) {
+                propertyElement.setAttribute("default", property.getDefaultValue());
+            }
+            if (property.valueMap != null && property.values != null) {
+                for (int i = 0; i < Math.min(property.valueMap.length, property.values.length); i++) {
+                    Element valueElement = document.createElement("value");
+                    valueElement.setAttribute("key", property.valueMap[i]);
+                    valueElement.setTextContent(property.values[i]);
+                    propertyElement.appendChild(valueElement);
+                }
+            }
+            cls.appendChild(propertyElement);
+        }
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException(String.format("Unable to initialize schema cache at %s", parent.getAbsolutePath()));
+        }
+
+        File temporary = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(temporary));
+            try {
+                SRMFUtils.xproc(document, null, out);
+            } finally {
+                out.close();
+            }
+            if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+                throw new IOException(String.format("Unable to write %s", file.getAbsolutePath()));
+            }
+        } finally {
+            temporary.delete();
+        }
+    }
+
+
+    /**
+     * Add the property.
+     *
+     * @param property
+     */
+    private void addProperty(SchemaProperty property) {
+        this.properties.add(property);
+        this.propertyNames.put(property.getName(), property);
+    }
+
+
+    /**
+     * Get string value of the qualifier.
+     *
+     * @param qualifiers
+     * @param name
+     * @return
+     */
+    private static String getStringQualifier(CIMQualifier<?>[] qualifiers, String name) {
+        Object value = CIMClassSchema.getQualifierValue(qualifiers, name);
+        return value != null ? value.toString() : null;
+    }
+
+
+    /**
+     * Get string array value of the qualifier.
+     *
+     * @param qualifiers
+     * @param name
+     * @return
+     */
+    private static String[] getArrayQualifier(CIMQualifier<?>[] qualifiers, String name) {
+        Object value = CIMClassSchema.getQualifierValue(qualifiers, name);
+        return value instanceof String[] ? (String[]) value : null;
+    }
+
+
+    /**
+     * Get value of the qualifier. Qualifier names are case-insensitive.
+     *
+     * @param qualifiers
+     * @param name
+     * @return
+     */
+    private static Object getQualifierValue(CIMQualifier<?>[] qualifiers, String name) {
+        if (qualifiers != null) {
+            for (int i = 0; i < qualifiers.length; i++) {
+                if (qualifiers[i].getName().equalsIgnoreCase(name)) {
+                    return qualifiers[i].getValue();
+                }
+            }
+        }
+
+        return null;
+    }
+
+
+    public String getName() {
+        return this.name;
+    }
+
+
+    public String getSuperClassName() {
+        return this.superClassName;
+    }
+
+
+    /**
+     * Get Version qualifier of the class.
+     *
+     * @return
+     */
+    public String getVersion() {
+        return this.version;
+    }
+
+
+    /**
+     * Get time when the definition was taken from the broker.
+     *
+     * @return
+     */
+    public long getCreated() {
+        return this.created;
+    }
+
+
+    /**
+     * Get all properties of the class.
+     *
+     * @return
+     */
+    public List<SchemaProperty> getProperties() {
+        return Collections.unmodifiableList(this.properties);
+    }
+
+
+    /**
+     * Get property by the name. Property names are case-insensitive.
+     *
+     * @param name
+     * @return Property or null, if the class has no such.
+     */
+    public SchemaProperty getProperty(String name) {
+        return this.propertyNames.get(name);
+    }
+}
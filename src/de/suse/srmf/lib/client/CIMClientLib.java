@@ -34,37 +34,56 @@ package de.suse.srmf.lib.client;
 
 import de.suse.srmf.lib.client.cmdb.CMDBOperations;
 import de.suse.srmf.lib.client.export.ExportDispatcher;
-import de.suse.srmf.lib.client.export.RichArrayList;
 import de.suse.srmf.lib.client.export.storage.SRMFLocalStorage;
+import de.suse.srmf.lib.client.export.SRMFExportPlan;
+import de.suse.srmf.lib.client.export.SRMFMerge;
 import de.suse.srmf.lib.client.export.SRMFMessage;
+import de.suse.srmf.lib.client.export.SRMFMessageDiff;
 import de.suse.srmf.lib.client.export.SRMFRenderMap;
 import de.suse.srmf.lib.client.export.SRMFRenderMapResolver;
-import de.suse.srmf.lib.client.export.storage.SRMFStorage;
+import de.suse.srmf.lib.client.export.SRMFRenderer;
 import de.suse.srmf.lib.client.export.SRMFUtils;
 import de.suse.srmf.lib.client.export.storage.SRMFOrientDBStorage;
+import de.suse.srmf.lib.client.export.storage.SRMFStorage;
 import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.cim.CIMInstance;
 import javax.cim.CIMObjectPath;
-import javax.security.auth.Subject;
+import javax.cim.CIMProperty;
+import javax.cim.UnsignedInteger32;
 import javax.wbem.CloseableIterator;
 import javax.wbem.WBEMException;
-import javax.wbem.client.PasswordCredential;
-import javax.wbem.client.UserPrincipal;
+import javax.wbem.client.EnumerateResponse;
 import javax.wbem.client.WBEMClient;
-import javax.wbem.client.WBEMClientConstants;
-import javax.wbem.client.WBEMClientFactory;
-import org.sblim.cimclient.CIMXMLTraceListener;
+import javax.xml.parsers.ParserConfigurationException;
 import org.sblim.cimclient.internal.cimxml.CIMClientXML_HelperImpl;
 import org.sblim.cimclient.internal.cimxml.CimXmlSerializer;
-import org.sblim.cimclient.internal.logging.LogAndTraceBroker;
+import org.w3c.dom.Document;
 
 
 
@@ -76,6 +95,7 @@ import org.sblim.cimclient.internal.logging.LogAndTraceBroker;
 class SRMFMessageMeta {
     public static final int FILE_STORE = 1;
     public static final int DB_STORE = 2;
+    public static final int DIFF_STORE = 4; // Only changes since the previous snapshot
 
     private String providerBaseClass;
     private String providerClass;
@@ -134,19 +154,60 @@ public class CIMClientLib {
     public static final String SRMF_MAP_FILE = "srmf-map.xml";
     public static final String SRMF_OBJ_FILE = "srmf-index.xml";
     public static final String SRMF_UNIX_DEFAULT_CONF_PATH = "/etc/srmf/";
+    public static final String CAPTURE_MODE_STREAM = "stream"; // Instances are taken directly from the result.
+    public static final String CAPTURE_MODE_TRACE = "trace"; // Instances are sniffed from the traced CIM-XML response.
+    public static final int DEFAULT_PROVIDER_PARALLELISM = 4;
+    public static final int DEFAULT_PAGE_SIZE = 500;
+    public static final int DEFAULT_HOST_TIMEOUT = 0;
+    public static final String SNAPSHOT_SOURCE_FILES = "files"; // Stored .lmx messages of the local storage.
+    public static final String SNAPSHOT_SOURCE_GRAPH = "graph"; // Instances stored in the OrientDB.
+
+    // Cancels the hosts at their deadlines
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "srmf-deadline");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // Renders the documents of all the providers and hosts, sized once by the processors
+    private static final ExecutorService RENDERERS = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                                                                                  new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "srmf-render-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     private WBEMClient client;
+    private SRMFTransport transport;
+    private String hostId;
     private String targetSystemHostname;
     private SRMFConfig setup;
     private String namespace;
-    private boolean traceMode;
-    private SRMFStorage localStorage;
+    private SRMFLocalStorage localStorage;
     private SRMFRenderMap exportSRMFRenderMap;
-    private List<SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender> currentSRMFMapRefID;
-    private SRMFMessageMeta currentSRMFMessageMeta;
     
+    private CIMSchemaCache schemaCache;
     private CIMObjectMapper objectMapper;
     private boolean debugMode;
+    private boolean traceCapture;
+    private boolean decodeValues;
+    private boolean incremental;
+    private int pageSize;
+    private volatile boolean pullQuerySupported; // OpenQueryInstances
+    private volatile boolean pullEnumerateSupported; // OpenEnumerateInstances
+    private volatile long deadline;
+    private volatile boolean expired;
+    private ScheduledFuture<?> watchdog;
+    private CIMIndicationSubscriber subscriber;
+    private SRMFStorage snapshotSource;
 
 
     /**
@@ -158,98 +219,451 @@ public class CIMClientLib {
      * @throws Exception 
      */
     public CIMClientLib(String hostname, SRMFConfig config, URL optionalIndex) throws Exception {
+        this(hostname, config, CIMClientLib.loadRenderMap(config, optionalIndex));
+    }
+
+
+    /**
+     * Constructor with already loaded render map.
+     * The render map is only read, so it can be shared between the clients.
+     * 
+     * @param hostname
+     * @param config
+     * @param renderMap
+     * @throws Exception 
+     */
+    public CIMClientLib(String hostname, SRMFConfig config, SRMFRenderMap renderMap) throws Exception {
+        this(hostname, config, renderMap, null);
+    }
+
+
+    /**
+     * Constructor with the snapshot source.
+     * Exports are then rendered from the stored snapshots
+     * and no connection to the CIM broker is made at all.
+     * 
+     * @param hostname
+     * @param config
+     * @param renderMap
+     * @param source "files", "graph" or null for the live broker.
+     * @throws Exception 
+     */
+    public CIMClientLib(String hostname, SRMFConfig config, SRMFRenderMap renderMap, String source) throws Exception {
         this.setup = config;
+        this.hostId = hostname;
         this.debugMode = false;
+        this.exportSRMFRenderMap = renderMap;
+        this.traceCapture = this.setup.getItem(".srmf.capture.mode", CAPTURE_MODE_STREAM).toLowerCase().equals(CAPTURE_MODE_TRACE);
+        this.decodeValues = this.setup.getItem(".srmf.capture.decode", "disabled").toLowerCase().equals("enabled");
+        this.incremental = this.setup.getItem(".srmf.snapshot.incremental", "disabled").toLowerCase().equals("enabled");
+        this.pageSize = Integer.parseInt(this.setup.getItem(".srmf.enumeration.page.size", String.valueOf(DEFAULT_PAGE_SIZE)));
+        this.pullQuerySupported = true;
+        this.pullEnumerateSupported = true;
+
+        // Local storage
+        this.localStorage = new SRMFLocalStorage(new File(this.setup.getItem(".srmf.manifest.path", SRMFLocalStorage.DEFAULT_STORAGE_PATH)),
+                                                 this.setup.getItem(".srmf.manifest.compression", "enabled").toLowerCase().equals("enabled"));
+
+        // CIM Client
+        this.targetSystemHostname = this.setup.getHostname(hostname);
+        this.transport = SRMFTransport.getInstance();
+        if (source != null) {
+            this.snapshotSource = this.getSnapshotStorage(source);
+            return;
+        }
+        this.client = this.transport.acquire(hostname);
+
+        // Mixins
+        this.schemaCache = new CIMSchemaCache(this.client, hostname, this.setup);
+        this.objectMapper = new CIMObjectMapper(this.client, this.namespace, this.schemaCache);
+    }
+
+
+    /**
+     * Get storage of the snapshots by its name.
+     * 
+     * @param source
+     * @return
+     * @throws Exception 
+     */
+    private SRMFStorage getSnapshotStorage(String source) throws Exception {
+        if (source.equals(CIMClientLib.SNAPSHOT_SOURCE_FILES)) {
+            return this.localStorage;
+        } else if (source.equals(CIMClientLib.SNAPSHOT_SOURCE_GRAPH)) {
+            return SRMFOrientDBStorage.getInstance();
+        }
+
+        throw new Exception(String.format("Snapshot source \"%s\" not recognized.", source));
+    }
+
+
+    /**
+     * Load the render map with all the providers.
+     * 
+     * @param config
+     * @param optionalIndex
+     * @return
+     * @throws Exception 
+     */
+    public static SRMFRenderMap loadRenderMap(SRMFConfig config, URL optionalIndex) throws Exception {
+        SRMFRenderMap renderMap = new SRMFRenderMap(new File(config.getItem(".srmf.manifest.renderers",
+                                                                            SRMFRenderMap.DEFAUILT_SRMF_RENDER_PATH)));
+        renderMap.setNativeRenderers(config.getItem(".srmf.manifest.renderers.native", "disabled").toLowerCase().equals("enabled"));
+        File srmfMap = new File(String.format("%s/%s", SRMFRenderMapResolver.SRMF_MANIFEST_PATH, CIMClientLib.SRMF_MAP_FILE));
+        renderMap.loadFromFile(srmfMap.exists() ? srmfMap : new File(CIMClientLib.SRMF_MAP_FILE), optionalIndex);
 
-        // Install XML sniffer
-        CIMXMLTraceListener xmlListener = new CIMXMLTraceListener() {
+        return renderMap;
+    }
+
+
+    /**
+     * Get hostname of the target system.
+     * 
+     * @return 
+     */
+    public String getTargetSystemHostname() {
+        return this.targetSystemHostname;
+    }
+
+
+    /**
+     * Get class definitions of the target system.
+     * 
+     * @return 
+     */
+    public CIMSchemaCache getSchemaCache() {
+        return this.schemaCache;
+    }
+
+
+    /**
+     * Release the connection to the CIM broker.
+     */
+    public void close() {
+        if (this.client == null) {
+            return;
+        } else if (this.expired) {
+            this.transport.discard(this.client);
+        } else {
+            this.transport.release(this.hostId, this.client);
+        }
+    }
+
+
+    /**
+     * Get timeout of the whole run on the host in milliseconds.
+     * 
+     * @return 
+     */
+    private long getHostTimeout() {
+        return Long.parseLong(this.setup.getItem(".srmf.timeout.host." + this.hostId,
+                                                 this.setup.getItem(".srmf.timeout.host",
+                                                                    String.valueOf(CIMClientLib.DEFAULT_HOST_TIMEOUT)))) * 1000;
+    }
+
+
+    /**
+     * Start the deadline of the run on the host, if configured.
+     */
+    private synchronized void startDeadline() {
+        long timeout = this.getHostTimeout();
+        if (timeout <= 0 || this.watchdog != null) {
+            return;
+        }
+
+        this.deadline = System.currentTimeMillis() + timeout;
+        this.watchdog = CIMClientLib.WATCHDOG.schedule(new Runnable() {
             @Override
-            public void traceCIMXML(Level level, String message, boolean isRequest) {
-                if (!isRequest && CIMClientLib.this.traceMode) {
-                    message = "<?xml" + message.split("\\<\\?xml", 2)[1].split("</CIM>")[0] + "</CIM>";
-                    
-                    // Render
-                    if (CIMClientLib.this.currentSRMFMapRefID != null) {
-                        try {
-                            for (int i = 0; i < CIMClientLib.this.currentSRMFMapRefID.size(); i++) {
-                                SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender sRMFRender = CIMClientLib.this.currentSRMFMapRefID.get(i);
-                                new ExportDispatcher(new File((String) ((RichArrayList) CIMClientLib.this.currentSRMFMapRefID).getAttribute("outputPath")))
-                                        .dispatch(SRMFUtils.xproc(SRMFUtils.getXMLDocumentFromString(message),
-                                                                  CIMClientLib.this.exportSRMFRenderMap.getRenderingStyle(sRMFRender.getRender())),
-                                        (String) ((RichArrayList) CIMClientLib.this.currentSRMFMapRefID).getAttribute("targetSystemHostname"),
-                                        sRMFRender.getDestinationDescriptor());
-                                System.err.println("Writing " + sRMFRender.getDestinationDescriptor());
-                            }
-                            CIMClientLib.this.currentSRMFMapRefID = null;
-                        } catch (Exception ex) {
-                            Logger.getLogger(CIMClientLib.class.getName()).log(Level.SEVERE, null, ex);
-                        }
-                    }
-                    
-                    // Export
-                    else if (CIMClientLib.this.currentSRMFMessageMeta != null) {
-                        try {
-                            SRMFMessage msg = new SRMFMessage(
-                                    CIMClientLib.this.targetSystemHostname,
-                                    CIMClientLib.this.currentSRMFMessageMeta.getObjectId(),
-                                    CIMClientLib.this.currentSRMFMessageMeta.getProviderBaseClass(),
-                                    CIMClientLib.this.currentSRMFMessageMeta.getProviderBaseClass(),
-                                    message
-                            );
-
-                            // Store to the filesystem
-                            if (CIMClientLib.this.currentSRMFMessageMeta.hasFlag(SRMFMessageMeta.FILE_STORE)) {
-                                try {
-                                    CIMClientLib.this.localStorage.storeMessage(msg);
-                                } catch (Exception ex) {
-                                    ex.printStackTrace();
-                                    System.err.println("Error writing provider data: " + ex.getLocalizedMessage());
-                                }
-                            }
-                            
-                            // Store to the orientdb
-                            if (CIMClientLib.this.currentSRMFMessageMeta.hasFlag(SRMFMessageMeta.DB_STORE)) {
-                                SRMFOrientDBStorage.getInstance().storeMessage(msg);
-                            }
-                        } catch (Exception ex) {
-                            Logger.getLogger(CIMClientLib.class.getName()).log(Level.SEVERE, null, ex);
-                        }
+            public void run() {
+                CIMClientLib.this.expire();
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Stop the deadline of the run on the host.
+     * 
+     * @throws Exception if the deadline was exceeded.
+     */
+    private synchronized void stopDeadline() throws Exception {
+        if (this.watchdog != null) {
+            this.watchdog.cancel(false);
+            this.watchdog = null;
+        }
+        this.deadline = 0;
+
+        if (this.expired) {
+            throw new Exception(String.format("Deadline of %d seconds exceeded, results are partial.",
+                                              this.getHostTimeout() / 1000));
+        }
+    }
 
-                        CIMClientLib.this.currentSRMFMessageMeta = null;
+
+    /**
+     * Cancel the run on the host: no further requests are made
+     * and the client is closed with its requests in flight.
+     */
+    private synchronized void expire() {
+        if (!this.expired) {
+            this.expired = true;
+            System.err.println(String.format("%s: deadline exceeded, cancelling.", this.targetSystemHostname));
+            if (this.client != null) {
+                this.client.close();
+            }
+        }
+    }
+
+
+    /**
+     * The deadline of the run has passed.
+     * 
+     * @return 
+     */
+    private boolean isPastDeadline() {
+        return this.expired || (this.deadline > 0 && System.currentTimeMillis() > this.deadline);
+    }
+
+
+    /**
+     * Request failed because of the operation timeout.
+     * 
+     * @param ex
+     * @return 
+     */
+    private static boolean isTimeout(Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Response handler that prints the message on STDOUT.
+     */
+    private static class ConsoleResponseHandler implements CIMTraceDispatcher.CIMResponseHandler {
+        @Override
+        public void onResponse(String message) {
+            System.out.println(message);
+        }
+    }
+
+
+    /**
+     * Response handler of the provider. Gets either traced CIM-XML response
+     * or the document, captured directly from the instances.
+     */
+    private abstract static class ProviderResponseHandler implements CIMTraceDispatcher.CIMResponseHandler {
+        @Override
+        public void onResponse(String message) {
+            try {
+                this.onDocument(SRMFUtils.getXMLDocumentFromString(message));
+            } catch (Exception ex) {
+                Logger.getLogger(CIMClientLib.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        public abstract void onDocument(Document document);
+    }
+
+
+    /**
+     * Response handler that stores the message of the provider.
+     */
+    private class SnapshotResponseHandler extends ProviderResponseHandler {
+        private final SRMFMessageMeta meta;
+
+        public SnapshotResponseHandler(SRMFMessageMeta meta) {
+            this.meta = meta;
+        }
+
+        private SRMFMessage createMessage(Document document) {
+            return new SRMFMessage(CIMClientLib.this.targetSystemHostname,
+                                   this.meta.getObjectId(),
+                                   this.meta.getProviderBaseClass(),
+                                   this.meta.getProviderBaseClass(),
+                                   document);
+        }
+
+        @Override
+        public void onDocument(Document document) {
+            SRMFMessage msg = this.createMessage(document);
+
+            // Diff to the previous snapshot of the host
+            SRMFMessageDiff diff = null;
+            if (this.meta.hasFlag(SRMFMessageMeta.DIFF_STORE)) {
+                diff = CIMClientLib.this.localStorage.diffMessage(msg);
+                if (diff.isEmpty()) {
+                    System.err.println(String.format("> Unchanged %s/%s", msg.getHostname(), msg.getObjectId()));
+                    CIMClientLib.this.localStorage.commitDiff(diff);
+                    return;
+                }
+                System.err.println(String.format("> Changed %s/%s: %d added, %d modified, %d deleted",
+                                                 msg.getHostname(), msg.getObjectId(), diff.getAdded().size(),
+                                                 diff.getModified().size(), diff.getDeleted().size()));
+            }
+            this.store(msg, diff);
+        }
+
+        /**
+         * Store only the changed instances of the document.
+         * 
+         * @param document
+         * @param deleted 
+         */
+        public void onChange(Document document, boolean deleted) {
+            SRMFMessage msg = this.createMessage(document);
+            SRMFMessageDiff diff = CIMClientLib.this.localStorage.diffChanges(msg, deleted);
+            if (!diff.isEmpty()) {
+                System.err.println(String.format("> Changed %s/%s: %d added, %d modified, %d deleted",
+                                                 msg.getHostname(), msg.getObjectId(), diff.getAdded().size(),
+                                                 diff.getModified().size(), diff.getDeleted().size()));
+                this.store(msg, diff);
+            }
+        }
+
+        /**
+         * Store the message or its diff to all the storages. The diff is committed
+         * only once every storage has it, otherwise it is stored again by the next snapshot.
+         *
+         * @param msg
+         * @param diff
+         */
+        private void store(SRMFMessage msg, SRMFMessageDiff diff) {
+            try {
+                // Store to the filesystem
+                if (this.meta.hasFlag(SRMFMessageMeta.FILE_STORE)) {
+                    if (diff != null) {
+                        CIMClientLib.this.localStorage.storeDiff(diff);
+                    } else {
+                        CIMClientLib.this.localStorage.storeMessage(msg);
                     }
+                }
 
-                    // STDOUT
-                    else {
-                        System.out.println(message);
+                // Store to the orientdb
+                if (this.meta.hasFlag(SRMFMessageMeta.DB_STORE)) {
+                    if (diff != null) {
+                        SRMFOrientDBStorage.getInstance().storeDiff(diff);
+                    } else {
+                        SRMFOrientDBStorage.getInstance().storeMessage(msg);
                     }
                 }
+
+                if (diff != null) {
+                    CIMClientLib.this.localStorage.commitDiff(diff);
+                }
+            } catch (Exception ex) {
+                if (CIMClientLib.this.debugMode) {
+                    ex.printStackTrace();
+                }
+                System.err.println(String.format("Error storing %s/%s: %s", msg.getHostname(), msg.getObjectId(),
+                                                 ex.getLocalizedMessage()));
             }
-        };
-        LogAndTraceBroker.getBroker().addCIMXMLTraceListener(xmlListener);
+        }
+    }
 
-        // Local storage
-        this.localStorage = new SRMFLocalStorage(new File(this.setup.getItem(".srmf.manifest.path", SRMFLocalStorage.DEFAULT_STORAGE_PATH)),
-                                                 this.setup.getItem(".srmf.manifest.compression", "enabled").toLowerCase().equals("enabled"));
- 
-        // Render map
-        this.exportSRMFRenderMap = new SRMFRenderMap(new File(this.setup.getItem(".srmf.manifest.renderers",
-                                                                            SRMFRenderMap.DEFAUILT_SRMF_RENDER_PATH)));
-        File srmfMap = new File(String.format("%s/%s", SRMFRenderMapResolver.SRMF_MANIFEST_PATH, CIMClientLib.SRMF_MAP_FILE));
-        this.exportSRMFRenderMap.loadFromFile(srmfMap.exists() ? srmfMap : new File(CIMClientLib.SRMF_MAP_FILE), optionalIndex);
 
-        // CIM Client
-        URL location = this.setup.getConnectionUrl(hostname);
-        this.targetSystemHostname = location.getHost();
-        this.client = WBEMClientFactory.getClient(WBEMClientConstants.PROTOCOL_CIMXML);
-        CIMObjectPath path = new CIMObjectPath(location.getProtocol(),
-                location.getHost(), String.valueOf(location.getPort()), null, null, null);
-        Subject subj = new Subject();
-        subj.getPrincipals().add(new UserPrincipal(this.setup.getUsername(hostname)));
-        subj.getPrivateCredentials().add(new PasswordCredential(this.setup.getPassword(hostname)));
-        this.client.initialize(path, subj, new Locale[]{Locale.US});
+    /**
+     * Response handler that renders the message with the reference renderers.
+     */
+    private class RenderResponseHandler extends ProviderResponseHandler {
+        private final List<SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender> renderers;
+        private final Map<SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender, SRMFMerge.Fragment> fragments;
+        private final ExportDispatcher dispatcher;
+
+        public RenderResponseHandler(List<SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender> renderers,
+                                     Map<SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender, SRMFMerge.Fragment> fragments,
+                                     ExportDispatcher dispatcher) {
+            this.renderers = renderers;
+            this.fragments = fragments;
+            this.dispatcher = dispatcher;
+        }
 
-        // Mixins
-        this.objectMapper = new CIMObjectMapper(this.client, this.namespace);
+        /**
+         * Render the document with all the renderers at once. The document is shared
+         * read-only and rendered by the executor shared by all the providers and hosts.
+         * Renders to the console, or to a destination that is written already,
+         * are done in order by the calling thread. Renders of the merge sets are written
+         * to their fragments instead. Results are reported in the order of the renderers.
+         *
+         * @param document
+         */
+        @Override
+        public void onDocument(final Document document) {
+            final ExportDispatcher dispatcher = this.dispatcher;
+            SRMFUtils.expandDocument(document); // Reading nodes should not change them anymore
+
+            ExecutorService pool = this.renderers.size() > 1 ? CIMClientLib.RENDERERS : null;
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            List<Future<Object>> results = new ArrayList<Future<Object>>();
+            Set<String> descriptors = new HashSet<String>();
+            for (int i = 0; i < this.renderers.size(); i++) {
+                final String descriptor = this.renderers.get(i).getDestinationDescriptor();
+                final String render = this.renderers.get(i).getRender();
+                final String lifecycle = this.renderers.get(i).getLifecycle();
+                final SRMFMerge.Fragment fragment = this.fragments.get(this.renderers.get(i));
+                Callable<Object> task = new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        ExportDispatcher.ExportSink sink = fragment != null
+                                                           ? fragment
+                                                           : dispatcher.getSink(CIMClientLib.this.targetSystemHostname, descriptor, lifecycle);
+                        SRMFRenderer renderer = CIMClientLib.this.exportSRMFRenderMap.getRenderer(render);
+                        if (renderer != null) {
+                            ExportDispatcher.dispatch(document, renderer, render, sink);
+                        } else {
+                            ExportDispatcher.dispatch(document, CIMClientLib.this.exportSRMFRenderMap.getRenderingStyle(render), sink);
+                        }
+                        return null;
+                    }
+                };
+                boolean inline = pool == null
+                                 || (fragment == null && (!descriptors.add(descriptor)
+                                                          || descriptor.startsWith(ExportDispatcher.TYPE_CONSOLE + ":")));
+                tasks.add(task);
+                results.add(inline ? null : pool.submit(task));
+            }
+
+            for (int i = 0; i < tasks.size(); i++) {
+                boolean fragment = this.fragments.containsKey(this.renderers.get(i));
+                String descriptor = fragment ? this.renderers.get(i).getRender() : this.renderers.get(i).getDestinationDescriptor();
+                try {
+                    if (results.get(i) == null) {
+                        tasks.get(i).call();
+                    } else {
+                        results.get(i).get();
+                    }
+                    String render = this.renderers.get(i).getRender();
+                    System.err.println(String.format("%s%s (%s)", fragment ? "Rendering " : "Writing ", descriptor,
+                                                     CIMClientLib.this.exportSRMFRenderMap.getRenderer(render) != null
+                                                     ? "native " + render : render + ".xsl"));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    for (int j = i; j < results.size(); j++) {
+                        if (results.get(j) != null) {
+                            results.get(j).cancel(true); // The pool is shared, only own renders are stopped
+                        }
+                    }
+                    return;
+                } catch (ExecutionException ex) {
+                    this.report(descriptor, ex.getCause());
+                } catch (Exception ex) {
+                    this.report(descriptor, ex);
+                }
+            }
+        }
+
+
+        private void report(String descriptor, Throwable ex) {
+            System.err.println(String.format("Error writing %s: %s", descriptor, ex.getLocalizedMessage()));
+            if (CIMClientLib.this.debugMode) {
+                ex.printStackTrace();
+            }
+        }
     }
 
 
@@ -270,7 +684,9 @@ public class CIMClientLib {
      */
     public void setNamespace(String namespace) {
         this.namespace = namespace;
-        this.objectMapper.setNamespace(namespace);
+        if (this.objectMapper != null) {
+            this.objectMapper.setNamespace(namespace); // No mapper without the broker
+        }
     }
     
     
@@ -288,7 +704,7 @@ public class CIMClientLib {
      * @param objects 
      */
     public void doInspectObjects(String ... objects) {
-        this.traceMode = true;
+        CIMTraceDispatcher.getInstance().bind(new ConsoleResponseHandler());
         for (String objName : objects) {
             try {
                 CloseableIterator<CIMInstance> it = this.executeQuery("select * from " + objName, null);
@@ -304,7 +720,7 @@ public class CIMClientLib {
                 }
             }
         }
-        this.traceMode = false;
+        CIMTraceDispatcher.getInstance().release();
     }
 
 
@@ -349,125 +765,389 @@ public class CIMClientLib {
     }
 
 
+    /**
+     * Get metadata of the provider snapshot message.
+     * 
+     * @param sRMFMapProvider
+     * @return 
+     */
+    private SRMFMessageMeta createSnapshotMeta(SRMFRenderMap.SRMFMapProvider sRMFMapProvider) {
+        SRMFMessageMeta meta = new SRMFMessageMeta(sRMFMapProvider.getId(),
+                                                   sRMFMapProvider.getObjectClass(), // XXX: Traverse base class in the future.
+                                                   sRMFMapProvider.getObjectClass(),
+                                                   sRMFMapProvider.getNamespace());
+        List<String> storages = Arrays.asList(this.setup.getItem(".srmf.snapshot.storage", CIMClientLib.SNAPSHOT_SOURCE_GRAPH)
+                                                        .toLowerCase().split("\\s*,\\s*"));
+        if (storages.contains(CIMClientLib.SNAPSHOT_SOURCE_FILES)) {
+            meta.setFlag(SRMFMessageMeta.FILE_STORE);
+        }
+        if (storages.contains(CIMClientLib.SNAPSHOT_SOURCE_GRAPH)) {
+            meta.setFlag(SRMFMessageMeta.DB_STORE);
+        }
+        if (this.incremental) {
+            meta.setFlag(SRMFMessageMeta.DIFF_STORE);
+        }
+
+        return meta;
+    }
+
+
     /**
      * Makes a snapshot of the manifest to the current state (no versions support).
      * 
      * @throws Exception 
      */
     public void doManifestSnapshot() throws Exception {
-        this.traceMode = true;
-        List<SRMFRenderMap.SRMFMapProvider> providers = this.exportSRMFRenderMap.getProviders();
+        this.doManifestSnapshot(this.exportSRMFRenderMap.getProviders());
+    }
+
+
+    /**
+     * Makes a snapshot of the given providers only.
+     * 
+     * @param providers
+     * @throws Exception 
+     */
+    public void doManifestSnapshot(List<SRMFRenderMap.SRMFMapProvider> providers) throws Exception {
+        if (providers.isEmpty()) {
+            return;
+        }
+        this.startDeadline();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(this.getProviderParallelism(), providers.size())));
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
         for (int i = 0; i < providers.size(); i++) {
-            SRMFRenderMap.SRMFMapProvider sRMFMapProvider = providers.get(i);
-            this.currentSRMFMessageMeta = new SRMFMessageMeta(sRMFMapProvider.getId(),
-                                                              sRMFMapProvider.getObjectClass(), // XXX: Traverse base class in the future.
-                                                              sRMFMapProvider.getObjectClass(),
-                                                              sRMFMapProvider.getNamespace())
-                                                                  //.setFlag(SRMFMessageMeta.FILE_STORE) // XXX: Config!
-                                                                  .setFlag(SRMFMessageMeta.DB_STORE);  // XXX: Config!
+            final SRMFRenderMap.SRMFMapProvider sRMFMapProvider = providers.get(i);
+            final SRMFMessageMeta meta = this.createSnapshotMeta(sRMFMapProvider);
+            results.add(pool.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    if (CIMClientLib.this.isPastDeadline()) {
+                        throw new Exception("Deadline exceeded.");
+                    }
+                    CIMClientLib.this.invokeProvider(sRMFMapProvider, CIMClientLib.this.getSnapshotProperties(sRMFMapProvider),
+                                                    new SnapshotResponseHandler(meta));
+                    return null;
+                }
+            }));
+        }
+        pool.shutdown();
+
+        for (int i = 0; i < results.size(); i++) {
             try {
-                if (sRMFMapProvider.getType().equals(SRMFRenderMap.SRMFMapProvider.ACCESS_TYPE_STATIC)) {
-                    this.executeQuery(sRMFMapProvider.getQuery(), sRMFMapProvider.getNamespace());
-                } else if (sRMFMapProvider.getType().equals(SRMFRenderMap.SRMFMapProvider.ACCESS_TYPE_INSTANCE)) {
-                    this.enumerateInstances(sRMFMapProvider.getObjectClass(), sRMFMapProvider.getNamespace());
+                if (this.deadline > 0) {
+                    results.get(i).get(Math.max(0, this.deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
                 } else {
-                    System.err.println("ERROR: Skipping '%s' (%s) - Unknown access type.".format(sRMFMapProvider.getTitle(), sRMFMapProvider.getObjectClass()));
+                    results.get(i).get();
+                }
+            } catch (TimeoutException ex) {
+                // Running providers are left to store what they have got till the client is closed
+                this.expire();
+                results.get(i).cancel(false);
+                System.err.println(String.format("Cancelled '%s' (%s): deadline exceeded.",
+                                                 providers.get(i).getTitle(), providers.get(i).getId()));
+            } catch (ExecutionException ex) {
+                System.err.println(String.format("Error processing '%s' (%s): %s",
+                                                 providers.get(i).getTitle(), providers.get(i).getId(),
+                                                 ex.getCause().getLocalizedMessage()));
+                if (this.debugMode) {
+                    ex.getCause().printStackTrace();
                 }
-            } catch (WBEMException ex) {
-                System.err.println("Error processing '%s' (%s): %s".format(sRMFMapProvider.getTitle(), sRMFMapProvider.getId(), ex.getLocalizedMessage()));
             }
         }
-        this.traceMode = false;
+        this.stopDeadline();
+    }
+
+
+    /**
+     * Get amount of providers of one host that are called at once.
+     * 
+     * @return 
+     */
+    private int getProviderParallelism() {
+        return Integer.parseInt(this.setup.getItem(".srmf.snapshot.parallelism." + this.hostId,
+                                                   this.setup.getItem(".srmf.snapshot.parallelism",
+                                                                      String.valueOf(CIMClientLib.DEFAULT_PROVIDER_PARALLELISM))));
     }
 
 
     /**
-     * Export to the destination.
-     * @param get 
+     * Export to the destinations.
+     * Every provider, needed by any of the destinations, is queried only once
+     * and its result is rendered by all the renderers of all the destinations.
+     *
+     * @param destinationIdArr Destination IDs or "all".
+     * @param outputPath
      */
     public void doExportToDestination(String[] destinationIdArr, String[] outputPath) throws Exception {
-        String destinationId = destinationIdArr != null ? destinationIdArr[0] : null;
-        SRMFRenderMap.SRMFMapDestination dst = null;
-        List<SRMFRenderMap.SRMFMapDestination> destinations = this.exportSRMFRenderMap.getSupportedRenderIDs();
-        for (int i = 0; i < destinations.size(); i++) {
-            SRMFRenderMap.SRMFMapDestination sRMFMapDest = destinations.get(i);
-            if (sRMFMapDest.getName().equals(destinationId)) {
-                dst = sRMFMapDest;
-                break;
-            }
-        }
-        if (dst == null) {
-            throw new Exception(String.format("Destination \"%s\" not recognized.", destinationId));
+        SRMFExportPlan plan = new SRMFExportPlan(this.exportSRMFRenderMap, destinationIdArr);
+        ExportDispatcher dispatcher = new ExportDispatcher(new File(this.setup.getItem(".srmf.manifest.export",
+                                                                                       outputPath != null ? outputPath[0] : null)));
+        this.startDeadline();
+
+        // Renders of the merge sets are only fragments of the merged output
+        long spillSize = Long.parseLong(this.setup.getItem(".srmf.manifest.merge.spill", String.valueOf(SRMFMerge.DEFAULT_SPILL_SIZE)));
+        List<SRMFMerge> merges = new ArrayList<SRMFMerge>();
+        Map<SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender, SRMFMerge.Fragment> fragments =
+                new HashMap<SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender, SRMFMerge.Fragment>();
+        for (SRMFRenderMap.SRMFMapDestination.SRMFMergeSet mergeSet : plan.getMergeSets()) {
+            SRMFMerge merge = new SRMFMerge(mergeSet, spillSize);
+            merges.add(merge);
+            fragments.putAll(merge.getFragments());
         }
 
-        List<SRMFRenderMap.SRMFMapDestination.SRMFMapRef> references = null;
-        this.traceMode = true;
+        List<String> providerIds = plan.getProviderIds();
+        if (this.debugMode) {
+            System.err.println(String.format("Exporting %d destinations with %d queries instead of %d.",
+                                             plan.getDestinations().size(), providerIds.size(), plan.getReferenceCount()));
+        }
 
-        // Export merging render references
-        List<SRMFRenderMap.SRMFMapDestination.SRMFMergeSet> mergeSets = dst.getMergeSets();
-        for (int mrgIdx = 0; mrgIdx < mergeSets.size(); mrgIdx++) {
-            SRMFRenderMap.SRMFMapDestination.SRMFMergeSet mergeSet = mergeSets.get(mrgIdx);
-            references = mergeSet.getReferences();
-            for (int refIdx = 0; refIdx < references.size(); refIdx++) {
-                try {
-                    this.renderReference(references.get(refIdx), outputPath);
-                } catch (Exception ex) {
-                    if (this.debugMode) {
-                        System.err.println("\nDetailed trace:");
-                        ex.printStackTrace();
-                        System.err.println("\n");
-                    }
-                    System.err.println(String.format("Failed to export \"%s\" batch: %s",
-                                                     mergeSet.getRender(),
-                                                     ex.getLocalizedMessage()));
+        for (int i = 0; i < providerIds.size(); i++) {
+            try {
+                this.renderProvider(providerIds.get(i), plan.getRenderers(providerIds.get(i)), fragments, dispatcher);
+            } catch (Exception ex) {
+                if (this.debugMode) {
+                    System.err.println("\nDetailed trace:");
+                    ex.printStackTrace();
+                    System.err.println("\n");
                 }
+                System.err.println(String.format("Failed to render \"%s\" provider for %s: %s",
+                                                 providerIds.get(i),
+                                                 SRMFUtils.join(plan.getDestinationTitles(providerIds.get(i)).toArray(new String[0]), ", "),
+                                                 ex.getLocalizedMessage()));
             }
-            System.err.println("Committing merge for " + mergeSet.getRender() + " of " + references.size() + " artifacts.");
         }
 
-        // Export single render references
-        references = dst.getReferences();
-        for (int refIdx = 0; refIdx < references.size(); refIdx++) {
+        // Fragments of the merge sets are rendered already with the rest
+        for (int i = 0; i < merges.size(); i++) {
+            SRMFRenderMap.SRMFMapDestination.SRMFMergeSet mergeSet = merges.get(i).getMergeSet();
             try {
-                this.renderReference(references.get(refIdx), outputPath);
+                merges.get(i).commit(this.exportSRMFRenderMap.getRenderingStyle(mergeSet.getRender()),
+                                     dispatcher.getSink(this.targetSystemHostname, mergeSet.getDestinationDescriptor()));
+                System.err.println("Writing " + mergeSet.getDestinationDescriptor());
             } catch (Exception ex) {
-                System.err.println(String.format("Failed to render \"%s\" provider for %s!",
-                                                 this.exportSRMFRenderMap.getProviderByID(
-                                                         references.get(refIdx).getId()).getId(), dst.getTitle()));
+                if (this.debugMode) {
+                    ex.printStackTrace();
+                }
+                System.err.println(String.format("Error writing %s: %s", mergeSet.getDestinationDescriptor(), ex.getLocalizedMessage()));
+            } finally {
+                merges.get(i).release();
             }
         }
+        this.stopDeadline();
 
-        this.traceMode = false;
+        System.err.println(String.format("Written %d files (%d bytes), %d files (%d bytes) are unchanged and not rewritten.",
+                                         dispatcher.getWrittenFiles(), dispatcher.getWrittenBytes(),
+                                         dispatcher.getSkippedFiles(), dispatcher.getSkippedBytes()));
     }
 
 
     /**
-     * Export one render reference.
+     * Query the provider once and render its result with all the renderers.
      * 
-     * @param sRMFMapRef 
+     * @param providerId
+     * @param renderers
+     * @param fragments Fragments of the merge sets by their renders.
+     * @param dispatcher
      */
-    private void renderReference(SRMFRenderMap.SRMFMapDestination.SRMFMapRef sRMFMapRef, 
-                                 String[] outputPath)
+    private void renderProvider(String providerId,
+                                List<SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender> renderers,
+                                Map<SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender, SRMFMerge.Fragment> fragments,
+                                ExportDispatcher dispatcher)
             throws WBEMException, Exception {
-        SRMFRenderMap.SRMFMapProvider sRMFMapProvider = this.exportSRMFRenderMap.getProviderByID(sRMFMapRef.getId());
+        SRMFRenderMap.SRMFMapProvider sRMFMapProvider = this.exportSRMFRenderMap.getProviderByID(providerId);
         if (sRMFMapProvider == null) {
-            throw new Exception(String.format("Provider \"%s\" was not found.", sRMFMapRef.getId()));
+            throw new Exception(String.format("Provider \"%s\" was not found.", providerId));
         }
-        
-        this.currentSRMFMapRefID = sRMFMapRef.getRenderers();
-        ((RichArrayList) this.currentSRMFMapRefID).addAttribute("outputPath", this.setup.getItem(".srmf.manifest.export",
-                                                                                                 outputPath != null ? outputPath[0] : null));
-        ((RichArrayList) this.currentSRMFMapRefID).addAttribute("targetSystemHostname", this.targetSystemHostname);
-        if (sRMFMapProvider.getType().equals(SRMFRenderMap.SRMFMapProvider.ACCESS_TYPE_STATIC)) {
-            this.executeQuery(sRMFMapProvider.getQuery(), sRMFMapProvider.getNamespace());
-        } else if (sRMFMapProvider.getType().equals(SRMFRenderMap.SRMFMapProvider.ACCESS_TYPE_INSTANCE)) {
-            this.enumerateInstances(sRMFMapProvider.getObjectClass(), sRMFMapProvider.getNamespace());
+        if (this.isPastDeadline()) {
+            throw new Exception("Deadline exceeded.");
+        }
+
+        RenderResponseHandler handler = new RenderResponseHandler(renderers, fragments, dispatcher);
+        if (this.snapshotSource != null) {
+            SRMFMessage message = this.snapshotSource.loadMessage(this.targetSystemHostname, sRMFMapProvider.getId());
+            if (message == null) {
+                throw new Exception(String.format("No snapshot of \"%s\" is stored.", sRMFMapProvider.getId()));
+            }
+            handler.onDocument(message.getDocument());
         } else {
-            System.err.println("ERROR: Skipping '%s' (%s) - Uknown access type.".format(sRMFMapProvider.getTitle(), sRMFMapProvider.getId()));
+            this.invokeProvider(sRMFMapProvider, this.getRenderProperties(sRMFMapProvider), handler);
+        }
+    }
+
+
+    /**
+     * Get properties of the provider, that are taken into the snapshot.
+     * Snapshots keep the whole inventory, unless the declared properties
+     * are explicitly applied to them too.
+     *
+     * @param sRMFMapProvider
+     * @return Property names or null, if all of them are taken.
+     */
+    private String[] getSnapshotProperties(SRMFRenderMap.SRMFMapProvider sRMFMapProvider) {
+        return this.setup.getItem(".srmf.projection.snapshot", "disabled").toLowerCase().equals("enabled")
+               ? sRMFMapProvider.getProperties()
+               : null;
+    }
+
+
+    /**
+     * Get properties of the provider, that are needed for rendering.
+     * These are declared in the provider index, otherwise optionally
+     * found out from the stylesheets of the renderers.
+     * 
+     * @param sRMFMapProvider
+     * @return Property names or null, if all of them are needed.
+     */
+    private String[] getRenderProperties(SRMFRenderMap.SRMFMapProvider sRMFMapProvider) {
+        String[] properties = sRMFMapProvider.getProperties();
+        if (properties == null && this.setup.getItem(".srmf.projection.infer", "disabled").toLowerCase().equals("enabled")) {
+            properties = this.exportSRMFRenderMap.getRenderedProperties(sRMFMapProvider.getId());
+        }
+
+        return properties;
+    }
+
+
+    /**
+     * Call the provider and pass its result to the response handler.
+     * 
+     * @param sRMFMapProvider
+     * @param properties
+     * @param handler
+     * @throws WBEMException 
+     */
+    private void invokeProvider(SRMFRenderMap.SRMFMapProvider sRMFMapProvider,
+                                String[] properties,
+                                ProviderResponseHandler handler)
+            throws WBEMException, ParserConfigurationException {
+        if (!sRMFMapProvider.getType().equals(SRMFRenderMap.SRMFMapProvider.ACCESS_TYPE_STATIC) &&
+            !sRMFMapProvider.getType().equals(SRMFRenderMap.SRMFMapProvider.ACCESS_TYPE_INSTANCE)) {
+            System.err.println(String.format("ERROR: Skipping '%s' (%s) - Unknown access type.",
+                                             sRMFMapProvider.getTitle(), sRMFMapProvider.getId()));
+            return;
+        }
+
+        if (this.traceCapture) {
+            CIMTraceDispatcher.getInstance().bind(handler);
+            try {
+                this.callProvider(sRMFMapProvider, properties).close();
+            } finally {
+                CIMTraceDispatcher.getInstance().release();
+            }
+        } else {
+            CIMInstanceCapture capture = this.createCapture(sRMFMapProvider);
+            try {
+                capture.capture(this.callProvider(sRMFMapProvider, properties));
+            } catch (WBEMException ex) {
+                // Instances, gathered till the deadline or timeout, are still passed on
+                if (capture.getCount() > 0 && (this.isPastDeadline() || CIMClientLib.isTimeout(ex))) {
+                    capture.setPartial();
+                    handler.onDocument(capture.getDocument());
+                }
+                throw ex;
+            }
+            handler.onDocument(capture.getDocument());
+        }
+    }
+
+
+    /**
+     * Create capture of the provider instances, taken directly from the result.
+     * 
+     * @param sRMFMapProvider
+     * @return
+     * @throws ParserConfigurationException 
+     */
+    private CIMInstanceCapture createCapture(SRMFRenderMap.SRMFMapProvider sRMFMapProvider)
+            throws ParserConfigurationException {
+        CIMInstanceCapture capture = new CIMInstanceCapture(
+                sRMFMapProvider.getType().equals(SRMFRenderMap.SRMFMapProvider.ACCESS_TYPE_STATIC)
+                        ? CIMInstanceCapture.OP_EXEC_QUERY : CIMInstanceCapture.OP_ENUMERATE_INSTANCES,
+                this.targetSystemHostname);
+        if (this.decodeValues) {
+            capture.setSchemaCache(this.schemaCache, sRMFMapProvider.getNamespace() == null
+                                                     ? this.namespace : sRMFMapProvider.getNamespace());
+        }
+
+        return capture;
+    }
+
+
+    /**
+     * Call the provider according to its access type.
+     * The properties are only taken for the instance providers,
+     * static ones have them in the query.
+     * 
+     * @param sRMFMapProvider
+     * @param properties
+     * @return
+     * @throws WBEMException 
+     */
+    private CloseableIterator<CIMInstance> callProvider(SRMFRenderMap.SRMFMapProvider sRMFMapProvider, String[] properties)
+            throws WBEMException {
+        // Traced responses are parsed as one document, so pages are taken only from the stream.
+        // Brokers may support pulling the enumeration, but not the query, so each is tracked apart.
+        boolean query = sRMFMapProvider.getType().equals(SRMFRenderMap.SRMFMapProvider.ACCESS_TYPE_STATIC);
+        if (!this.traceCapture && this.pageSize > 0 && (query ? this.pullQuerySupported : this.pullEnumerateSupported)) {
+            try {
+                return this.pullProvider(sRMFMapProvider, properties);
+            } catch (WBEMException ex) {
+                if (ex.getID() != WBEMException.CIM_ERR_NOT_SUPPORTED) {
+                    throw ex;
+                }
+                if (query) {
+                    this.pullQuerySupported = false;
+                } else {
+                    this.pullEnumerateSupported = false;
+                }
+                if (this.debugMode) {
+                    System.err.println(String.format("Pull %s is not supported on %s, falling back to the full call.",
+                                                     query ? "query" : "enumeration", this.targetSystemHostname));
+                }
+            }
+        }
+
+        if (query) {
+            return this.executeQuery(sRMFMapProvider.getQuery(), sRMFMapProvider.getNamespace());
+        } else {
+            return this.enumerateInstances(sRMFMapProvider.getObjectClass(), sRMFMapProvider.getNamespace(), properties);
         }
     }
     
     
+    /**
+     * Call the provider with the pull operation, so the result is enumerated by pages.
+     * 
+     * @param sRMFMapProvider
+     * @param properties
+     * @return
+     * @throws WBEMException 
+     */
+    private CloseableIterator<CIMInstance> pullProvider(SRMFRenderMap.SRMFMapProvider sRMFMapProvider, String[] properties)
+            throws WBEMException {
+        String namespace = sRMFMapProvider.getNamespace() == null ? this.namespace : sRMFMapProvider.getNamespace();
+        UnsignedInteger32 maxObjects = new UnsignedInteger32(this.pageSize);
+        EnumerateResponse<CIMInstance> response;
+
+        this.transport.countOperation();
+        if (sRMFMapProvider.getType().equals(SRMFRenderMap.SRMFMapProvider.ACCESS_TYPE_STATIC)) {
+            if (this.debugMode) {
+                System.err.println("Query: " + sRMFMapProvider.getQuery());
+            }
+            response = this.client.execQueryInstances(new CIMObjectPath(null, null, null, namespace, "", null),
+                                                      sRMFMapProvider.getQuery(), "WQL", false, null, false, maxObjects, null);
+        } else {
+            response = this.client.enumerateInstances(new CIMObjectPath(null, null, null, namespace, sRMFMapProvider.getObjectClass(), null),
+                                                      true, false, properties, null, null, null, false, maxObjects);
+        }
+
+        CIMPagedEnumeration enumeration = new CIMPagedEnumeration(this.client, this.transport, this.pageSize, response);
+        enumeration.setDeadline(this.deadline);
+
+        return enumeration;
+    }
+
+
     /**
      * Execute query.
      * 
@@ -480,6 +1160,7 @@ public class CIMClientLib {
         if (this.debugMode) {
             System.err.println("Query: " + query);
         }
+        this.transport.countOperation();
         return this.client.execQuery(new CIMObjectPath(null, null, null,
                 (namespace == null ? this.namespace : namespace), "", null), query, "WQL");
     }
@@ -489,13 +1170,15 @@ public class CIMClientLib {
      * 
      * @param className
      * @param namespace
+     * @param properties Properties to return or null for all of them.
      * @return
      * @throws WBEMException 
      */
-    private CloseableIterator<CIMInstance> enumerateInstances(String className, String namespace)
+    private CloseableIterator<CIMInstance> enumerateInstances(String className, String namespace, String[] properties)
             throws WBEMException {
+        this.transport.countOperation();
         return this.client.enumerateInstances(new CIMObjectPath(null, null, null, 
-                (namespace == null ? this.namespace : namespace), className, null), true, false, true, null);
+                (namespace == null ? this.namespace : namespace), className, null), true, false, false, properties);
     }
 
 
@@ -509,6 +1192,7 @@ public class CIMClientLib {
      */
     private CloseableIterator<CIMObjectPath> enumerateInstanceNames(String className, String namespace)
             throws WBEMException {
+        this.transport.countOperation();
         return this.client.enumerateInstanceNames(new CIMObjectPath(null, null, null,
                 (namespace == null ? this.namespace : namespace), className, null));
     }
@@ -520,14 +1204,14 @@ public class CIMClientLib {
      * @param query 
      */
     public void doQuery(String query) {
-        this.traceMode = true;
+        CIMTraceDispatcher.getInstance().bind(new ConsoleResponseHandler());
         try {
             this.executeQuery(query, null);
         } catch (Exception ex) {
             System.err.println(String.format(">>> Failed to process \"%s\" query!", query));
         }
 
-        this.traceMode = false;
+        CIMTraceDispatcher.getInstance().release();
     }
 
     
@@ -536,31 +1220,186 @@ public class CIMClientLib {
      * @param className 
      */
     public void doEnumerateClassInstances(String className) {
-        this.traceMode = true;
+        CIMTraceDispatcher.getInstance().bind(new ConsoleResponseHandler());
         try {
-            this.enumerateInstances(className, null);
+            this.enumerateInstances(className, null, null);
         } catch (WBEMException ex) {
             Logger.getLogger(CIMClientLib.class.getName()).log(Level.SEVERE, null, ex);
         }
-        this.traceMode = false;
+        CIMTraceDispatcher.getInstance().release();
+    }
+
+    /**
+     * Subscribe the indications of the providers and apply them as changes to the storage.
+     * Runs until the subscriptions are stopped.
+     * 
+     * @param providerIds IDs of the providers or none for all of them.
+     * @throws Exception 
+     */
+    public void doSubscribe(String[] providerIds) throws Exception {
+        List<SRMFRenderMap.SRMFMapProvider> candidates = new ArrayList<SRMFRenderMap.SRMFMapProvider>();
+        if (providerIds == null || providerIds.length == 0) {
+            candidates.addAll(this.exportSRMFRenderMap.getProviders());
+        } else {
+            for (int i = 0; i < providerIds.length; i++) {
+                SRMFRenderMap.SRMFMapProvider provider = this.exportSRMFRenderMap.getProviderByID(providerIds[i]);
+                if (provider == null) {
+                    throw new Exception(String.format("Provider \"%s\" was not found.", providerIds[i]));
+                }
+                candidates.add(provider);
+            }
+        }
+
+        // Indications are filtered by the class, providers of the static queries have none
+        List<SRMFRenderMap.SRMFMapProvider> providers = new ArrayList<SRMFRenderMap.SRMFMapProvider>();
+        for (SRMFRenderMap.SRMFMapProvider provider : candidates) {
+            if (provider.getObjectClass() == null || provider.getObjectClass().isEmpty()) {
+                System.err.println(String.format("%s: skipped \"%s\", it has no class to subscribe to.",
+                                                 this.targetSystemHostname, provider.getId()));
+            } else {
+                providers.add(provider);
+            }
+        }
+
+        final Map<String, SRMFRenderMap.SRMFMapProvider> filters = new ConcurrentHashMap<String, SRMFRenderMap.SRMFMapProvider>();
+        CIMIndicationDispatcher dispatcher = CIMIndicationDispatcher.getInstance(this.setup);
+        this.subscriber = new CIMIndicationSubscriber(this.client, this.transport, this.setup, this.hostId, this.targetSystemHostname);
+        dispatcher.register(this.hostId, new CIMIndicationDispatcher.CIMIndicationHandler() {
+            @Override
+            public void onIndication(CIMInstance indication) {
+                CIMClientLib.this.applyIndication(indication, filters);
+            }
+        });
+
+        try {
+            for (int i = 0; i < providers.size(); i++) {
+                SRMFRenderMap.SRMFMapProvider provider = providers.get(i);
+                filters.put(this.subscriber.subscribe(provider.getId(), provider.getObjectClass(),
+                                                      provider.getNamespace() != null ? provider.getNamespace() : this.namespace,
+                                                      dispatcher.getDestination(this.hostId)).toLowerCase(), provider);
+            }
+        } catch (Exception ex) {
+            this.stopSubscriptions();
+            throw ex;
+        }
+        System.err.println(String.format("%s: subscribed %d providers, indications to %s",
+                                         this.targetSystemHostname, providers.size(), dispatcher.getDestination(this.hostId)));
+    }
+
+
+    /**
+     * Remove all subscriptions of the host.
+     */
+    public void stopSubscriptions() {
+        if (this.subscriber != null) {
+            try {
+                CIMIndicationDispatcher.getInstance(this.setup).unregister(this.hostId);
+            } catch (IOException ex) {
+                Logger.getLogger(CIMClientLib.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            this.subscriber.unsubscribe();
+            this.subscriber = null;
+        }
+    }
+
+
+    /**
+     * Apply the instance indication as the change of its provider.
+     * Indications are applied one at the time, since they change the same snapshot.
+     * 
+     * @param indication
+     * @param filters Providers by the filter names.
+     */
+    private synchronized void applyIndication(CIMInstance indication, Map<String, SRMFRenderMap.SRMFMapProvider> filters) {
+        CIMInstance source = CIMIndicationSubscriber.getSourceInstance(indication, this.namespace);
+        if (source == null) {
+            return;
+        }
+
+        // Filter name is there since CIM 2.22, otherwise the class is taken
+        Object filterName = indication.getPropertyValue(CIMIndicationSubscriber.FILTER_NAME);
+        SRMFRenderMap.SRMFMapProvider provider = filterName != null ? filters.get(filterName.toString().toLowerCase()) : null;
+        for (Iterator<SRMFRenderMap.SRMFMapProvider> providers = filters.values().iterator(); provider == null && providers.hasNext();) {
+            SRMFRenderMap.SRMFMapProvider candidate = providers.next();
+            if (candidate.getObjectClass().equalsIgnoreCase(source.getClassName())) {
+                provider = candidate;
+            }
+        }
+        if (provider == null) {
+            return;
+        }
+
+        try {
+            CIMInstanceCapture capture = this.createCapture(provider);
+            capture.add(CIMClientLib.project(source, this.getSnapshotProperties(provider)));
+            new SnapshotResponseHandler(this.createSnapshotMeta(provider)).onChange(capture.getDocument(),
+                                                                                   CIMIndicationSubscriber.isDeletion(indication));
+        } catch (Exception ex) {
+            Logger.getLogger(CIMClientLib.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+
+    /**
+     * Keep only the properties of the instance, that the snapshot of its provider has,
+     * so the instance from the indication hashes the same as the polled one.
+     *
+     * @param instance
+     * @param properties Property names or null for all of them.
+     * @return
+     */
+    private static CIMInstance project(CIMInstance instance, String[] properties) {
+        if (properties == null) {
+            return instance;
+        }
+
+        Set<String> names = new HashSet<String>();
+        for (int i = 0; i < properties.length; i++) {
+            names.add(properties[i].toLowerCase());
+        }
+        List<CIMProperty<?>> kept = new ArrayList<CIMProperty<?>>();
+        for (CIMProperty<?> property : instance.getProperties()) {
+            if (names.contains(property.getName().toLowerCase())) {
+                kept.add(property);
+            }
+        }
+
+        return new CIMInstance(instance.getObjectPath(), kept.toArray(new CIMProperty<?>[kept.size()]));
     }
 
-    /*
-    @SuppressWarnings("empty-statement")
-    public void doClassAssociationMap_(String className, int shift) throws WBEMException {
-        CloseableIterator<CIMObjectPath> instanceNames = this.enumerateInstanceNames(className, null);
-        while (instanceNames.hasNext()) {
-            CIMObjectPath objPth = instanceNames.next();
-            CloseableIterator<CIMObjectPath> associations = this.client.associatorNames(objPth, null, null, null, null);
-            while (associations.hasNext()) {
-                CIMObjectPath refObjPth = associations.next();
-                this.doClassAssociationMap_(refObjPth.getObjectName(), shift++);
+
+    /**
+     * Crawl the associations from all instances of the classes
+     * and store the found edges.
+     * 
+     * @param classNames
+     * @throws Exception 
+     */
+    public void doAssociationCrawl(String[] classNames) throws Exception {
+        List<CIMObjectPath> start = new ArrayList<CIMObjectPath>();
+        for (int i = 0; i < classNames.length; i++) {
+            CloseableIterator<CIMObjectPath> instanceNames = this.enumerateInstanceNames(classNames[i], null);
+            try {
+                while (instanceNames.hasNext()) {
+                    start.add(instanceNames.next());
+                }
+            } finally {
+                instanceNames.close();
             }
-            associations.close();
         }
-        instanceNames.close();
+
+        CIMAssociationCrawler crawler = new CIMAssociationCrawler(this.client, this.transport, this.namespace, this.setup);
+        long started = System.currentTimeMillis();
+        List<CIMAssociationCrawler.Edge> edges = crawler.crawl(start);
+        System.err.println(String.format("Found %d associations of %d instances in %d ms (%d truncated, %d failed).",
+                                         edges.size(), crawler.getInstanceCount(), System.currentTimeMillis() - started,
+                                         crawler.getTruncatedCount(), crawler.getFailedCount()));
+
+        new SnapshotResponseHandler(new SRMFMessageMeta("associations", null, null, this.namespace)
+                                            .setFlag(SRMFMessageMeta.FILE_STORE)
+                                            .setFlag(SRMFMessageMeta.DB_STORE))
+                .onDocument(crawler.getDocument(this.targetSystemHostname));
     }
-    */
 
 
     private void doClassAssociationMap(String className) {
@@ -591,6 +1430,8 @@ public class CIMClientLib {
         System.err.println("SrMF v0.1, Copyright (c) SUSE Linux Products GmbH");
         System.err.println("\nCommon:");
         System.err.println("\t--hostname=<hostname>\t\tHostname to use in the config file.");
+        System.err.println("\t\t\t\t\tComma separated hosts or \"all\" for snapshot and export.");
+        System.err.println("\t--workers=<value>\t\tAmount of hosts processed at once.");
         System.err.println("\t--config=/path/to/config\tUsed /etc/srmf/srmf.conf or ./srmf.conf by default.");
         System.err.println("\t--namespace=<value>\t\tNamespace on the target machine.");
 
@@ -599,12 +1440,16 @@ public class CIMClientLib {
         System.err.println("\t--describe=<Object,Object...>\tDescribe an array of objects (or just one).");
         System.err.println("\t--query={...}\t\t\tWQL query block.");
         System.err.println("\t--index-url\t\t\tPass custom index URL.");
+        System.err.println("\t--associations=<Class,Class...>\tCrawl and store associations of all the class instances.");
 
         System.err.println("\nExport:");
-        System.err.println("\t--export=<value>\t\tExport for deployment with particular CMS.");
+        System.err.println("\t--export=<value,...|all>\tExport for deployment with particular CMS.");
         System.err.println("\t--output-path\t\t\tSpecify custom output path for export.");
+        System.err.println("\t--source=<files|graph>\t\tExport from the stored snapshots, without the CIM broker.");
         System.err.println("\t--snapshot\t\t\tSnapshot current service manifest.");
         System.err.println("\t--available-cms\t\t\tList of supported CMS.");
+        System.err.println("\t--daemon\t\t\tRun snapshots and exports on the configured schedules.");
+        System.err.println("\t--subscribe[=<provider,...>]\tStore changes from the CIM indications instead of polling.");
         
         System.err.println("\nCMDB:");
         System.err.println("\t--cmdb-info=<targets>\t\tComma separated targets to get.");
@@ -625,18 +1470,63 @@ public class CIMClientLib {
     }
     
 
+    /**
+     * Subscribe the hosts and wait for the indications until the JVM is stopped.
+     * 
+     * @param config
+     * @param renderMap
+     * @param hosts
+     * @param providerIds
+     * @param namespace
+     * @throws Exception 
+     */
+    private static void runSubscriptions(SRMFConfig config, SRMFRenderMap renderMap, List<String> hosts,
+                                         String[] providerIds, String namespace) throws Exception {
+        final List<CIMClientLib> clients = new ArrayList<CIMClientLib>();
+        final CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (clients) {
+                    for (int i = 0; i < clients.size(); i++) {
+                        clients.get(i).stopSubscriptions();
+                        clients.get(i).close();
+                    }
+                    clients.clear();
+                }
+                CIMIndicationDispatcher.shutdown();
+                stopped.countDown();
+            }
+        }));
+
+        for (int i = 0; i < hosts.size(); i++) {
+            CIMClientLib client = new CIMClientLib(hosts.get(i), config, renderMap);
+            client.setNamespace(namespace);
+            synchronized (clients) {
+                clients.add(client);
+            }
+            try {
+                client.doSubscribe(providerIds);
+            } catch (Exception ex) {
+                System.err.println(String.format("%s: failed: %s", hosts.get(i), ex.getLocalizedMessage()));
+            }
+        }
+        stopped.await();
+    }
+
+
     /**
      * Main.
      * @param args
      * @throws Exception 
      */
     public static void main(String[] args) {
-        System.setProperty("sblim.wbem.httpPoolSize", "0");
         Map<String, String[]> params = null;
         try {
             params = SRMFUtils.getArgs(
                     args, "show-classes", "available-cms",
-                    "snapshot", "help", "trace", "cmdb-set"
+                    "snapshot", "help", "trace", "cmdb-set",
+                    "daemon", "subscribe"
             );
         } catch (Exception ex) {
             System.err.println("Error: " + ex.getLocalizedMessage());
@@ -653,7 +1543,8 @@ public class CIMClientLib {
                                   new String[]{"describe", "show-classes", 
                                                "export", "available-cms",
                                                "cmdb-info", "cmdb-set",
-                                               "snapshot", "test", "query"});
+                                               "snapshot", "test", "query",
+                                               "associations", "daemon", "subscribe"});
         } catch (Exception ex) {
             System.err.println("Error: " + ex.getLocalizedMessage());
             System.exit(0);
@@ -676,9 +1567,60 @@ public class CIMClientLib {
                 System.err.println("CMDB Warning: " + ex.getLocalizedMessage()); // XXX: This should at least create an empty map in /etc/srmf instead.
             }
             
-            CIMClientLib cimclient = new CIMClientLib(params.get("hostname")[0], 
-                    SRMFConfig.initialize(params.get("config") != null ? params.get("config")[0] : null),
-                    params.get("index-url") != null ? new URL(params.get("index-url")[0]) : null);
+            SRMFConfig config = SRMFConfig.initialize(params.get("config") != null ? params.get("config")[0] : null);
+            URL optionalIndex = params.get("index-url") != null ? new URL(params.get("index-url")[0]) : null;
+            SRMFTransport transport = SRMFTransport.getInstance();
+            List<String> hosts = SRMFFleet.resolveHosts(config, params.get("hostname"));
+            if (params.containsKey("daemon")) {
+                SRMFDaemon daemon = new SRMFDaemon(config, CIMClientLib.loadRenderMap(config, optionalIndex), hosts);
+                daemon.setNamespace(params.get("namespace")[0]);
+                daemon.setTraceCrashes(params.containsKey("trace"));
+                daemon.run();
+
+                return;
+            } else if (params.containsKey("subscribe")) {
+                CIMClientLib.runSubscriptions(config, CIMClientLib.loadRenderMap(config, optionalIndex), hosts,
+                                              params.get("subscribe"), params.get("namespace")[0]);
+
+                return;
+            }
+
+            String source = params.get("source") != null ? params.get("source")[0] : null;
+            if (source != null && !params.containsKey("export")) {
+                throw new Exception("Only export can run from the stored snapshots.");
+            }
+
+            if (hosts.size() != 1 || params.get("hostname")[0].equals(SRMFFleet.HOSTS_ALL)) {
+                if (!params.containsKey("snapshot") && !params.containsKey("export")) {
+                    throw new Exception("Only snapshot and export can run on many hosts.");
+                }
+
+                final Map<String, String[]> fleetParams = params;
+                SRMFFleet fleet = new SRMFFleet(config, CIMClientLib.loadRenderMap(config, optionalIndex), hosts,
+                                                Integer.parseInt(params.get("workers") != null
+                                                                 ? params.get("workers")[0]
+                                                                 : config.getItem(".srmf.fleet.workers",
+                                                                                  String.valueOf(SRMFFleet.DEFAULT_WORKERS))));
+                fleet.setNamespace(params.get("namespace")[0]);
+                fleet.setSnapshotSource(source);
+                fleet.setTraceCrashes(params.containsKey("trace"));
+                fleet.run(new SRMFFleet.SRMFFleetTask() {
+                    @Override
+                    public void run(CIMClientLib client) throws Exception {
+                        if (fleetParams.containsKey("snapshot")) {
+                            client.doManifestSnapshot();
+                        } else {
+                            client.doExportToDestination(fleetParams.get("export"), fleetParams.get("output-path"));
+                        }
+                    }
+                });
+                transport.report(System.err);
+                transport.shutdown();
+
+                return;
+            }
+
+            CIMClientLib cimclient = new CIMClientLib(hosts.get(0), config, CIMClientLib.loadRenderMap(config, optionalIndex), source);
             cimclient.setNamespace(params.get("namespace")[0]);
             cimclient.setTraceCrashes(params.containsKey("trace"));
             
@@ -709,12 +1651,20 @@ public class CIMClientLib {
                         cmdb.doLoadFromFile();
                     }
                 }
+            } else if (params.containsKey("associations")) {
+                cimclient.doAssociationCrawl(params.get("associations"));
             } else if (params.containsKey("test")) {
                 cimclient.doClassAssociationMap(params.get("test")[0]);
             } else {
                 CIMClientLib.usage();
                 System.err.println("Error:\n\tWrong parameters.");
             }
+
+            cimclient.close();
+            if (params.containsKey("snapshot") || params.containsKey("export")) {
+                transport.report(System.err);
+            }
+            transport.shutdown();
         } catch (Exception ex) {
             if (params.containsKey("trace")) {
                 Logger.getLogger(CIMClientLib.class.getName()).log(Level.SEVERE, null, ex);
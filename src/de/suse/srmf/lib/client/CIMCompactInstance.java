@@ -0,0 +1,1125 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.xml.transform.TransformerException;
+
+/**
+ * Compact, typed form of one CIM instance.
+ *
+ * Class, key and property names, types and attributes are shared by all the
+ * instances of the same class in one layout. Instance keeps only the values:
+ * integers, booleans, reals and datetimes as primitives, arrays of them packed
+ * into the primitive arrays, and the rest as strings. Value is typed only,
+ * if it is written back exactly the same, otherwise it is kept as it is written:
+ * so the instance renders to the same CIM-XML, with the same key and hash.
+ *
+ * CIM datetime is kept as microseconds since the epoch (UTC) with the offset
+ * in minutes, interval as microseconds.
+ *
+ * Instance with anything else (qualifiers, references in the keys) keeps
+ * also its source, it is rendered from it.
+ *
+ * @author bo
+ */
+public final class CIMCompactInstance {
+    public static final byte TYPE_STRING = 0;
+    public static final byte TYPE_BOOLEAN = 1;
+    public static final byte TYPE_UINT8 = 2;
+    public static final byte TYPE_SINT8 = 3;
+    public static final byte TYPE_UINT16 = 4;
+    public static final byte TYPE_SINT16 = 5;
+    public static final byte TYPE_UINT32 = 6;
+    public static final byte TYPE_SINT32 = 7;
+    public static final byte TYPE_UINT64 = 8;
+    public static final byte TYPE_SINT64 = 9;
+    public static final byte TYPE_REAL32 = 10;
+    public static final byte TYPE_REAL64 = 11;
+    public static final byte TYPE_DATETIME = 12;
+
+    private static final String[] TYPE_NAMES = new String[]{"string", "boolean", "uint8", "sint8", "uint16", "sint16",
+                                                            "uint32", "sint32", "uint64", "sint64", "real32", "real64",
+                                                            "datetime"};
+    private static final byte KIND_PROPERTY = 0;
+    private static final byte KIND_ARRAY = 1;
+    private static final byte KIND_REFERENCE = 2;
+    private static final String[] KIND_NAMES = new String[]{CIMXMLInstance.PROPERTY, CIMXMLInstance.PROPERTY_ARRAY,
+                                                            CIMXMLInstance.PROPERTY_REFERENCE};
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // Datetime: microseconds, shifted by the offset bits
+    private static final int OFFSET_BITS = 11;
+    private static final int OFFSET_BIAS = 1024;
+    private static final int OFFSET_INTERVAL = 0;
+    private static final long DATETIME_LIMIT = 1L << (63 - CIMCompactInstance.OFFSET_BITS);
+    private static final long MICROS_PER_DAY = 86400000000L;
+
+    private static final ConcurrentMap<String, String> NAMES = new ConcurrentHashMap<String, String>();
+    private static final ConcurrentMap<Layout, Layout> LAYOUTS = new ConcurrentHashMap<Layout, Layout>();
+
+    private final Layout layout;
+    private final String host;
+    private final String namespace;
+    private final String[] keyValues;
+    private final byte[] hash;
+    private final long[] numbers;
+    private final Object[] objects;
+    private final long[] present;
+    private long[] textual;
+    private Object[] meanings;
+    private String source;
+    private String key;
+
+    /**
+     * Names, types and attributes, shared by the instances of the same class.
+     */
+    private static final class Layout {
+        private final String elementName;
+        private final String pathName;
+        private final String className;
+        private final String instanceClassName;
+        private final String[] keyNames;
+        private final String[] keyTypes;
+        private final String[] names;
+        private final String[] typeNames;
+        private final byte[] types;
+        private final byte[] kinds;
+        private final String[][] attributes;
+        private final int hashCode;
+
+        private Layout(CIMXMLInstance instance) {
+            this.elementName = CIMCompactInstance.intern(instance.getElementName());
+            this.pathName = CIMCompactInstance.intern(instance.getPathName());
+            this.className = CIMCompactInstance.intern(instance.getClassName());
+            this.instanceClassName = CIMCompactInstance.intern(instance.getInstanceClassName());
+
+            List<String[]> keys = instance.getKeyValues();
+            this.keyNames = new String[keys.size()];
+            this.keyTypes = new String[keys.size()];
+            for (int i = 0; i < keys.size(); i++) {
+                this.keyNames[i] = CIMCompactInstance.intern(keys.get(i)[0]);
+                this.keyTypes[i] = CIMCompactInstance.intern(keys.get(i)[1]);
+            }
+
+            List<CIMXMLInstance.Property> properties = instance.getProperties();
+            this.names = new String[properties.size()];
+            this.typeNames = new String[properties.size()];
+            this.types = new byte[properties.size()];
+            this.kinds = new byte[properties.size()];
+            this.attributes = new String[properties.size()][];
+            for (int i = 0; i < properties.size(); i++) {
+                CIMXMLInstance.Property property = properties.get(i);
+                this.names[i] = CIMCompactInstance.intern(property.getName());
+                this.typeNames[i] = CIMCompactInstance.intern(property.getType());
+                this.types[i] = CIMCompactInstance.getType(property.getType());
+                this.kinds[i] = (byte) Arrays.asList(CIMCompactInstance.KIND_NAMES).indexOf(property.getKind());
+                List<String> propertyAttributes = property.getAttributes();
+                if (!propertyAttributes.isEmpty()) {
+                    this.attributes[i] = new String[propertyAttributes.size()];
+                    for (int a = 0; a < propertyAttributes.size(); a++) {
+                        this.attributes[i][a] = CIMCompactInstance.intern(propertyAttributes.get(a));
+                    }
+                }
+            }
+
+            this.hashCode = Arrays.hashCode(new Object[]{this.elementName, this.pathName, this.className, this.instanceClassName})
+                            + 31 * Arrays.hashCode(this.keyNames) + 961 * Arrays.hashCode(this.names);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Layout)) {
+                return false;
+            }
+
+            Layout layout = (Layout) other;
+            return this.hashCode == layout.hashCode
+                   && Arrays.equals(new Object[]{this.elementName, this.pathName, this.className, this.instanceClassName},
+                                    new Object[]{layout.elementName, layout.pathName, layout.className, layout.instanceClassName})
+                   && Arrays.equals(this.keyNames, layout.keyNames) && Arrays.equals(this.keyTypes, layout.keyTypes)
+                   && Arrays.equals(this.names, layout.names) && Arrays.equals(this.typeNames, layout.typeNames)
+                   && Arrays.equals(this.kinds, layout.kinds) && Arrays.deepEquals(this.attributes, layout.attributes);
+        }
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param instance
+     * @throws TransformerException
+     */
+    private CIMCompactInstance(CIMXMLInstance instance) throws TransformerException {
+        Layout shape = new Layout(instance);
+        Layout shared = CIMCompactInstance.LAYOUTS.putIfAbsent(shape, shape);
+        this.layout = shared != null ? shared : shape;
+        this.host = CIMCompactInstance.intern(instance.getHost());
+        this.namespace = CIMCompactInstance.intern(instance.getNamespace());
+        this.hash = instance.isProjected() ? null : CIMCompactInstance.fromHex(instance.getHash());
+
+        List<String[]> keys = instance.getKeyValues();
+        this.keyValues = new String[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            this.keyValues[i] = keys.get(i)[2];
+        }
+
+        List<CIMXMLInstance.Property> properties = instance.getProperties();
+        this.numbers = new long[properties.size()];
+        this.objects = new Object[properties.size()];
+        this.present = new long[(properties.size() + 63) / 64];
+        for (int i = 0; i < properties.size(); i++) {
+            this.setValue(i, properties.get(i));
+        }
+
+        boolean known = this.layout.pathName != null
+                        && (this.layout.pathName.equals("INSTANCEPATH") || this.layout.pathName.equals("LOCALINSTANCEPATH")
+                            || this.layout.pathName.equals("INSTANCENAME") && this.host == null && this.namespace == null);
+        if (!instance.isPlain() || !known || !this.getKey().equals(instance.getKey())) {
+            this.source = instance.getSource();
+            this.key = instance.getKey(); // References in the key bindings are only in the source
+        }
+    }
+
+
+    /**
+     * Get compact form of the instance. Source of the instance is needed,
+     * if it is not completely described by its model.
+     *
+     * @param instance
+     * @return
+     * @throws TransformerException
+     */
+    public static CIMCompactInstance valueOf(CIMXMLInstance instance) throws TransformerException {
+        return new CIMCompactInstance(instance);
+    }
+
+
+    /**
+     * Get the shared copy of the name.
+     *
+     * @param name
+     * @return
+     */
+    public static String intern(String name) {
+        if (name == null) {
+            return null;
+        }
+
+        String shared = CIMCompactInstance.NAMES.putIfAbsent(name, name);
+        return shared != null ? shared : name;
+    }
+
+
+    /**
+     * Keep values of the property.
+     *
+     * @param index
+     * @param property
+     */
+    private void setValue(int index, CIMXMLInstance.Property property) {
+        List<String> values = property.getValues();
+        byte type = this.layout.types[index];
+        if (this.layout.kinds[index] == CIMCompactInstance.KIND_ARRAY) {
+            if (!property.hasValueArray()) {
+                return;
+            }
+            this.present[index >> 6] |= 1L << index;
+            this.objects[index] = CIMCompactInstance.pack(type, values);
+            if (this.objects[index] instanceof String[]) {
+                this.setTextual(index);
+            }
+
+            String[] valueMeanings = null;
+            for (int i = 0; i < values.size(); i++) {
+                if (property.getMeaning(i) != null) {
+                    if (valueMeanings == null) {
+                        valueMeanings = new String[values.size()];
+                    }
+                    valueMeanings[i] = CIMCompactInstance.intern(property.getMeaning(i));
+                }
+            }
+            this.setMeaning(index, valueMeanings);
+        } else if (!values.isEmpty() && values.get(0) != null) {
+            this.present[index >> 6] |= 1L << index;
+            String text = values.get(0);
+            long[] number = new long[1];
+            if (this.layout.kinds[index] == CIMCompactInstance.KIND_PROPERTY && type != CIMCompactInstance.TYPE_STRING
+                && CIMCompactInstance.encode(type, text, number, 0)) {
+                this.numbers[index] = number[0];
+            } else {
+                this.objects[index] = text;
+                if (type != CIMCompactInstance.TYPE_STRING) {
+                    this.setTextual(index);
+                }
+            }
+            if (property.getMeaning(0) != null) {
+                this.setMeaning(index, CIMCompactInstance.intern(property.getMeaning(0)));
+            }
+        }
+    }
+
+
+    private void setTextual(int index) {
+        if (this.textual == null) {
+            this.textual = new long[this.present.length];
+        }
+        this.textual[index >> 6] |= 1L << index;
+    }
+
+
+    private boolean isTextual(int index) {
+        return this.textual != null && (this.textual[index >> 6] & (1L << index)) != 0;
+    }
+
+
+    private void setMeaning(int index, Object meaning) {
+        if (meaning == null) {
+            return;
+        } else if (this.meanings == null) {
+            this.meanings = new Object[this.objects.length];
+        }
+        this.meanings[index] = meaning;
+    }
+
+
+    /**
+     * Element of the instance: VALUE.NAMEDINSTANCE or VALUE.OBJECTWITHPATH.
+     *
+     * @return
+     */
+    public String getElementName() {
+        return this.layout.elementName;
+    }
+
+
+    /**
+     * Class name of the instance.
+     *
+     * @return
+     */
+    public String getClassName() {
+        return this.layout.className;
+    }
+
+
+    /**
+     * Host of the instance path or null.
+     *
+     * @return
+     */
+    public String getHost() {
+        return this.host;
+    }
+
+
+    /**
+     * Namespace of the instance path or null.
+     *
+     * @return
+     */
+    public String getNamespace() {
+        return this.namespace;
+    }
+
+
+    /**
+     * Get key of the instance, the same as of CIMXMLInstance.
+     *
+     * @return
+     */
+    public String getKey() {
+        if (this.key != null) {
+            return this.key;
+        } else if (this.layout.className == null) {
+            return "";
+        }
+
+        String[] bindings = new String[this.keyValues.length];
+        for (int i = 0; i < bindings.length; i++) {
+            bindings[i] = this.layout.keyNames[i].toLowerCase() + "=" + this.keyValues[i];
+        }
+        Arrays.sort(bindings);
+
+        StringBuilder key = new StringBuilder(this.layout.className);
+        for (int i = 0; i < bindings.length; i++) {
+            key.append(i == 0 ? '.' : ',').append(bindings[i]);
+        }
+
+        return key.toString();
+    }
+
+
+    /**
+     * Get hash of the properties, the same as of CIMXMLInstance.
+     * Instances of the projected reader have none.
+     *
+     * @return
+     */
+    public String getHash() {
+        if (this.hash == null) {
+            throw new IllegalStateException(String.format("Instance %s is projected, its hash is unknown.", this.getKey()));
+        }
+        char[] hex = new char[this.hash.length * 2];
+        for (int i = 0; i < this.hash.length; i++) {
+            hex[i * 2] = CIMCompactInstance.HEX[(this.hash[i] >> 4) & 0x0f];
+            hex[i * 2 + 1] = CIMCompactInstance.HEX[this.hash[i] & 0x0f];
+        }
+
+        return new String(hex);
+    }
+
+
+    public int getPropertyCount() {
+        return this.layout.names.length;
+    }
+
+
+    /**
+     * Get index of the property.
+     *
+     * @param name
+     * @return Index or -1, if there is no such property.
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < this.layout.names.length; i++) {
+            if (this.layout.names[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+
+    public String getPropertyName(int index) {
+        return this.layout.names[index];
+    }
+
+
+    /**
+     * CIM type of the property as it is written, i.e. "uint16".
+     *
+     * @param index
+     * @return
+     */
+    public String getPropertyType(int index) {
+        return this.layout.typeNames[index];
+    }
+
+
+    public boolean isArray(int index) {
+        return this.layout.kinds[index] == CIMCompactInstance.KIND_ARRAY;
+    }
+
+
+    public boolean isReference(int index) {
+        return this.layout.kinds[index] == CIMCompactInstance.KIND_REFERENCE;
+    }
+
+
+    /**
+     * Property has the value (or the array).
+     *
+     * @param index
+     * @return
+     */
+    public boolean hasValue(int index) {
+        return (this.present[index >> 6] & (1L << index)) != 0;
+    }
+
+
+    /**
+     * Value is kept as the primitive. Otherwise it is only the text.
+     *
+     * @param index
+     * @return
+     */
+    public boolean isTyped(int index) {
+        return this.hasValue(index) && !this.isTextual(index) && this.layout.kinds[index] != CIMCompactInstance.KIND_REFERENCE
+               && this.layout.types[index] != CIMCompactInstance.TYPE_STRING;
+    }
+
+
+    /**
+     * Get scalar value as it is written in CIM-XML. Reference is the VALUE.REFERENCE element.
+     *
+     * @param index
+     * @return Text or null, if there is no value.
+     */
+    public String getText(int index) {
+        if (!this.hasValue(index) || this.layout.kinds[index] == CIMCompactInstance.KIND_ARRAY) {
+            return null;
+        } else if (this.objects[index] instanceof String) {
+            return (String) this.objects[index];
+        }
+
+        return CIMCompactInstance.format(this.layout.types[index], this.numbers[index]);
+    }
+
+
+    /**
+     * Integer value, boolean as 0 or 1, datetime as microseconds since the epoch (UTC) or of the interval.
+     *
+     * @param index
+     * @return
+     */
+    public long getLong(int index) {
+        this.checkTyped(index);
+        return CIMCompactInstance.toLong(this.layout.types[index], this.numbers[index]);
+    }
+
+
+    public double getDouble(int index) {
+        this.checkTyped(index);
+        byte type = this.layout.types[index];
+        if (type == CIMCompactInstance.TYPE_REAL32) {
+            return Float.intBitsToFloat((int) this.numbers[index]);
+        } else if (type == CIMCompactInstance.TYPE_REAL64) {
+            return Double.longBitsToDouble(this.numbers[index]);
+        }
+
+        return this.getLong(index);
+    }
+
+
+    public boolean getBoolean(int index) {
+        return this.getLong(index) != 0;
+    }
+
+
+    /**
+     * Offset of the datetime in minutes.
+     *
+     * @param index
+     * @return
+     */
+    public int getDateTimeOffset(int index) {
+        this.checkTyped(index);
+        int offset = (int) (this.numbers[index] & ((1 << CIMCompactInstance.OFFSET_BITS) - 1));
+        return offset == CIMCompactInstance.OFFSET_INTERVAL ? 0 : offset - CIMCompactInstance.OFFSET_BIAS;
+    }
+
+
+    /**
+     * Datetime is the interval.
+     *
+     * @param index
+     * @return
+     */
+    public boolean isInterval(int index) {
+        this.checkTyped(index);
+        return (this.numbers[index] & ((1 << CIMCompactInstance.OFFSET_BITS) - 1)) == CIMCompactInstance.OFFSET_INTERVAL;
+    }
+
+
+    private void checkTyped(int index) {
+        if (!this.isTyped(index) || this.layout.kinds[index] != CIMCompactInstance.KIND_PROPERTY) {
+            throw new IllegalStateException(String.format("Property %s has no typed value.", this.layout.names[index]));
+        }
+    }
+
+
+    /**
+     * Length of the array.
+     *
+     * @param index
+     * @return Length or -1, if there is no array.
+     */
+    public int getArrayLength(int index) {
+        if (!this.hasValue(index) || this.layout.kinds[index] != CIMCompactInstance.KIND_ARRAY) {
+            return -1;
+        } else if (this.objects[index] instanceof String[]) {
+            return ((String[]) this.objects[index]).length;
+        }
+
+        return java.lang.reflect.Array.getLength(this.objects[index]);
+    }
+
+
+    /**
+     * Get array item as it is written in CIM-XML.
+     *
+     * @param index
+     * @param item
+     * @return Text or null for VALUE.NULL.
+     */
+    public String getText(int index, int item) {
+        if (this.objects[index] instanceof String[]) {
+            return ((String[]) this.objects[index])[item];
+        }
+
+        return CIMCompactInstance.format(this.layout.types[index], CIMCompactInstance.unpack(this.objects[index], item));
+    }
+
+
+    /**
+     * Get array item as the primitive, see getLong(int).
+     *
+     * @param index
+     * @param item
+     * @return
+     */
+    public long getLong(int index, int item) {
+        if (this.objects[index] instanceof String[]) {
+            throw new IllegalStateException(String.format("Property %s has no typed value.", this.layout.names[index]));
+        }
+
+        return CIMCompactInstance.toLong(this.layout.types[index], CIMCompactInstance.unpack(this.objects[index], item));
+    }
+
+
+    /**
+     * Get meaning of the scalar value.
+     *
+     * @param index
+     * @return Meaning or null.
+     */
+    public String getMeaning(int index) {
+        return this.meanings != null && this.meanings[index] instanceof String ? (String) this.meanings[index] : null;
+    }
+
+
+    /**
+     * Get meaning of the array item.
+     *
+     * @param index
+     * @param item
+     * @return Meaning or null.
+     */
+    public String getMeaning(int index, int item) {
+        return this.meanings != null && this.meanings[index] instanceof String[] ? ((String[]) this.meanings[index])[item] : null;
+    }
+
+
+    /**
+     * Write the instance as CIM-XML: VALUE.NAMEDINSTANCE or VALUE.OBJECTWITHPATH element.
+     *
+     * @param out
+     */
+    public void write(StringBuilder out) {
+        if (this.source != null) {
+            out.append(this.source);
+            return;
+        }
+
+        out.append('<').append(this.layout.elementName).append('>');
+        if (this.layout.pathName.equals("INSTANCEPATH") || this.layout.pathName.equals("LOCALINSTANCEPATH")) {
+            out.append('<').append(this.layout.pathName).append('>');
+            if (this.layout.pathName.equals("INSTANCEPATH")) {
+                out.append("<NAMESPACEPATH><HOST>");
+                CIMCompactInstance.escape(this.host != null ? this.host : "", out);
+                out.append("</HOST>");
+            }
+            out.append("<LOCALNAMESPACEPATH>");
+            if (this.namespace != null) {
+                for (String name : this.namespace.split("/")) {
+                    out.append("<NAMESPACE NAME=\"");
+                    CIMCompactInstance.escape(name, out);
+                    out.append("\"/>");
+                }
+            }
+            out.append("</LOCALNAMESPACEPATH>");
+            if (this.layout.pathName.equals("INSTANCEPATH")) {
+                out.append("</NAMESPACEPATH>");
+            }
+        }
+
+        out.append("<INSTANCENAME CLASSNAME=\"");
+        CIMCompactInstance.escape(this.layout.className, out);
+        out.append("\">");
+        for (int i = 0; i < this.keyValues.length; i++) {
+            out.append("<KEYBINDING NAME=\"");
+            CIMCompactInstance.escape(this.layout.keyNames[i], out);
+            out.append("\"><KEYVALUE");
+            if (!this.layout.keyTypes[i].isEmpty()) {
+                out.append(" VALUETYPE=\"");
+                CIMCompactInstance.escape(this.layout.keyTypes[i], out);
+                out.append('"');
+            }
+            out.append('>');
+            CIMCompactInstance.escape(this.keyValues[i], out);
+            out.append("</KEYVALUE></KEYBINDING>");
+        }
+        out.append("</INSTANCENAME>");
+        if (this.layout.pathName.equals("INSTANCEPATH") || this.layout.pathName.equals("LOCALINSTANCEPATH")) {
+            out.append("</").append(this.layout.pathName).append('>');
+        }
+
+        out.append("<INSTANCE CLASSNAME=\"");
+        CIMCompactInstance.escape(this.layout.instanceClassName != null ? this.layout.instanceClassName : this.layout.className, out);
+        out.append("\">");
+        for (int i = 0; i < this.layout.names.length; i++) {
+            this.writeProperty(i, out);
+        }
+        out.append("</INSTANCE></").append(this.layout.elementName).append('>');
+    }
+
+
+    /**
+     * Write the property.
+     *
+     * @param index
+     * @param out
+     */
+    private void writeProperty(int index, StringBuilder out) {
+        String element = CIMCompactInstance.KIND_NAMES[this.layout.kinds[index]];
+        out.append('<').append(element).append(" NAME=\"");
+        CIMCompactInstance.escape(this.layout.names[index], out);
+        out.append('"');
+        if (!this.layout.typeNames[index].isEmpty()) {
+            out.append(" TYPE=\"");
+            CIMCompactInstance.escape(this.layout.typeNames[index], out);
+            out.append('"');
+        }
+        String[] attributes = this.layout.attributes[index];
+        for (int i = 0; attributes != null && i < attributes.length; i += 2) {
+            out.append(' ').append(attributes[i]).append("=\"");
+            CIMCompactInstance.escape(attributes[i + 1], out);
+            out.append('"');
+        }
+        out.append('>');
+
+        if (this.hasValue(index)) {
+            if (this.layout.kinds[index] == CIMCompactInstance.KIND_REFERENCE) {
+                out.append(this.getText(index));
+            } else if (this.layout.kinds[index] == CIMCompactInstance.KIND_ARRAY) {
+                out.append("<VALUE.ARRAY>");
+                for (int i = 0; i < this.getArrayLength(index); i++) {
+                    String text = this.getText(index, i);
+                    if (text == null) {
+                        out.append("<VALUE.NULL/>");
+                    } else {
+                        this.writeValue(text, this.getMeaning(index, i), out);
+                    }
+                }
+                out.append("</VALUE.ARRAY>");
+            } else {
+                this.writeValue(this.getText(index), this.getMeaning(index), out);
+            }
+        }
+        out.append("</").append(element).append('>');
+    }
+
+
+    private void writeValue(String text, String meaning, StringBuilder out) {
+        out.append("<VALUE");
+        if (meaning != null) {
+            out.append(' ').append(CIMInstanceCapture.VALUE_MEANING).append("=\"");
+            CIMCompactInstance.escape(meaning, out);
+            out.append('"');
+        }
+        out.append('>');
+        CIMCompactInstance.escape(text, out);
+        out.append("</VALUE>");
+    }
+
+
+    /**
+     * Get the instance as CIM-XML.
+     *
+     * @return
+     */
+    public String toXML() {
+        StringBuilder out = new StringBuilder();
+        this.write(out);
+
+        return out.toString();
+    }
+
+
+    /**
+     * Get type of the CIM type name.
+     *
+     * @param name
+     * @return
+     */
+    private static byte getType(String name) {
+        for (int i = 0; i < CIMCompactInstance.TYPE_NAMES.length; i++) {
+            if (CIMCompactInstance.TYPE_NAMES[i].equals(name)) {
+                return (byte) i;
+            }
+        }
+
+        return CIMCompactInstance.TYPE_STRING;
+    }
+
+
+    /**
+     * Pack the array values into the primitive array of the type.
+     * Array with nulls or values, that are not written back the same, stays as strings.
+     *
+     * @param type
+     * @param values
+     * @return
+     */
+    private static Object pack(byte type, List<String> values) {
+        long[] items = new long[values.size()];
+        boolean typed = type != CIMCompactInstance.TYPE_STRING;
+        for (int i = 0; i < items.length && typed; i++) {
+            typed = values.get(i) != null && CIMCompactInstance.encode(type, values.get(i), items, i);
+        }
+        if (!typed) {
+            return values.toArray(new String[values.size()]);
+        }
+
+        switch (type) {
+            case CIMCompactInstance.TYPE_BOOLEAN:
+            case CIMCompactInstance.TYPE_UINT8:
+            case CIMCompactInstance.TYPE_SINT8:
+                byte[] bytes = new byte[items.length];
+                for (int i = 0; i < items.length; i++) {
+                    bytes[i] = (byte) items[i];
+                }
+                return bytes;
+            case CIMCompactInstance.TYPE_UINT16:
+            case CIMCompactInstance.TYPE_SINT16:
+                short[] shorts = new short[items.length];
+                for (int i = 0; i < items.length; i++) {
+                    shorts[i] = (short) items[i];
+                }
+                return shorts;
+            case CIMCompactInstance.TYPE_UINT32:
+            case CIMCompactInstance.TYPE_SINT32:
+            case CIMCompactInstance.TYPE_REAL32:
+                int[] ints = new int[items.length];
+                for (int i = 0; i < items.length; i++) {
+                    ints[i] = (int) items[i];
+                }
+                return ints;
+            default:
+                return items;
+        }
+    }
+
+
+    /**
+     * Get the bits of the packed array item.
+     *
+     * @param array
+     * @param item
+     * @return
+     */
+    private static long unpack(Object array, int item) {
+        if (array instanceof byte[]) {
+            return ((byte[]) array)[item];
+        } else if (array instanceof short[]) {
+            return ((short[]) array)[item];
+        } else if (array instanceof int[]) {
+            return ((int[]) array)[item];
+        }
+
+        return ((long[]) array)[item];
+    }
+
+
+    /**
+     * Encode the text of the value into the bits, only if it is written back the same.
+     *
+     * @param type
+     * @param text
+     * @param bits
+     * @param index
+     * @return
+     */
+    private static boolean encode(byte type, String text, long[] bits, int index) {
+        long value;
+        try {
+            switch (type) {
+                case CIMCompactInstance.TYPE_BOOLEAN:
+                    value = text.equals("TRUE") ? 3 : text.equals("FALSE") ? 2 : text.equals("true") ? 1 : text.equals("false") ? 0 : -1;
+                    if (value < 0) {
+                        return false;
+                    }
+                    break;
+                case CIMCompactInstance.TYPE_REAL32:
+                    value = Float.floatToRawIntBits(Float.parseFloat(text));
+                    break;
+                case CIMCompactInstance.TYPE_REAL64:
+                    value = Double.doubleToRawLongBits(Double.parseDouble(text));
+                    break;
+                case CIMCompactInstance.TYPE_DATETIME:
+                    value = CIMCompactInstance.parseDateTime(text);
+                    break;
+                default:
+                    value = Long.parseLong(text);
+                    int width = 8 << ((type - CIMCompactInstance.TYPE_UINT8) / 2);
+                    boolean signed = (type - CIMCompactInstance.TYPE_UINT8) % 2 == 1;
+                    if (!signed && value < 0 || width < 64 && (signed ? value < -(1L << (width - 1)) || value >= 1L << (width - 1)
+                                                                      : value >= 1L << width)) {
+                        return false;
+                    }
+            }
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+
+        bits[index] = value;
+        return CIMCompactInstance.format(type, value).equals(text);
+    }
+
+
+    /**
+     * Format the bits of the value back to the text.
+     *
+     * @param type
+     * @param value
+     * @return
+     */
+    private static String format(byte type, long value) {
+        switch (type) {
+            case CIMCompactInstance.TYPE_BOOLEAN:
+                return (value & 2) != 0 ? ((value & 1) != 0 ? "TRUE" : "FALSE") : ((value & 1) != 0 ? "true" : "false");
+            case CIMCompactInstance.TYPE_REAL32:
+                return Float.toString(Float.intBitsToFloat((int) value));
+            case CIMCompactInstance.TYPE_REAL64:
+                return Double.toString(Double.longBitsToDouble(value));
+            case CIMCompactInstance.TYPE_DATETIME:
+                return CIMCompactInstance.formatDateTime(value);
+            default:
+                return Long.toString(CIMCompactInstance.toLong(type, value));
+        }
+    }
+
+
+    /**
+     * Value of the bits: unsigned integers of the packed arrays are restored, boolean is 0 or 1,
+     * datetime is in microseconds.
+     *
+     * @param type
+     * @param value
+     * @return
+     */
+    private static long toLong(byte type, long value) {
+        switch (type) {
+            case CIMCompactInstance.TYPE_BOOLEAN:
+                return value & 1;
+            case CIMCompactInstance.TYPE_UINT8:
+                return value & 0xffL;
+            case CIMCompactInstance.TYPE_UINT16:
+                return value & 0xffffL;
+            case CIMCompactInstance.TYPE_UINT32:
+                return value & 0xffffffffL;
+            case CIMCompactInstance.TYPE_DATETIME:
+                return value >> CIMCompactInstance.OFFSET_BITS;
+            default:
+                return value;
+        }
+    }
+
+
+    /**
+     * Parse CIM datetime: "yyyymmddhhmmss.mmmmmmsutc" or the interval "ddddddddhhmmss.mmmmmm:000".
+     *
+     * @param text
+     * @return Microseconds, shifted by the offset bits.
+     */
+    private static long parseDateTime(String text) {
+        if (text.length() != 25 || text.charAt(14) != '.') {
+            throw new NumberFormatException(text);
+        }
+
+        long time = ((CIMCompactInstance.parseDigits(text, 8, 10) * 60 + CIMCompactInstance.parseDigits(text, 10, 12)) * 60
+                     + CIMCompactInstance.parseDigits(text, 12, 14)) * 1000000 + CIMCompactInstance.parseDigits(text, 15, 21);
+        long micros;
+        int offset;
+        char sign = text.charAt(21);
+        if (sign == ':') {
+            micros = CIMCompactInstance.parseDigits(text, 0, 8) * CIMCompactInstance.MICROS_PER_DAY + time;
+            offset = CIMCompactInstance.OFFSET_INTERVAL;
+        } else if (sign == '+' || sign == '-') {
+            int minutes = (int) CIMCompactInstance.parseDigits(text, 22, 25) * (sign == '-' ? -1 : 1);
+            long days = CIMCompactInstance.toDays(CIMCompactInstance.parseDigits(text, 0, 4), CIMCompactInstance.parseDigits(text, 4, 6),
+                                                  CIMCompactInstance.parseDigits(text, 6, 8));
+            micros = days * CIMCompactInstance.MICROS_PER_DAY + time - minutes * 60000000L;
+            offset = minutes + CIMCompactInstance.OFFSET_BIAS;
+        } else {
+            throw new NumberFormatException(text);
+        }
+
+        if (micros >= CIMCompactInstance.DATETIME_LIMIT || micros < -CIMCompactInstance.DATETIME_LIMIT) {
+            throw new NumberFormatException(text);
+        }
+
+        return (micros << CIMCompactInstance.OFFSET_BITS) | offset;
+    }
+
+
+    /**
+     * Format CIM datetime.
+     *
+     * @param value Microseconds, shifted by the offset bits.
+     * @return
+     */
+    private static String formatDateTime(long value) {
+        long micros = value >> CIMCompactInstance.OFFSET_BITS;
+        int offset = (int) (value & ((1 << CIMCompactInstance.OFFSET_BITS) - 1));
+        boolean interval = offset == CIMCompactInstance.OFFSET_INTERVAL;
+        StringBuilder out = new StringBuilder(25);
+        if (interval) {
+            CIMCompactInstance.appendDigits(out, micros / CIMCompactInstance.MICROS_PER_DAY, 8);
+        } else {
+            offset -= CIMCompactInstance.OFFSET_BIAS;
+            micros += offset * 60000000L;
+            long days = micros / CIMCompactInstance.MICROS_PER_DAY - (micros % CIMCompactInstance.MICROS_PER_DAY < 0 ? 1 : 0);
+            long[] date = CIMCompactInstance.toDate(days);
+            CIMCompactInstance.appendDigits(out, date[0], 4);
+            CIMCompactInstance.appendDigits(out, date[1], 2);
+            CIMCompactInstance.appendDigits(out, date[2], 2);
+            micros -= days * CIMCompactInstance.MICROS_PER_DAY;
+        }
+
+        long time = micros % CIMCompactInstance.MICROS_PER_DAY;
+        CIMCompactInstance.appendDigits(out, time / 3600000000L, 2);
+        CIMCompactInstance.appendDigits(out, time / 60000000L % 60, 2);
+        CIMCompactInstance.appendDigits(out, time / 1000000L % 60, 2);
+        out.append('.');
+        CIMCompactInstance.appendDigits(out, time % 1000000L, 6);
+        if (interval) {
+            out.append(":000");
+        } else {
+            out.append(offset < 0 ? '-' : '+');
+            CIMCompactInstance.appendDigits(out, Math.abs(offset), 3);
+        }
+
+        return out.toString();
+    }
+
+
+    /**
+     * Days since the epoch of the civil date.
+     *
+     * @param year
+     * @param month
+     * @param day
+     * @return
+     */
+    private static long toDays(long year, long month, long day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+
+    /**
+     * Civil date of the days since the epoch.
+     *
+     * @param days
+     * @return Year, month and day.
+     */
+    private static long[] toDate(long days) {
+        days += 719468;
+        long era = (days >= 0 ? days : days - 146096) / 146097;
+        long dayOfEra = days - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+        long month = monthIndex + (monthIndex < 10 ? 3 : -9);
+
+        return new long[]{yearOfEra + era * 400 + (month <= 2 ? 1 : 0), month, day};
+    }
+
+
+    private static long parseDigits(String text, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException(text);
+            }
+            value = value * 10 + (c - '0');
+        }
+
+        return value;
+    }
+
+
+    private static void appendDigits(StringBuilder out, long value, int width) {
+        String digits = Long.toString(value);
+        for (int i = digits.length(); i < width; i++) {
+            out.append('0');
+        }
+        out.append(digits);
+    }
+
+
+    private static byte[] fromHex(String hex) {
+        byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+
+        return data;
+    }
+
+
+    /**
+     * Escape text or attribute value of the XML.
+     *
+     * @param data
+     * @param out
+     */
+    private static void escape(String data, StringBuilder out) {
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            switch (c) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.cim.CIMInstance;
+import javax.wbem.client.WBEMClientConstants;
+import javax.wbem.listener.IndicationListener;
+import javax.wbem.listener.WBEMListener;
+import javax.wbem.listener.WBEMListenerFactory;
+
+/**
+ * CIM indication dispatcher.
+ *
+ * Only one listener is installed per JVM on the configured port. Every host
+ * gets its own destination path, so the incoming indications are routed
+ * to the handler of the host, that has sent them.
+ *
+ * Configuration in srmf.conf:
+ *
+ *     .srmf.indications.port = 5990
+ *     .srmf.indications.address = <address of this machine, as seen by the brokers>
+ *
+ * @author bo
+ */
+public final class CIMIndicationDispatcher implements IndicationListener {
+    public static final int DEFAULT_PORT = 5990;
+    private static final String DESTINATION_PATH = "/srmf/";
+    private static CIMIndicationDispatcher instance;
+    private final WBEMListener listener;
+    private final Map<String, CIMIndicationHandler> handlers;
+    private final String address;
+    private final int port;
+
+    /**
+     * Handler of the indications of one host.
+     */
+    public static interface CIMIndicationHandler {
+        public void onIndication(CIMInstance indication);
+    }
+
+
+    private CIMIndicationDispatcher(SRMFConfig config) throws IOException {
+        this.handlers = new ConcurrentHashMap<String, CIMIndicationHandler>();
+        this.address = config.getItem(".srmf.indications.address", InetAddress.getLocalHost().getCanonicalHostName());
+        this.listener = WBEMListenerFactory.getListener(WBEMClientConstants.PROTOCOL_CIMXML);
+        this.port = this.listener.addListener(this, Integer.parseInt(config.getItem(".srmf.indications.port",
+                                                                                    String.valueOf(CIMIndicationDispatcher.DEFAULT_PORT))),
+                                              "http");
+    }
+
+
+    /**
+     * Get dispatcher instance. Starts the listener only once.
+     *
+     * @param config
+     * @return
+     * @throws IOException
+     */
+    public static synchronized CIMIndicationDispatcher getInstance(SRMFConfig config) throws IOException {
+        if (CIMIndicationDispatcher.instance == null) {
+            CIMIndicationDispatcher.instance = new CIMIndicationDispatcher(config);
+        }
+
+        return CIMIndicationDispatcher.instance;
+    }
+
+
+    /**
+     * Get URL of the destination for the indications of the host.
+     *
+     * @param hostId
+     * @return
+     */
+    public String getDestination(String hostId) {
+        return String.format("http://%s:%d%s%s", this.address, this.port, CIMIndicationDispatcher.DESTINATION_PATH, hostId);
+    }
+
+
+    /**
+     * Route the indications of the host to the handler.
+     *
+     * @param hostId
+     * @param handler
+     */
+    public void register(String hostId, CIMIndicationHandler handler) {
+        this.handlers.put(hostId, handler);
+    }
+
+
+    /**
+     * Stop routing the indications of the host.
+     *
+     * @param hostId
+     */
+    public void unregister(String hostId) {
+        this.handlers.remove(hostId);
+    }
+
+
+    /**
+     * Stop the listener.
+     */
+    public static synchronized void shutdown() {
+        if (CIMIndicationDispatcher.instance != null) {
+            CIMIndicationDispatcher.instance.listener.removeListener(CIMIndicationDispatcher.instance.port);
+            CIMIndicationDispatcher.instance = null;
+        }
+    }
+
+
+    @Override
+    public void indicationOccured(String id, CIMInstance indication) {
+        // ID is the path of the destination, or its last part
+        String hostId = id != null ? id.substring(id.lastIndexOf('/') + 1) : null;
+        CIMIndicationHandler handler = hostId != null ? this.handlers.get(hostId) : null;
+        if (handler == null) {
+            return;
+        }
+
+        try {
+            handler.onIndication(indication);
+        } catch (RuntimeException ex) {
+            Logger.getLogger(CIMIndicationDispatcher.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client;
+
+import de.suse.srmf.lib.client.export.SRMFMessageDiff;
+import de.suse.srmf.lib.client.export.SRMFUtils;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Stand-in broker, that emits the instance indications.
+ *
+ * Every instance of the stored message (.lmx or plain CIM-XML) is sent
+ * as the indication of the given type to the listener, just like the broker
+ * would do with ExportIndication. Used to try the subscriptions without any
+ * real change on the host:
+ *
+ *     $ java -cp srmf.jar de.suse.srmf.lib.client.CIMIndicationEmitter \
+ *           http://localhost:5990/srmf/my_host CIM_InstModification cim_process.lmx
+ *
+ * @author bo
+ */
+public class CIMIndicationEmitter {
+    private final URL destination;
+    private final String indicationClass;
+    private final String filterName;
+    private int messageId;
+
+    /**
+     * Constructor.
+     *
+     * @param destination
+     * @param indicationClass
+     * @param filterName Name of the filter or null.
+     */
+    public CIMIndicationEmitter(URL destination, String indicationClass, String filterName) {
+        this.destination = destination;
+        this.indicationClass = indicationClass;
+        this.filterName = filterName;
+    }
+
+
+    /**
+     * Emit indications of all the instances of the message.
+     *
+     * @param message
+     * @return Amount of sent indications.
+     * @throws Exception
+     */
+    public int emit(Document message) throws Exception {
+        NodeList instances = SRMFMessageDiff.getInstances(message);
+        for (int i = 0; i < instances.getLength(); i++) {
+            this.emit((Element) instances.item(i));
+        }
+
+        return instances.getLength();
+    }
+
+
+    /**
+     * Emit indication of one instance.
+     * Key bindings of the instance name are marked as the key properties,
+     * since the embedded instance has no path.
+     *
+     * @param namedInstance VALUE.NAMEDINSTANCE or VALUE.OBJECTWITHPATH element.
+     * @throws Exception
+     */
+    private void emit(Element namedInstance) throws Exception {
+        Set<String> keys = new HashSet<String>();
+        NodeList bindings = namedInstance.getElementsByTagName("KEYBINDING");
+        for (int i = 0; i < bindings.getLength(); i++) {
+            keys.add(((Element) bindings.item(i)).getAttribute("NAME").toLowerCase());
+        }
+
+        Document source = SRMFUtils.getDocumentBuilder().newDocument();
+        Element instance = (Element) source.importNode(namedInstance.getElementsByTagName("INSTANCE").item(0), true);
+        source.appendChild(instance);
+        for (Node property = instance.getFirstChild(); property != null; property = property.getNextSibling()) {
+            if (property.getNodeType() == Node.ELEMENT_NODE && keys.contains(((Element) property).getAttribute("NAME").toLowerCase())) {
+                Element qualifier = source.createElement("QUALIFIER");
+                qualifier.setAttribute("NAME", "Key");
+                qualifier.setAttribute("TYPE", "boolean");
+                Element value = source.createElement("VALUE");
+                value.setTextContent("TRUE");
+                qualifier.appendChild(value);
+                property.insertBefore(qualifier, property.getFirstChild());
+            }
+        }
+
+        this.send(this.createIndication(SRMFUtils.getXMLFragment(instance)));
+    }
+
+
+    /**
+     * Create ExportIndication request with the embedded source instance.
+     *
+     * @param sourceInstance
+     * @return
+     * @throws Exception
+     */
+    private Document createIndication(String sourceInstance) throws Exception {
+        Document document = SRMFUtils.getDocumentBuilder().newDocument();
+        Element cim = document.createElement("CIM");
+        cim.setAttribute("CIMVERSION", "2.0");
+        cim.setAttribute("DTDVERSION", "2.0");
+        Element message = document.createElement("MESSAGE");
+        message.setAttribute("ID", String.valueOf(++this.messageId));
+        message.setAttribute("PROTOCOLVERSION", "1.0");
+        Element request = document.createElement("SIMPLEEXPREQ");
+        Element call = document.createElement("EXPMETHODCALL");
+        call.setAttribute("NAME", "ExportIndication");
+        Element param = document.createElement("EXPPARAMVALUE");
+        param.setAttribute("NAME", "NewIndication");
+        Element indication = document.createElement("INSTANCE");
+        indication.setAttribute("CLASSNAME", this.indicationClass);
+        if (this.filterName != null) {
+            indication.appendChild(this.createProperty(document, CIMIndicationSubscriber.FILTER_NAME, this.filterName, false));
+        }
+        indication.appendChild(this.createProperty(document, CIMIndicationSubscriber.SOURCE_INSTANCE, sourceInstance, true));
+
+        param.appendChild(indication);
+        call.appendChild(param);
+        request.appendChild(call);
+        message.appendChild(request);
+        cim.appendChild(message);
+        document.appendChild(cim);
+
+        return document;
+    }
+
+
+    /**
+     * Create string property.
+     *
+     * @param document
+     * @param name
+     * @param value
+     * @param embedded Value is the embedded instance.
+     * @return
+     */
+    private Element createProperty(Document document, String name, String value, boolean embedded) {
+        Element property = document.createElement("PROPERTY");
+        property.setAttribute("NAME", name);
+        property.setAttribute("TYPE", "string");
+        if (embedded) {
+            property.setAttribute("EmbeddedObject", "instance");
+        }
+        Element valueElement = document.createElement("VALUE");
+        valueElement.setTextContent(value);
+        property.appendChild(valueElement);
+
+        return property;
+    }
+
+
+    /**
+     * Send the export request to the listener.
+     *
+     * @param request
+     * @throws Exception
+     */
+    private void send(Document request) throws Exception {
+        byte[] body = SRMFUtils.xproc(request, null).getBytes("UTF-8");
+        HttpURLConnection connection = (HttpURLConnection) this.destination.openConnection();
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/xml; charset=utf-8");
+        connection.setRequestProperty("CIMExport", "MethodRequest");
+        connection.setRequestProperty("CIMExportMethod", "ExportIndication");
+        connection.setFixedLengthStreamingMode(body.length);
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+
+        int status = connection.getResponseCode();
+        connection.disconnect();
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new Exception(String.format("Listener has answered with HTTP %d.", status));
+        }
+    }
+
+
+    /**
+     * Main.
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: <destination URL> <CIM_InstCreation|CIM_InstModification|CIM_InstDeletion> <message> [filter name]");
+            System.exit(0);
+        }
+
+        try {
+            CIMIndicationEmitter emitter = new CIMIndicationEmitter(new URL(args[0]), args[1], args.length > 3 ? args[3] : null);
+            System.err.println(String.format("Sent %d indications.", emitter.emit(SRMFUtils.getXMLDocumentFromStoredFile(new File(args[2])))));
+        } catch (Exception ex) {
+            System.err.println("Error: " + ex.getLocalizedMessage());
+        }
+    }
+}
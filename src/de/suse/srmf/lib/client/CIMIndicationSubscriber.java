@@ -0,0 +1,247 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.cim.CIMDataType;
+import javax.cim.CIMInstance;
+import javax.cim.CIMObjectPath;
+import javax.cim.CIMProperty;
+import javax.cim.UnsignedInteger16;
+import javax.wbem.WBEMException;
+import javax.wbem.client.WBEMClient;
+
+/**
+ * Subscriptions of the CIM indications on one host.
+ *
+ * Every class gets its own filter on CIM_InstIndication (creation, modification
+ * and deletion of the instances), all filters are subscribed to the same
+ * CIM-XML destination of the host. Everything is created as transient and
+ * removed again on unsubscribe.
+ *
+ * Configuration in srmf.conf:
+ *
+ *     .srmf.indications.namespace = root/interop
+ *     .srmf.indications.language = WQL
+ *
+ * @author bo
+ */
+public class CIMIndicationSubscriber {
+    public static final String DEFAULT_NAMESPACE = "root/interop";
+    public static final String DEFAULT_LANGUAGE = "WQL";
+    public static final String INSTANCE_DELETION = "CIM_InstDeletion";
+    public static final String SOURCE_INSTANCE = "SourceInstance";
+    public static final String FILTER_NAME = "IndicationFilterName";
+    private static final String FILTER_CLASS = "CIM_IndicationFilter";
+    private static final String HANDLER_CLASS = "CIM_ListenerDestinationCIMXML";
+    private static final String SUBSCRIPTION_CLASS = "CIM_IndicationSubscription";
+    private static final String SYSTEM_CLASS = "CIM_ComputerSystem";
+    private static final int PERSISTENCE_TRANSIENT = 3;
+
+    private final WBEMClient client;
+    private final SRMFTransport transport;
+    private final String hostId;
+    private final String hostname;
+    private final String interopNamespace;
+    private final String language;
+    private final List<CIMObjectPath> created;
+    private CIMObjectPath handler;
+
+    /**
+     * Constructor.
+     *
+     * @param client
+     * @param transport
+     * @param config
+     * @param hostId
+     * @param hostname
+     */
+    public CIMIndicationSubscriber(WBEMClient client, SRMFTransport transport, SRMFConfig config, String hostId, String hostname) {
+        this.client = client;
+        this.transport = transport;
+        this.hostId = hostId;
+        this.hostname = hostname;
+        this.interopNamespace = config.getItem(".srmf.indications.namespace", CIMIndicationSubscriber.DEFAULT_NAMESPACE);
+        this.language = config.getItem(".srmf.indications.language", CIMIndicationSubscriber.DEFAULT_LANGUAGE);
+        this.created = new ArrayList<CIMObjectPath>();
+    }
+
+
+    /**
+     * Subscribe the changes of the class instances.
+     *
+     * @param id ID of the filter, unique per host.
+     * @param className
+     * @param namespace Namespace of the class.
+     * @param destination URL of the listener.
+     * @return Name of the filter.
+     * @throws WBEMException
+     */
+    public synchronized String subscribe(String id, String className, String namespace, String destination) throws WBEMException {
+        if (this.handler == null) {
+            this.handler = this.create(CIMIndicationSubscriber.HANDLER_CLASS, "srmf-" + this.hostId,
+                                       new CIMProperty<String>("Destination", CIMDataType.STRING_T, destination),
+                                       new CIMProperty<UnsignedInteger16>("PersistenceType", CIMDataType.UINT16_T,
+                                                                          new UnsignedInteger16(CIMIndicationSubscriber.PERSISTENCE_TRANSIENT)));
+        }
+
+        String filterName = String.format("srmf-%s-%s", this.hostId, id);
+        CIMObjectPath filter = this.create(CIMIndicationSubscriber.FILTER_CLASS, filterName,
+                                           new CIMProperty<String>("Query", CIMDataType.STRING_T,
+                                                                   String.format("SELECT * FROM CIM_InstIndication WHERE SourceInstance ISA %s", className)),
+                                           new CIMProperty<String>("QueryLanguage", CIMDataType.STRING_T, this.language),
+                                           new CIMProperty<String>("SourceNamespace", CIMDataType.STRING_T, namespace));
+
+        this.transport.countOperation();
+        this.created.add(this.client.createInstance(new CIMInstance(
+                new CIMObjectPath(null, null, null, this.interopNamespace, CIMIndicationSubscriber.SUBSCRIPTION_CLASS, null),
+                new CIMProperty<?>[]{
+                    new CIMProperty<CIMObjectPath>("Filter", new CIMDataType(CIMIndicationSubscriber.FILTER_CLASS), filter, true, false, null),
+                    new CIMProperty<CIMObjectPath>("Handler", new CIMDataType(CIMIndicationSubscriber.HANDLER_CLASS), this.handler, true, false, null),
+                })));
+
+        return filterName;
+    }
+
+
+    /**
+     * Create filter or handler instance with its keys.
+     *
+     * @param className
+     * @param name
+     * @param properties
+     * @return
+     * @throws WBEMException
+     */
+    private CIMObjectPath create(String className, String name, CIMProperty<?>... properties) throws WBEMException {
+        CIMProperty<?>[] keys = new CIMProperty<?>[]{
+            new CIMProperty<String>("SystemCreationClassName", CIMDataType.STRING_T, CIMIndicationSubscriber.SYSTEM_CLASS, true, false, null),
+            new CIMProperty<String>("SystemName", CIMDataType.STRING_T, this.hostname, true, false, null),
+            new CIMProperty<String>("CreationClassName", CIMDataType.STRING_T, className, true, false, null),
+            new CIMProperty<String>("Name", CIMDataType.STRING_T, name, true, false, null),
+        };
+        CIMProperty<?>[] all = new CIMProperty<?>[keys.length + properties.length];
+        System.arraycopy(keys, 0, all, 0, keys.length);
+        System.arraycopy(properties, 0, all, keys.length, properties.length);
+
+        CIMObjectPath path = new CIMObjectPath(null, null, null, this.interopNamespace, className, keys);
+        CIMInstance instance = new CIMInstance(path, all);
+        try {
+            this.transport.countOperation();
+            path = this.client.createInstance(instance);
+        } catch (WBEMException ex) {
+            if (ex.getID() != WBEMException.CIM_ERR_ALREADY_EXISTS) {
+                throw ex;
+            }
+            // Left over from the run, that was not stopped cleanly
+            this.transport.countOperation();
+            this.client.deleteInstance(path);
+            this.transport.countOperation();
+            path = this.client.createInstance(instance);
+        }
+        this.created.add(path);
+
+        return path;
+    }
+
+
+    /**
+     * Remove all subscriptions, filters and the handler.
+     * Subscriptions are removed first, since they refer to the rest.
+     */
+    public synchronized void unsubscribe() {
+        for (int i = this.created.size() - 1; i >= 0; i--) {
+            if (this.created.get(i).getObjectName().equalsIgnoreCase(CIMIndicationSubscriber.SUBSCRIPTION_CLASS)) {
+                this.delete(this.created.get(i));
+            }
+        }
+        for (int i = this.created.size() - 1; i >= 0; i--) {
+            if (!this.created.get(i).getObjectName().equalsIgnoreCase(CIMIndicationSubscriber.SUBSCRIPTION_CLASS)) {
+                this.delete(this.created.get(i));
+            }
+        }
+        this.created.clear();
+        this.handler = null;
+    }
+
+
+    /**
+     * Delete the instance, ignoring the broker errors: it could be gone already.
+     *
+     * @param path
+     */
+    private void delete(CIMObjectPath path) {
+        try {
+            this.transport.countOperation();
+            this.client.deleteInstance(path);
+        } catch (WBEMException ex) {
+            System.err.println(String.format("Unable to remove %s: %s", path.getObjectName(), ex.getLocalizedMessage()));
+        }
+    }
+
+
+    /**
+     * Get instance, that the indication is about.
+     * Embedded instance could come without the path, then it is made from the keys.
+     *
+     * @param indication
+     * @param namespace
+     * @return Instance or null, if this is not an instance indication.
+     */
+    public static CIMInstance getSourceInstance(CIMInstance indication, String namespace) {
+        Object value = indication.getPropertyValue(CIMIndicationSubscriber.SOURCE_INSTANCE);
+        if (!(value instanceof CIMInstance)) {
+            return null;
+        }
+
+        CIMInstance source = (CIMInstance) value;
+        CIMObjectPath path = source.getObjectPath();
+        if (path == null || path.getObjectName() == null || path.getKeys() == null || path.getKeys().length == 0) {
+            source = new CIMInstance(new CIMObjectPath(null, null, null, namespace, source.getClassName(), source.getKeys()),
+                                     source.getProperties());
+        }
+
+        return source;
+    }
+
+
+    /**
+     * Indication is about the deleted instance.
+     *
+     * @param indication
+     * @return
+     */
+    public static boolean isDeletion(CIMInstance indication) {
+        return CIMIndicationSubscriber.INSTANCE_DELETION.equalsIgnoreCase(indication.getClassName());
+    }
+}
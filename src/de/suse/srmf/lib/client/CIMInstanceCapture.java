@@ -0,0 +1,466 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client;
+
+import de.suse.srmf.lib.client.export.SRMFMessage;
+import de.suse.srmf.lib.client.export.SRMFUtils;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import javax.cim.CIMDataType;
+import javax.cim.CIMDateTime;
+import javax.cim.CIMInstance;
+import javax.cim.CIMObjectPath;
+import javax.cim.CIMProperty;
+import javax.wbem.CloseableIterator;
+import javax.wbem.WBEMException;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Captures CIM instances directly from the operation result into the CIM-XML document.
+ * Instances are taken one by one from the iterator, so there is no copy of the
+ * whole response as a string and no second parsing of it.
+ *
+ * The document has the same structure as the broker response,
+ * so the same XSL renderers are applied to it.
+ *
+ * @author bo
+ */
+public class CIMInstanceCapture {
+    public static final String OP_ENUMERATE_INSTANCES = "EnumerateInstances";
+    public static final String OP_EXEC_QUERY = "ExecQuery";
+    public static final String VALUE_MEANING = "MEANING"; // Attribute of VALUE with its ValueMap meaning.
+
+    private static final Random MESSAGE_ID = new Random();
+
+    private final Document document;
+    private final Element returnValue;
+    private final boolean withPath;
+    private final String hostname;
+    private final Map<String, CIMClassSchema> schemas;
+    private CIMSchemaCache schemaCache;
+    private String namespace;
+    private int count;
+
+    /**
+     * Constructor.
+     *
+     * @param operation Intrinsic method name: instances of ExecQuery are with the full path.
+     * @param hostname Hostname for the instance path, if the broker did not set one.
+     * @throws ParserConfigurationException
+     */
+    public CIMInstanceCapture(String operation, String hostname) throws ParserConfigurationException {
+        this.withPath = operation.equals(CIMInstanceCapture.OP_EXEC_QUERY);
+        this.hostname = hostname;
+        this.count = 0;
+        this.schemas = new HashMap<String, CIMClassSchema>();
+        this.document = SRMFUtils.getDocumentBuilder().newDocument();
+
+        Element cim = this.document.createElement("CIM");
+        cim.setAttribute("CIMVERSION", "2.0");
+        cim.setAttribute("DTDVERSION", "2.0");
+        this.document.appendChild(cim);
+
+        Element message = this.document.createElement("MESSAGE");
+        message.setAttribute("ID", String.valueOf(Math.abs(CIMInstanceCapture.MESSAGE_ID.nextInt())));
+        message.setAttribute("PROTOCOLVERSION", "1.0");
+        cim.appendChild(message);
+
+        Element response = this.document.createElement("IMETHODRESPONSE");
+        response.setAttribute("NAME", operation);
+        message.appendChild(this.document.createElement("SIMPLERSP")).appendChild(response);
+
+        this.returnValue = this.document.createElement("IRETURNVALUE");
+        response.appendChild(this.returnValue);
+    }
+
+
+    /**
+     * Decode enumerated values with the class definitions from the schema cache.
+     * Meaning of every mapped value is added to its VALUE element as MEANING attribute.
+     *
+     * @param schemaCache
+     * @param namespace Namespace of the instances.
+     */
+    public void setSchemaCache(CIMSchemaCache schemaCache, String namespace) {
+        this.schemaCache = schemaCache;
+        this.namespace = namespace;
+    }
+
+
+    /**
+     * Consume all instances from the iterator. The iterator is closed afterwards.
+     *
+     * @param instances
+     * @return
+     * @throws WBEMException
+     */
+    public CIMInstanceCapture capture(CloseableIterator<CIMInstance> instances) throws WBEMException {
+        try {
+            while (instances.hasNext()) {
+                this.add(instances.next());
+            }
+        } catch (RuntimeException ex) {
+            // Iterator fails at the broker error with the unchecked exception
+            if (instances.getWBEMException() != null) {
+                throw instances.getWBEMException();
+            }
+            throw ex;
+        } finally {
+            instances.close();
+        }
+
+        return this;
+    }
+
+
+    /**
+     * Add one instance.
+     *
+     * @param instance
+     */
+    public void add(CIMInstance instance) {
+        Element value;
+        if (this.withPath) {
+            value = this.document.createElement("VALUE.OBJECTWITHPATH");
+            value.appendChild(this.createInstancePath(instance.getObjectPath(), true));
+        } else {
+            value = this.document.createElement("VALUE.NAMEDINSTANCE");
+            value.appendChild(this.createInstanceName(instance.getObjectPath()));
+        }
+        value.appendChild(this.createInstance(instance));
+        this.returnValue.appendChild(value);
+        this.count++;
+    }
+
+
+    /**
+     * Flag the document as partial, if not all instances were captured.
+     */
+    public void setPartial() {
+        this.document.getDocumentElement().setAttribute(SRMFMessage.PARTIAL, "true");
+    }
+
+
+    /**
+     * Get captured document.
+     *
+     * @return
+     */
+    public Document getDocument() {
+        return this.document;
+    }
+
+
+    /**
+     * Amount of captured instances.
+     *
+     * @return
+     */
+    public int getCount() {
+        return this.count;
+    }
+
+
+    /**
+     * Create INSTANCEPATH or LOCALINSTANCEPATH element.
+     *
+     * @param path
+     * @param withHost
+     * @return
+     */
+    private Element createInstancePath(CIMObjectPath path, boolean withHost) {
+        Element instancePath = this.document.createElement(withHost ? "INSTANCEPATH" : "LOCALINSTANCEPATH");
+        Element localNamespacePath = this.document.createElement("LOCALNAMESPACEPATH");
+        if (path.getNamespace() != null) {
+            String[] namespaces = path.getNamespace().split("/");
+            for (int i = 0; i < namespaces.length; i++) {
+                if (!namespaces[i].isEmpty()) {
+                    Element namespace = this.document.createElement("NAMESPACE");
+                    namespace.setAttribute("NAME", namespaces[i]);
+                    localNamespacePath.appendChild(namespace);
+                }
+            }
+        }
+
+        if (withHost) {
+            Element namespacePath = this.document.createElement("NAMESPACEPATH");
+            Element host = this.document.createElement("HOST");
+            host.setTextContent(path.getHost() != null ? path.getHost() : this.hostname);
+            namespacePath.appendChild(host);
+            namespacePath.appendChild(localNamespacePath);
+            instancePath.appendChild(namespacePath);
+        } else {
+            instancePath.appendChild(localNamespacePath);
+        }
+        instancePath.appendChild(this.createInstanceName(path));
+
+        return instancePath;
+    }
+
+
+    /**
+     * Create INSTANCENAME element with the key bindings.
+     *
+     * @param path
+     * @return
+     */
+    private Element createInstanceName(CIMObjectPath path) {
+        Element instanceName = this.document.createElement("INSTANCENAME");
+        instanceName.setAttribute("CLASSNAME", path.getObjectName());
+        CIMProperty<?>[] keys = path.getKeys();
+        for (int i = 0; keys != null && i < keys.length; i++) {
+            Element keyBinding = this.document.createElement("KEYBINDING");
+            keyBinding.setAttribute("NAME", keys[i].getName());
+            if (keys[i].getValue() instanceof CIMObjectPath) {
+                keyBinding.appendChild(this.createReferenceValue((CIMObjectPath) keys[i].getValue()));
+            } else {
+                Element keyValue = this.document.createElement("KEYVALUE");
+                keyValue.setAttribute("VALUETYPE", CIMInstanceCapture.getKeyValueType(keys[i].getDataType()));
+                keyValue.setTextContent(CIMInstanceCapture.getValueText(keys[i].getValue()));
+                keyBinding.appendChild(keyValue);
+            }
+            instanceName.appendChild(keyBinding);
+        }
+
+        return instanceName;
+    }
+
+
+    /**
+     * Create VALUE.REFERENCE element.
+     *
+     * @param path
+     * @return
+     */
+    private Element createReferenceValue(CIMObjectPath path) {
+        Element reference = this.document.createElement("VALUE.REFERENCE");
+        if (path.getHost() != null) {
+            reference.appendChild(this.createInstancePath(path, true));
+        } else if (path.getNamespace() != null) {
+            reference.appendChild(this.createInstancePath(path, false));
+        } else {
+            reference.appendChild(this.createInstanceName(path));
+        }
+
+        return reference;
+    }
+
+
+    /**
+     * Create INSTANCE element with all the properties.
+     *
+     * @param instance
+     * @return
+     */
+    private Element createInstance(CIMInstance instance) {
+        Element element = this.document.createElement("INSTANCE");
+        element.setAttribute("CLASSNAME", instance.getClassName());
+        CIMClassSchema schema = this.getSchema(instance.getClassName());
+        CIMProperty<?>[] properties = instance.getProperties();
+        for (int i = 0; i < properties.length; i++) {
+            CIMClassSchema.SchemaProperty schemaProperty = schema != null ? schema.getProperty(properties[i].getName()) : null;
+            element.appendChild(this.createProperty(properties[i], schemaProperty != null ? schemaProperty.getValueMapTable() : null));
+        }
+
+        return element;
+    }
+
+
+    /**
+     * Get class definition for decoding. Every class is looked up only once per capture.
+     *
+     * @param className
+     * @return Definition or null, if there is no decoding or the class is not available.
+     */
+    private CIMClassSchema getSchema(String className) {
+        if (this.schemaCache == null || className == null) {
+            return null;
+        }
+
+        CIMClassSchema schema = this.schemas.get(className);
+        if (schema == null && !this.schemas.containsKey(className)) {
+            try {
+                schema = this.schemaCache.getClass(this.namespace, className);
+            } catch (WBEMException ex) {
+                schema = null; // Instances are taken as is
+            }
+            this.schemas.put(className, schema);
+        }
+
+        return schema;
+    }
+
+
+    /**
+     * Create PROPERTY, PROPERTY.ARRAY or PROPERTY.REFERENCE element.
+     *
+     * @param property
+     * @param valueMap Compiled ValueMap of the property or null.
+     * @return
+     */
+    private Element createProperty(CIMProperty<?> property, CIMValueMap valueMap) {
+        CIMDataType type = property.getDataType();
+        Object value = property.getValue();
+        Element element;
+        if (type != null && type.getType() == CIMDataType.REFERENCE) {
+            element = this.document.createElement("PROPERTY.REFERENCE");
+            if (type.getReferenceClassName() != null) {
+                element.setAttribute("REFERENCECLASS", type.getReferenceClassName());
+            }
+            if (value instanceof CIMObjectPath) {
+                element.appendChild(this.createReferenceValue((CIMObjectPath) value));
+            }
+        } else if (type != null && type.isArray()) {
+            element = this.document.createElement("PROPERTY.ARRAY");
+            element.setAttribute("TYPE", CIMInstanceCapture.getTypeName(type));
+            if (value instanceof Object[]) {
+                Object[] items = (Object[]) value;
+                Element array = this.document.createElement("VALUE.ARRAY");
+                for (int i = 0; i < items.length; i++) {
+                    if (items[i] == null) {
+                        array.appendChild(this.document.createElement("VALUE.NULL"));
+                    } else {
+                        Element item = this.document.createElement("VALUE");
+                        item.setTextContent(CIMInstanceCapture.getValueText(items[i]));
+                        this.setMeaning(item, valueMap, items[i]);
+                        array.appendChild(item);
+                    }
+                }
+                element.appendChild(array);
+            }
+        } else {
+            element = this.document.createElement("PROPERTY");
+            element.setAttribute("TYPE", CIMInstanceCapture.getTypeName(type));
+            if (value != null) {
+                Element valueElement = this.document.createElement("VALUE");
+                valueElement.setTextContent(CIMInstanceCapture.getValueText(value));
+                this.setMeaning(valueElement, valueMap, value);
+                element.appendChild(valueElement);
+            }
+        }
+        element.setAttribute("NAME", property.getName());
+        if (property.getOriginClass() != null) {
+            element.setAttribute("CLASSORIGIN", property.getOriginClass());
+        }
+        if (property.isPropagated()) {
+            element.setAttribute("PROPAGATED", "true");
+        }
+
+        return element;
+    }
+
+
+    /**
+     * Set meaning of the value, if it is mapped.
+     *
+     * @param valueElement
+     * @param valueMap
+     * @param value
+     */
+    private void setMeaning(Element valueElement, CIMValueMap valueMap, Object value) {
+        String meaning = valueMap != null ? valueMap.decode(value) : null;
+        if (meaning != null) {
+            valueElement.setAttribute(CIMInstanceCapture.VALUE_MEANING, meaning);
+        }
+    }
+
+
+    /**
+     * Get CIM-XML TYPE attribute of the data type.
+     *
+     * @param type
+     * @return
+     */
+    public static String getTypeName(CIMDataType type) {
+        if (type == null) {
+            return "string";
+        }
+
+        switch (type.getType()) {
+            case CIMDataType.UINT8: return "uint8";
+            case CIMDataType.SINT8: return "sint8";
+            case CIMDataType.UINT16: return "uint16";
+            case CIMDataType.SINT16: return "sint16";
+            case CIMDataType.UINT32: return "uint32";
+            case CIMDataType.SINT32: return "sint32";
+            case CIMDataType.UINT64: return "uint64";
+            case CIMDataType.SINT64: return "sint64";
+            case CIMDataType.BOOLEAN: return "boolean";
+            case CIMDataType.REAL32: return "real32";
+            case CIMDataType.REAL64: return "real64";
+            case CIMDataType.DATETIME: return "datetime";
+            case CIMDataType.CHAR16: return "char16";
+            case CIMDataType.REFERENCE: return "reference";
+            default: return "string";
+        }
+    }
+
+
+    /**
+     * Get VALUETYPE attribute of the key value.
+     *
+     * @param type
+     * @return
+     */
+    private static String getKeyValueType(CIMDataType type) {
+        String name = CIMInstanceCapture.getTypeName(type);
+        if (name.equals("boolean")) {
+            return "boolean";
+        } else if (name.startsWith("uint") || name.startsWith("sint") || name.startsWith("real")) {
+            return "numeric";
+        }
+
+        return "string";
+    }
+
+
+    /**
+     * Get text representation of the value as it is sent over the wire.
+     *
+     * @param value
+     * @return
+     */
+    public static String getValueText(Object value) {
+        if (value == null) {
+            return "";
+        } else if (value instanceof CIMDateTime) {
+            return ((CIMDateTime) value).getDateTimeString();
+        } else if (value instanceof Boolean) {
+            return ((Boolean) value) ? "TRUE" : "FALSE";
+        }
+
+        return value.toString();
+    }
+}
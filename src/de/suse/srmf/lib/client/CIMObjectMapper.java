@@ -31,12 +31,8 @@
 
 package de.suse.srmf.lib.client;
 
-import java.util.HashMap;
-import javax.cim.CIMClass;
-import javax.cim.CIMClassProperty;
+import java.util.List;
 import javax.cim.CIMObjectPath;
-import javax.cim.CIMQualifier;
-import javax.wbem.CloseableIterator;
 import javax.wbem.WBEMException;
 import javax.wbem.client.WBEMClient;
 
@@ -47,10 +43,12 @@ import javax.wbem.client.WBEMClient;
 public class CIMObjectMapper {
     private String namespace;
     private WBEMClient client;
+    private CIMSchemaCache schemaCache;
 
-    public CIMObjectMapper(WBEMClient client, String namespace) {
+    public CIMObjectMapper(WBEMClient client, String namespace, CIMSchemaCache schemaCache) {
         this.namespace = namespace;
         this.client = client;
+        this.schemaCache = schemaCache;
     }
 
     public void setNamespace(String namespace) {
@@ -61,43 +59,20 @@ public class CIMObjectMapper {
     /**
      * Get meaning of the property.
      * 
-     * @param value
      * @param property 
      */
-    private Object getDataMeaning(CIMClassProperty property) {
-        CIMQualifier[] qualifiers = property.getQualifiers();
-        String[] mapKeys = null;
-        String[] mapValues = null;
-        for (int j = 0; j < qualifiers.length; j++) {
-            CIMQualifier q = qualifiers[j];
-            if (q.getName().toLowerCase().equals("values")) {
-                mapValues = (String[]) q.getValue();
-            } else if (q.getName().toLowerCase().equals("valuemap")) {
-                mapKeys = (String[]) q.getValue();
-            }
-        }
-
-        HashMap meaningMap = new HashMap();
-        if (mapKeys != null && mapValues != null) {
-            if (mapKeys.length == mapValues.length) {
-                for (int i = 0; i < mapKeys.length; i++) {
-                    meaningMap.put(mapKeys[i], mapValues[i]);
-                }
-            } else {
-                System.err.println("Unable to extract map from the description: amount of keys is not amout of values.");
-            }
-        }
-        
-        if (property.getValue() != null) {
-            return meaningMap.get(property.getValue().toString());
-        } else {
+    private Object getDataMeaning(CIMClassSchema.SchemaProperty property) {
+        if (property.getDefaultValue() == null) {
             return "N/A";
         }
+
+        return property.getValueMapTable() != null ? property.getValueMapTable().decodeText(property.getDefaultValue()) : null;
     }
 
 
     /**
      * Explain a class.
+     * Names of the subclasses and their definitions are taken from the schema cache.
      * 
      * @param className
      * @throws WBEMException 
@@ -105,15 +80,15 @@ public class CIMObjectMapper {
     public void explainClass(String className) throws WBEMException {
         CIMObjectPath path = new CIMObjectPath(null, null, null, this.namespace, className, null);
         System.err.println("Path: " + path + ", namespace: " + this.namespace);
-        CloseableIterator<CIMClass> classes = this.client.enumerateClasses(path, true, true, true, true);
-        while (classes.hasNext()) {
-            CIMClass cls = classes.next();
-            System.err.println(cls.getName() + " - " + cls.getPropertyCount() + " properties, parent: " + cls.getSuperClassName());
-            CIMClassProperty[] cIMClassPropertys = cls.getProperties();
+        List<String> classNames = this.schemaCache.getSubclassNames(this.namespace, className);
+        for (int c = 0; c < classNames.size(); c++) {
+            CIMClassSchema cls = this.schemaCache.getClass(this.namespace, classNames.get(c));
+            List<CIMClassSchema.SchemaProperty> properties = cls.getProperties();
+            System.err.println(cls.getName() + " - " + properties.size() + " properties, parent: " + cls.getSuperClassName());
             System.err.println("    Status:");
-            for (int i = 0; i < cIMClassPropertys.length; i++) {
-                CIMClassProperty prop = cIMClassPropertys[i];
-                if (prop.getValue() != null) { // show all
+            for (int i = 0; i < properties.size(); i++) {
+                CIMClassSchema.SchemaProperty prop = properties.get(i);
+                if (prop.getDefaultValue() != null) { // show all
                     System.err.println("        " + prop.getName() + " is " + this.getDataMeaning(prop));
                 }
             }
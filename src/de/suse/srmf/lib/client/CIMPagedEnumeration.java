@@ -0,0 +1,163 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client;
+
+import java.util.NoSuchElementException;
+import javax.cim.CIMInstance;
+import javax.cim.UnsignedInteger32;
+import javax.wbem.CloseableIterator;
+import javax.wbem.WBEMException;
+import javax.wbem.client.EnumerateResponse;
+import javax.wbem.client.EnumerationContext;
+import javax.wbem.client.WBEMClient;
+
+/**
+ * Iterator over the result of the DMTF pull operation.
+ *
+ * The opening response carries the first page, the next page is pulled
+ * from the broker only when the current one is consumed. So the enumeration
+ * holds only one page of the broker response at the time. Instances, taken
+ * from it, are still collected by the capture into one document.
+ *
+ * @author bo
+ */
+public class CIMPagedEnumeration implements CloseableIterator<CIMInstance> {
+    private final WBEMClient client;
+    private final SRMFTransport transport;
+    private final UnsignedInteger32 pageSize;
+    private CloseableIterator<CIMInstance> page;
+    private EnumerationContext context;
+    private boolean end;
+    private WBEMException error;
+    private long deadline;
+
+    /**
+     * Constructor.
+     *
+     * @param client
+     * @param transport
+     * @param pageSize
+     * @param response Response of the opening operation.
+     */
+    public CIMPagedEnumeration(WBEMClient client, SRMFTransport transport, long pageSize, EnumerateResponse<CIMInstance> response) {
+        this.client = client;
+        this.transport = transport;
+        this.pageSize = new UnsignedInteger32(pageSize);
+        this.setPage(response);
+    }
+
+
+    /**
+     * Take the page of the response.
+     *
+     * @param response
+     */
+    private void setPage(EnumerateResponse<CIMInstance> response) {
+        this.page = response.getResponses();
+        this.context = response.getContext();
+        this.end = response.isEnd();
+    }
+
+
+    /**
+     * Do not pull any next page after the deadline.
+     *
+     * @param deadline Time in milliseconds or 0 for none.
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+
+    @Override
+    public boolean hasNext() {
+        while (this.error == null && !this.page.hasNext() && !this.end) {
+            this.page.close();
+            if (this.deadline > 0 && System.currentTimeMillis() > this.deadline) {
+                this.error = new WBEMException(WBEMException.CIM_ERR_FAILED, "Deadline exceeded.");
+                break; // Enumeration is closed on the broker afterwards
+            }
+            try {
+                this.transport.countOperation();
+                this.setPage(this.client.getInstancesWithPath(this.context, this.pageSize));
+            } catch (WBEMException ex) {
+                this.error = ex;
+                this.end = true;
+            }
+        }
+
+        if (this.error != null) {
+            throw new RuntimeException(this.error);
+        }
+
+        return this.page.hasNext();
+    }
+
+
+    @Override
+    public CIMInstance next() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        return this.page.next();
+    }
+
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+
+    /**
+     * Close the current page and the enumeration on the broker, if it was not pulled till the end.
+     */
+    @Override
+    public void close() {
+        this.page.close();
+        if (!this.end) {
+            this.end = true;
+            try {
+                this.client.closeEnumeration(this.context);
+            } catch (WBEMException ex) {
+                this.error = ex;
+            }
+        }
+    }
+
+
+    @Override
+    public WBEMException getWBEMException() {
+        return this.error != null ? this.error : this.page.getWBEMException();
+    }
+}
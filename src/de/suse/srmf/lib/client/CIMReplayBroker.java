@@ -0,0 +1,484 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import de.suse.srmf.lib.client.export.SRMFMessageDiff;
+import de.suse.srmf.lib.client.export.SRMFUtils;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.wbem.WBEMException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Stand-in CIM broker, that replays the recorded responses over CIM-XML.
+ *
+ * Instances of the class are taken from the recorded response (or stored
+ * .lmx message) named after the class, i.e. "cim_process.xml", and sent back
+ * in the shape the operation needs. Pull operations are answered as not
+ * supported, so the client falls back to the whole result in one response.
+ * Used to measure the throughput of snapshot and export without any real
+ * host: point the hosts of srmf.conf to it.
+ *
+ * Configuration in srmf.conf:
+ *
+ *     .srmf.replay.port = 5988
+ *     .srmf.replay.path = <directory with the recorded responses or one response for all>
+ *     .srmf.replay.default = <response for the classes without their own, none by default>
+ *     .srmf.replay.latency = 0
+ *     .srmf.replay.latency.jitter = 0
+ *     .srmf.replay.multiply = 1
+ *     .srmf.replay.errors.cim = 0
+ *     .srmf.replay.errors.http = 0
+ *
+ * Latency is in milliseconds per response, multiply repeats every recorded
+ * instance with its own key, errors are in percent of the requests.
+ *
+ * @author bo
+ */
+public class CIMReplayBroker implements HttpHandler {
+    public static final int DEFAULT_PORT = 5988;
+    public static final String DEFAULT_PATH = "examples";
+    private static final String OP_ENUMERATE_INSTANCES = "EnumerateInstances";
+    private static final String OP_ENUMERATE_INSTANCE_NAMES = "EnumerateInstanceNames";
+    private static final String OP_EXEC_QUERY = "ExecQuery";
+    private static final String OP_GET_CLASS = "GetClass";
+    private static final Pattern QUERY_CLASS = Pattern.compile("(?i)\\bFROM\\s+(\\w+)");
+
+    private final HttpServer server;
+    private final ExecutorService workers;
+    private final File path;
+    private final File defaultRecording;
+    private final int latency;
+    private final int jitter;
+    private final int multiply;
+    private final int cimErrors;
+    private final int httpErrors;
+    private final Random random;
+    private final Map<String, List<String[]>> recordings;
+    private final AtomicLong requests;
+    private final AtomicLong instances;
+    private final AtomicLong bytes;
+    private final AtomicLong errors;
+
+    /**
+     * Constructor.
+     *
+     * @param config
+     * @throws IOException
+     */
+    public CIMReplayBroker(SRMFConfig config) throws IOException {
+        this.path = new File(config.getItem(".srmf.replay.path", CIMReplayBroker.DEFAULT_PATH));
+        String defaultPath = config.getItem(".srmf.replay.default", null);
+        this.defaultRecording = defaultPath != null ? new File(defaultPath) : null;
+        this.latency = Integer.parseInt(config.getItem(".srmf.replay.latency", "0"));
+        this.jitter = Integer.parseInt(config.getItem(".srmf.replay.latency.jitter", "0"));
+        this.multiply = Math.max(1, Integer.parseInt(config.getItem(".srmf.replay.multiply", "1")));
+        this.cimErrors = Integer.parseInt(config.getItem(".srmf.replay.errors.cim", "0"));
+        this.httpErrors = Integer.parseInt(config.getItem(".srmf.replay.errors.http", "0"));
+        this.random = new Random();
+        this.recordings = new ConcurrentHashMap<String, List<String[]>>();
+        this.requests = new AtomicLong();
+        this.instances = new AtomicLong();
+        this.bytes = new AtomicLong();
+        this.errors = new AtomicLong();
+
+        this.workers = Executors.newCachedThreadPool();
+        this.server = HttpServer.create(new InetSocketAddress(Integer.parseInt(config.getItem(".srmf.replay.port",
+                                                                                             String.valueOf(CIMReplayBroker.DEFAULT_PORT)))),
+                                        0);
+        this.server.createContext("/", this);
+        this.server.setExecutor(this.workers);
+    }
+
+
+    /**
+     * Start serving.
+     */
+    public void start() {
+        this.server.start();
+    }
+
+
+    /**
+     * Stop serving.
+     */
+    public void stop() {
+        this.server.stop(0);
+        this.workers.shutdownNow();
+    }
+
+
+    /**
+     * Get port of the broker.
+     *
+     * @return
+     */
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+
+    /**
+     * Bytes sent to the clients since start.
+     *
+     * @return
+     */
+    public long getBytes() {
+        return this.bytes.get();
+    }
+
+
+    /**
+     * Print amount of requests, instances, bytes and injected errors.
+     *
+     * @param out
+     */
+    public void report(PrintStream out) {
+        out.println(String.format("Replay: %d requests, %d instances, %.1f MB sent, %d errors injected.",
+                                  this.requests.get(), this.instances.get(), this.bytes.get() / 1048576.0, this.errors.get()));
+    }
+
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            this.requests.incrementAndGet();
+            Document request = this.readRequest(exchange.getRequestBody());
+            this.delay();
+
+            int dice = this.random.nextInt(100);
+            if (dice < this.httpErrors) {
+                this.errors.incrementAndGet();
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+
+            Element message = (Element) request.getElementsByTagName("MESSAGE").item(0);
+            Element call = (Element) request.getElementsByTagName("IMETHODCALL").item(0);
+            String messageId = message != null ? message.getAttribute("ID") : "0";
+            String method = call != null ? call.getAttribute("NAME") : "";
+            String response;
+            if (dice < this.httpErrors + this.cimErrors) {
+                this.errors.incrementAndGet();
+                response = this.getError(WBEMException.CIM_ERR_FAILED, "Injected error.");
+            } else if (method.equals(CIMReplayBroker.OP_ENUMERATE_INSTANCES)
+                       || method.equals(CIMReplayBroker.OP_ENUMERATE_INSTANCE_NAMES)) {
+                response = this.getInstances(method, this.getParameter(call, "ClassName"), call);
+            } else if (method.equals(CIMReplayBroker.OP_EXEC_QUERY)) {
+                Matcher matcher = CIMReplayBroker.QUERY_CLASS.matcher(this.getParameter(call, "Query"));
+                response = this.getInstances(method, matcher.find() ? matcher.group(1) : "", call);
+            } else if (method.equals(CIMReplayBroker.OP_GET_CLASS)) {
+                response = this.getError(WBEMException.CIM_ERR_NOT_FOUND, "Classes are not recorded.");
+            } else {
+                response = this.getError(WBEMException.CIM_ERR_NOT_SUPPORTED, method + " is not replayed.");
+            }
+
+            this.send(exchange, String.format("<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+                                              + "<CIM CIMVERSION=\"2.0\" DTDVERSION=\"2.0\"><MESSAGE ID=\"%s\" PROTOCOLVERSION=\"1.0\">"
+                                              + "<SIMPLERSP><IMETHODRESPONSE NAME=\"%s\">%s</IMETHODRESPONSE></SIMPLERSP></MESSAGE></CIM>",
+                                              messageId, method, response));
+        } catch (Exception ex) {
+            Logger.getLogger(CIMReplayBroker.class.getName()).log(Level.SEVERE, null, ex);
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+
+    /**
+     * Parse the request.
+     *
+     * @param in
+     * @return
+     * @throws Exception
+     */
+    private Document readRequest(InputStream in) throws Exception {
+        try {
+            return SRMFUtils.getDocumentBuilder().parse(in);
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Wait the configured latency.
+     *
+     * @throws InterruptedException
+     */
+    private void delay() throws InterruptedException {
+        int wait = this.latency + (this.jitter > 0 ? this.random.nextInt(this.jitter + 1) : 0);
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+
+    /**
+     * Get value of the named parameter of the call.
+     *
+     * @param call
+     * @param name
+     * @return Class name or the text of the value.
+     */
+    private String getParameter(Element call, String name) {
+        NodeList params = call.getElementsByTagName("IPARAMVALUE");
+        for (int i = 0; i < params.getLength(); i++) {
+            Element param = (Element) params.item(i);
+            if (param.getAttribute("NAME").equalsIgnoreCase(name)) {
+                NodeList classNames = param.getElementsByTagName("CLASSNAME");
+                return classNames.getLength() > 0 ? ((Element) classNames.item(0)).getAttribute("NAME")
+                                                  : param.getTextContent().trim();
+            }
+        }
+
+        return "";
+    }
+
+
+    /**
+     * Get return value with the recorded instances in the shape of the operation.
+     *
+     * @param method
+     * @param className
+     * @param call
+     * @return
+     * @throws Exception
+     */
+    private String getInstances(String method, String className, Element call) throws Exception {
+        List<String[]> recorded = this.getRecording(className);
+        String namespacePath = "";
+        if (method.equals(CIMReplayBroker.OP_EXEC_QUERY)) {
+            NodeList localPath = call.getElementsByTagName("LOCALNAMESPACEPATH");
+            namespacePath = String.format("<NAMESPACEPATH><HOST>%s</HOST>%s</NAMESPACEPATH>", "localhost",
+                                          localPath.getLength() > 0 ? SRMFUtils.getXMLFragment(localPath.item(0)) : "");
+        }
+
+        StringBuilder value = new StringBuilder("<IRETURNVALUE>");
+        for (int i = 0; i < recorded.size(); i++) {
+            String[] instance = recorded.get(i);
+            if (method.equals(CIMReplayBroker.OP_ENUMERATE_INSTANCE_NAMES)) {
+                value.append(instance[0]);
+            } else if (method.equals(CIMReplayBroker.OP_EXEC_QUERY)) {
+                value.append("<VALUE.OBJECTWITHPATH><INSTANCEPATH>").append(namespacePath).append(instance[0])
+                     .append("</INSTANCEPATH>").append(instance[1]).append("</VALUE.OBJECTWITHPATH>");
+            } else {
+                value.append("<VALUE.NAMEDINSTANCE>").append(instance[0]).append(instance[1]).append("</VALUE.NAMEDINSTANCE>");
+            }
+        }
+        this.instances.addAndGet(recorded.size());
+
+        return value.append("</IRETURNVALUE>").toString();
+    }
+
+
+    /**
+     * Get error of the operation.
+     *
+     * @param code
+     * @param description
+     * @return
+     */
+    private String getError(int code, String description) {
+        return String.format("<ERROR CODE=\"%d\" DESCRIPTION=\"%s\"/>", code, description);
+    }
+
+
+    /**
+     * Get recorded instance names and instances of the class, multiplied.
+     * Recordings are read only once.
+     *
+     * @param className
+     * @return
+     * @throws Exception
+     */
+    private List<String[]> getRecording(String className) throws Exception {
+        String id = className.toLowerCase();
+        List<String[]> recorded = this.recordings.get(id);
+        if (recorded != null) {
+            return recorded;
+        }
+
+        recorded = new ArrayList<String[]>();
+        File recording = this.findRecording(id);
+        if (recording != null) {
+            NodeList values = SRMFMessageDiff.getInstances(SRMFUtils.getXMLDocumentFromStoredFile(recording));
+            for (int i = 0; i < values.getLength(); i++) {
+                Element value = (Element) values.item(i);
+                Element instanceName = (Element) value.getElementsByTagName("INSTANCENAME").item(0);
+                Element instance = (Element) value.getElementsByTagName("INSTANCE").item(0);
+                if (instanceName == null || instance == null) {
+                    continue;
+                }
+                recorded.add(new String[]{SRMFUtils.getXMLFragment(instanceName), SRMFUtils.getXMLFragment(instance)});
+                for (int copy = 1; copy < this.multiply; copy++) {
+                    Element copyName = (Element) instanceName.cloneNode(true);
+                    Element copyInstance = (Element) instance.cloneNode(true);
+                    this.setCopyKey(copyName, copyInstance, copy);
+                    recorded.add(new String[]{SRMFUtils.getXMLFragment(copyName), SRMFUtils.getXMLFragment(copyInstance)});
+                }
+            }
+        }
+        recorded = Collections.unmodifiableList(recorded);
+        this.recordings.put(id, recorded);
+
+        return recorded;
+    }
+
+
+    /**
+     * Find the recording of the class.
+     *
+     * @param id Class name in lower case.
+     * @return File or null, if nothing is recorded.
+     */
+    private File findRecording(String id) {
+        if (this.path.isFile()) {
+            return this.path;
+        }
+
+        String[] names = new String[]{id + ".lmx", id + ".xml", id.replace('_', '-') + ".lmx", id.replace('_', '-') + ".xml"};
+        for (int i = 0; i < names.length; i++) {
+            File recording = new File(this.path, names[i]);
+            if (recording.isFile()) {
+                return recording;
+            }
+        }
+
+        return this.defaultRecording != null && this.defaultRecording.isFile() ? this.defaultRecording : null;
+    }
+
+
+    /**
+     * Make the key of the copy unique: the value of the last key binding
+     * and of its property gets the number of the copy.
+     *
+     * @param instanceName
+     * @param instance
+     * @param copy
+     */
+    private void setCopyKey(Element instanceName, Element instance, int copy) {
+        NodeList bindings = instanceName.getElementsByTagName("KEYBINDING");
+        if (bindings.getLength() == 0) {
+            return;
+        }
+
+        Element binding = (Element) bindings.item(bindings.getLength() - 1);
+        NodeList keyValues = binding.getElementsByTagName("KEYVALUE");
+        if (keyValues.getLength() == 0) {
+            return;
+        }
+        String key = keyValues.item(0).getTextContent() + "-" + copy;
+        keyValues.item(0).setTextContent(key);
+
+        for (Node property = instance.getFirstChild(); property != null; property = property.getNextSibling()) {
+            if (property.getNodeName().equals("PROPERTY")
+                && ((Element) property).getAttribute("NAME").equalsIgnoreCase(binding.getAttribute("NAME"))) {
+                NodeList values = ((Element) property).getElementsByTagName("VALUE");
+                if (values.getLength() > 0) {
+                    values.item(0).setTextContent(key);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Send the response.
+     *
+     * @param exchange
+     * @param response
+     * @throws IOException
+     */
+    private void send(HttpExchange exchange, String response) throws IOException {
+        byte[] body = response.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=\"utf-8\"");
+        exchange.getResponseHeaders().set("CIMOperation", "MethodResponse");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+        this.bytes.addAndGet(body.length);
+    }
+
+
+    /**
+     * Main.
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        try {
+            final CIMReplayBroker broker = new CIMReplayBroker(SRMFConfig.initialize(args.length > 0 ? args[0] : null));
+            broker.start();
+            System.err.println(String.format("Replaying %s on port %d.", broker.path.getAbsolutePath(), broker.getPort()));
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    broker.stop();
+                    broker.report(System.err);
+                }
+            });
+            new CountDownLatch(1).await();
+        } catch (Exception ex) {
+            System.err.println("Error: " + ex.getLocalizedMessage());
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.cim.CIMClass;
+import javax.cim.CIMObjectPath;
+import javax.wbem.CloseableIterator;
+import javax.wbem.WBEMException;
+import javax.wbem.client.WBEMClient;
+
+/**
+ * On-disk cache of the CIM class definitions of one host.
+ *
+ * Definitions are loaded lazily: from the memory, then from the disk,
+ * and only then from the broker. Stored definition expires after TTL.
+ * All definitions of the namespace are dropped, once the schema version
+ * of the broker (Version qualifier of CIM_ManagedElement) has changed.
+ * It is checked once per namespace and run. Names of the subclasses
+ * are cached the same way, next to the class definitions.
+ *
+ * Layout: <path>/<host>/<namespace>/<class>.xml
+ *         <path>/<host>/<namespace>/<class>.subclasses
+ *
+ * Configuration in srmf.conf:
+ *
+ *     .srmf.schema.cache.path = /var/opt/srmf/schema
+ *     .srmf.schema.cache.ttl = 86400
+ *
+ * @author bo
+ */
+public class CIMSchemaCache {
+    public static final String DEFAULT_CACHE_PATH = "/var/opt/srmf/schema";
+    public static final long DEFAULT_TTL = 86400;
+    private static final String VERSION_CLASS = "CIM_ManagedElement";
+    private static final String VERSION_FILE = "schema.version";
+    private static final String SUBCLASSES_SUFFIX = ".subclasses";
+
+    private final WBEMClient client;
+    private final File path;
+    private final long ttl;
+    private final Map<String, CIMClassSchema> classes;
+    private final Map<String, Subclasses> subclasses;
+    private final Set<String> checkedNamespaces;
+
+    /**
+     * Names of all the subclasses of one class.
+     */
+    private static class Subclasses {
+        private final List<String> names;
+        private final long created;
+
+        public Subclasses(List<String> names, long created) {
+            this.names = Collections.unmodifiableList(names);
+            this.created = created;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param client
+     * @param hostId
+     * @param config
+     */
+    public CIMSchemaCache(WBEMClient client, String hostId, SRMFConfig config) {
+        this.client = client;
+        this.path = new File(config.getItem(".srmf.schema.cache.path", CIMSchemaCache.DEFAULT_CACHE_PATH), hostId);
+        this.ttl = Long.parseLong(config.getItem(".srmf.schema.cache.ttl", String.valueOf(CIMSchemaCache.DEFAULT_TTL))) * 1000;
+        this.classes = new ConcurrentHashMap<String, CIMClassSchema>();
+        this.subclasses = new ConcurrentHashMap<String, Subclasses>();
+        this.checkedNamespaces = Collections.synchronizedSet(new HashSet<String>());
+    }
+
+
+    /**
+     * Get the class definition.
+     *
+     * @param namespace
+     * @param className
+     * @return
+     * @throws WBEMException
+     */
+    public CIMClassSchema getClass(String namespace, String className) throws WBEMException {
+        String key = namespace + ":" + className.toLowerCase();
+        CIMClassSchema schema = this.classes.get(key);
+        if (schema != null && !this.isExpired(schema)) {
+            return schema;
+        }
+
+        this.checkVersion(namespace);
+        File schemaFile = this.getSchemaFile(namespace, className);
+        schema = null;
+        if (schemaFile.canRead()) {
+            try {
+                schema = CIMClassSchema.load(schemaFile);
+            } catch (Exception ex) {
+                Logger.getLogger(CIMSchemaCache.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+
+        if (schema == null || this.isExpired(schema)) {
+            schema = new CIMClassSchema(this.fetchClass(namespace, className));
+            try {
+                schema.save(schemaFile);
+            } catch (Exception ex) {
+                Logger.getLogger(CIMSchemaCache.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+        this.classes.put(key, schema);
+
+        return schema;
+    }
+
+
+    /**
+     * Get names of all the subclasses of the class (deep), without the class itself.
+     *
+     * @param namespace
+     * @param className
+     * @return
+     * @throws WBEMException
+     */
+    public List<String> getSubclassNames(String namespace, String className) throws WBEMException {
+        String key = namespace + ":" + className.toLowerCase();
+        Subclasses cached = this.subclasses.get(key);
+        if (cached != null && !this.isExpired(cached.created)) {
+            return cached.names;
+        }
+
+        this.checkVersion(namespace);
+        File subclassesFile = new File(this.getNamespacePath(namespace), className.toLowerCase() + CIMSchemaCache.SUBCLASSES_SUFFIX);
+        cached = null;
+        if (subclassesFile.canRead() && !this.isExpired(subclassesFile.lastModified())) {
+            try {
+                cached = new Subclasses(this.readNames(subclassesFile), subclassesFile.lastModified());
+            } catch (IOException ex) {
+                Logger.getLogger(CIMSchemaCache.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+
+        if (cached == null) {
+            List<String> names = new ArrayList<String>();
+            CloseableIterator<CIMObjectPath> classNames = this.client.enumerateClassNames(
+                    new CIMObjectPath(null, null, null, namespace, className, null), true);
+            try {
+                while (classNames.hasNext()) {
+                    names.add(classNames.next().getObjectName());
+                }
+            } finally {
+                classNames.close();
+            }
+            cached = new Subclasses(names, System.currentTimeMillis());
+            try {
+                this.writeNames(subclassesFile, names);
+            } catch (IOException ex) {
+                Logger.getLogger(CIMSchemaCache.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+        this.subclasses.put(key, cached);
+
+        return cached.names;
+    }
+
+
+    /**
+     * Drop all definitions of the namespace.
+     *
+     * @param namespace
+     */
+    public void invalidate(String namespace) {
+        String prefix = namespace + ":";
+        for (String key : this.classes.keySet()) {
+            if (key.startsWith(prefix)) {
+                this.classes.remove(key);
+            }
+        }
+        for (String key : this.subclasses.keySet()) {
+            if (key.startsWith(prefix)) {
+                this.subclasses.remove(key);
+            }
+        }
+
+        File[] files = this.getNamespacePath(namespace).listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                if (files[i].getName().endsWith(".xml") || files[i].getName().endsWith(CIMSchemaCache.SUBCLASSES_SUFFIX)) {
+                    files[i].delete();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Drop the namespace, if the schema version of the broker is not the cached one.
+     *
+     * @param namespace
+     */
+    private void checkVersion(String namespace) {
+        if (!this.checkedNamespaces.add(namespace)) {
+            return;
+        }
+
+        String version;
+        try {
+            version = new CIMClassSchema(this.client.getClass(
+                    new CIMObjectPath(null, null, null, namespace, CIMSchemaCache.VERSION_CLASS, null),
+                    true, true, false, new String[]{})).getVersion();
+        } catch (WBEMException ex) {
+            return; // No base schema, only TTL applies
+        }
+        if (version == null) {
+            return;
+        }
+
+        File versionFile = new File(this.getNamespacePath(namespace), CIMSchemaCache.VERSION_FILE);
+        try {
+            if (!version.equals(this.readVersion(versionFile))) {
+                this.invalidate(namespace);
+                if (!versionFile.getParentFile().mkdirs() && !versionFile.getParentFile().isDirectory()) {
+                    throw new IOException(String.format("Unable to initialize schema cache at %s",
+                                                        versionFile.getParentFile().getAbsolutePath()));
+                }
+                Writer out = new FileWriter(versionFile);
+                try {
+                    out.write(version);
+                } finally {
+                    out.close();
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(CIMSchemaCache.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+
+    /**
+     * Read the cached schema version.
+     *
+     * @param versionFile
+     * @return Version or null, if not cached yet.
+     * @throws IOException
+     */
+    private String readVersion(File versionFile) throws IOException {
+        if (!versionFile.canRead()) {
+            return null;
+        }
+
+        BufferedReader reader = new BufferedReader(new FileReader(versionFile));
+        try {
+            String version = reader.readLine();
+            return version != null ? version.trim() : null;
+        } finally {
+            reader.close();
+        }
+    }
+
+
+    /**
+     * Read the cached class names, one per line.
+     *
+     * @param namesFile
+     * @return
+     * @throws IOException
+     */
+    private List<String> readNames(File namesFile) throws IOException {
+        List<String> names = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(namesFile));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    names.add(line.trim());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return names;
+    }
+
+
+    /**
+     * Write the class names, one per line.
+     *
+     * @param namesFile
+     * @param names
+     * @throws IOException
+     */
+    private void writeNames(File namesFile, List<String> names) throws IOException {
+        if (!namesFile.getParentFile().mkdirs() && !namesFile.getParentFile().isDirectory()) {
+            throw new IOException(String.format("Unable to initialize schema cache at %s",
+                                                namesFile.getParentFile().getAbsolutePath()));
+        }
+        Writer out = new FileWriter(namesFile);
+        try {
+            for (int i = 0; i < names.size(); i++) {
+                out.write(names.get(i));
+                out.write("\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+
+    /**
+     * Get the class from the broker with all its properties and qualifiers.
+     *
+     * @param namespace
+     * @param className
+     * @return
+     * @throws WBEMException
+     */
+    private CIMClass fetchClass(String namespace, String className) throws WBEMException {
+        return this.client.getClass(new CIMObjectPath(null, null, null, namespace, className, null),
+                                    false, true, false, null);
+    }
+
+
+    /**
+     * Stored definition is expired.
+     *
+     * @param schema
+     * @return
+     */
+    private boolean isExpired(CIMClassSchema schema) {
+        return this.isExpired(schema.getCreated());
+    }
+
+
+    /**
+     * Entry, created at the given time, is expired.
+     *
+     * @param created
+     * @return
+     */
+    private boolean isExpired(long created) {
+        return this.ttl > 0 && System.currentTimeMillis() - created > this.ttl;
+    }
+
+
+    /**
+     * Get directory of the namespace.
+     *
+     * @param namespace
+     * @return
+     */
+    private File getNamespacePath(String namespace) {
+        return new File(this.path, namespace.replace('/', '_'));
+    }
+
+
+    /**
+     * Get file of the class definition.
+     *
+     * @param namespace
+     * @param className
+     * @return
+     */
+    private File getSchemaFile(String namespace, String className) {
+        return new File(this.getNamespacePath(namespace), className.toLowerCase() + ".xml");
+    }
+}
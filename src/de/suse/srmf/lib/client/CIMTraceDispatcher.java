@@ -0,0 +1,155 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.sblim.cimclient.CIMXMLTraceListener;
+import org.sblim.cimclient.internal.logging.LogAndTraceBroker;
+
+/**
+ * CIM-XML trace dispatcher.
+ *
+ * LogAndTraceBroker is one per JVM, so only one listener is installed for all
+ * the clients. The request is traced within the thread that performs the operation,
+ * so its MESSAGE ID is tied to the response handler bound to that thread.
+ * The response is then routed to the handler by the same MESSAGE ID.
+ *
+ * @author bo
+ */
+public final class CIMTraceDispatcher implements CIMXMLTraceListener {
+    private static final Pattern MESSAGE_ID = Pattern.compile("<MESSAGE\\s+ID\\s*=\\s*\"([^\"]*)\"");
+    private static CIMTraceDispatcher instance;
+    private final ThreadLocal<CIMResponseHandler> handlers;
+    private final Map<String, CIMResponseHandler> requests;
+
+    /**
+     * Handler of the CIM-XML response of one request.
+     */
+    public static interface CIMResponseHandler {
+        public void onResponse(String message);
+    }
+
+
+    private CIMTraceDispatcher() {
+        this.handlers = new ThreadLocal<CIMResponseHandler>();
+        this.requests = new ConcurrentHashMap<String, CIMResponseHandler>();
+    }
+
+
+    /**
+     * Get dispatcher instance. Registers the listener only once to the trace broker.
+     *
+     * @return
+     */
+    public static synchronized CIMTraceDispatcher getInstance() {
+        if (CIMTraceDispatcher.instance == null) {
+            CIMTraceDispatcher.instance = new CIMTraceDispatcher();
+            LogAndTraceBroker.getBroker().addCIMXMLTraceListener(CIMTraceDispatcher.instance);
+        }
+
+        return CIMTraceDispatcher.instance;
+    }
+
+
+    /**
+     * Bind response handler to the current thread.
+     *
+     * @param handler
+     */
+    public void bind(CIMResponseHandler handler) {
+        this.handlers.set(handler);
+    }
+
+
+    /**
+     * Release response handler from the current thread.
+     * All its pending requests are forgotten.
+     */
+    public void release() {
+        CIMResponseHandler handler = this.handlers.get();
+        this.handlers.remove();
+
+        // Requests of the handler that never got any response
+        if (handler != null) {
+            while (this.requests.values().remove(handler)) {
+            }
+        }
+    }
+
+
+    /**
+     * Get MESSAGE ID of the traced CIM-XML message.
+     *
+     * @param message
+     * @return
+     */
+    public static String getMessageId(String message) {
+        Matcher matcher = CIMTraceDispatcher.MESSAGE_ID.matcher(message);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+
+    /**
+     * Cut the CIM document out of the traced HTTP message.
+     *
+     * @param message
+     * @return
+     */
+    public static String getCIMDocument(String message) {
+        return "<?xml" + message.split("\\<\\?xml", 2)[1].split("</CIM>")[0] + "</CIM>";
+    }
+
+
+    @Override
+    public void traceCIMXML(Level level, String message, boolean isRequest) {
+        String messageId = CIMTraceDispatcher.getMessageId(message);
+        if (isRequest) {
+            CIMResponseHandler handler = this.handlers.get();
+            if (handler != null && messageId != null) {
+                this.requests.put(messageId, handler);
+            }
+            return;
+        }
+
+        CIMResponseHandler handler = messageId != null ? this.requests.remove(messageId) : null;
+        if (handler == null) {
+            handler = this.handlers.get();
+        }
+        if (handler != null) {
+            handler.onResponse(CIMTraceDispatcher.getCIMDocument(message));
+        }
+    }
+}
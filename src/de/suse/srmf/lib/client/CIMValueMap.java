@@ -0,0 +1,255 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ValueMap/Values qualifiers of one property, compiled into the lookup table.
+ *
+ * Integer keys are kept in the array, indexed by the value, if they are dense enough.
+ * Otherwise they are kept sorted and looked up by binary search. Ranges ("2..5", "..")
+ * and string keys are kept aside. The table is immutable and decoding
+ * does not allocate anything, so it can be shared and called per instance.
+ *
+ * @author bo
+ */
+public final class CIMValueMap {
+    private static final int DENSE_FACTOR = 4;
+    private static final int DENSE_MIN_SPAN = 16;
+    private static final int DENSE_MAX_SPAN = 0x10000;
+
+    private final long denseBase;
+    private final String[] dense;
+    private final long[] keys;
+    private final String[] keyValues;
+    private final long[] rangeFrom;
+    private final long[] rangeTo;
+    private final String[] rangeValues;
+    private final String otherwise;
+    private final Map<String, String> textValues;
+
+    /**
+     * Constructor.
+     *
+     * @param valueMap ValueMap qualifier.
+     * @param values Values qualifier.
+     */
+    public CIMValueMap(String[] valueMap, String[] values) {
+        Map<Long, String> numeric = new HashMap<Long, String>();
+        List<long[]> ranges = new ArrayList<long[]>();
+        List<String> rangeMeanings = new ArrayList<String>();
+        Map<String, String> text = new HashMap<String, String>();
+        String unmapped = null;
+
+        int length = Math.min(valueMap.length, values.length);
+        for (int i = 0; i < length; i++) {
+            String key = valueMap[i].trim();
+            if (key.equals("..")) {
+                unmapped = values[i]; // All the values, that are not mapped otherwise
+            } else if (key.contains("..")) {
+                String[] bounds = key.split("\\.\\.", -1);
+                long from = bounds[0].trim().isEmpty() ? Long.MIN_VALUE : CIMValueMap.parse(bounds[0].trim(), Long.MIN_VALUE);
+                long to = bounds.length < 2 || bounds[1].trim().isEmpty() ? Long.MAX_VALUE : CIMValueMap.parse(bounds[1].trim(), Long.MAX_VALUE);
+                ranges.add(new long[]{from, to});
+                rangeMeanings.add(values[i]);
+            } else if (CIMValueMap.isNumber(key)) {
+                Long numericKey = Long.valueOf(CIMValueMap.parse(key, 0));
+                if (!numeric.containsKey(numericKey)) {
+                    numeric.put(numericKey, values[i]);
+                }
+            } else {
+                text.put(key, values[i]);
+            }
+        }
+
+        // Sorted numeric keys
+        this.keys = new long[numeric.size()];
+        int idx = 0;
+        for (Long key : numeric.keySet()) {
+            this.keys[idx++] = key.longValue();
+        }
+        Arrays.sort(this.keys);
+        this.keyValues = new String[this.keys.length];
+        for (int i = 0; i < this.keys.length; i++) {
+            this.keyValues[i] = numeric.get(Long.valueOf(this.keys[i]));
+        }
+
+        // Dense keys go to the array
+        long span = this.keys.length > 0 ? this.keys[this.keys.length - 1] - this.keys[0] + 1 : 0;
+        if (span > 0 && span <= CIMValueMap.DENSE_MAX_SPAN &&
+            span <= Math.max(CIMValueMap.DENSE_MIN_SPAN, (long) this.keys.length * CIMValueMap.DENSE_FACTOR)) {
+            this.denseBase = this.keys[0];
+            this.dense = new String[(int) span];
+            for (int i = 0; i < this.keys.length; i++) {
+                this.dense[(int) (this.keys[i] - this.denseBase)] = this.keyValues[i];
+            }
+        } else {
+            this.denseBase = 0;
+            this.dense = null;
+        }
+
+        this.rangeFrom = new long[ranges.size()];
+        this.rangeTo = new long[ranges.size()];
+        for (int i = 0; i < ranges.size(); i++) {
+            this.rangeFrom[i] = ranges.get(i)[0];
+            this.rangeTo[i] = ranges.get(i)[1];
+        }
+        this.rangeValues = rangeMeanings.toArray(new String[rangeMeanings.size()]);
+        this.textValues = Collections.unmodifiableMap(text);
+        this.otherwise = unmapped;
+    }
+
+
+    /**
+     * Decode numeric value.
+     *
+     * @param value
+     * @return Meaning or null, if the value is not mapped.
+     */
+    public String decode(long value) {
+        if (this.dense != null) {
+            long offset = value - this.denseBase;
+            if (offset >= 0 && offset < this.dense.length && this.dense[(int) offset] != null) {
+                return this.dense[(int) offset];
+            }
+        } else {
+            int idx = Arrays.binarySearch(this.keys, value);
+            if (idx >= 0) {
+                return this.keyValues[idx];
+            }
+        }
+
+        for (int i = 0; i < this.rangeFrom.length; i++) {
+            if (value >= this.rangeFrom[i] && value <= this.rangeTo[i]) {
+                return this.rangeValues[i];
+            }
+        }
+
+        return this.otherwise;
+    }
+
+
+    /**
+     * Decode the value of the CIM property.
+     *
+     * @param value
+     * @return Meaning or null, if the value is not mapped.
+     */
+    public String decode(Object value) {
+        if (value instanceof Number) {
+            return this.decode(((Number) value).longValue());
+        } else if (value instanceof String) {
+            return this.decodeText((String) value);
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Decode the value, as it is written in the CIM-XML.
+     *
+     * @param text
+     * @return Meaning or null, if the value is not mapped.
+     */
+    public String decodeText(String text) {
+        if (text == null) {
+            return null;
+        }
+
+        String meaning = this.textValues.isEmpty() ? null : this.textValues.get(text);
+        if (meaning == null && CIMValueMap.isNumber(text)) {
+            meaning = this.decode(CIMValueMap.parse(text, 0));
+        }
+
+        return meaning;
+    }
+
+
+    /**
+     * Amount of mapped keys and ranges.
+     *
+     * @return
+     */
+    public int size() {
+        return this.keys.length + this.rangeFrom.length + this.textValues.size() + (this.otherwise != null ? 1 : 0);
+    }
+
+
+    /**
+     * Text is a decimal integer, with an optional sign.
+     *
+     * @param text
+     * @return
+     */
+    private static boolean isNumber(String text) {
+        int start = !text.isEmpty() && (text.charAt(0) == '-' || text.charAt(0) == '+') ? 1 : 0;
+        if (text.length() <= start || text.length() - start > 18) {
+            return false;
+        }
+        for (int i = start; i < text.length(); i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Parse decimal integer without creating any objects.
+     *
+     * @param text
+     * @param defaultValue Returned, if the text is not a number.
+     * @return
+     */
+    private static long parse(String text, long defaultValue) {
+        if (!CIMValueMap.isNumber(text)) {
+            return defaultValue;
+        }
+
+        boolean negative = text.charAt(0) == '-';
+        long value = 0;
+        for (int i = (negative || text.charAt(0) == '+') ? 1 : 0; i < text.length(); i++) {
+            value = value * 10 + (text.charAt(i) - '0');
+        }
+
+        return negative ? -value : value;
+    }
+}
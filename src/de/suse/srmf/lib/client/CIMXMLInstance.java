@@ -0,0 +1,439 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client;
+
+import de.suse.srmf.lib.client.export.SRMFUtils;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.xml.transform.TransformerException;
+import org.w3c.dom.Element;
+
+/**
+ * One CIM instance, as read from the CIM-XML by CIMXMLReader.
+ *
+ * Keeps the instance name with its key bindings, the properties with their
+ * values as they are written in the CIM-XML, and the canonical form of every
+ * property, so the key and the hash of the instance are the same as
+ * the fingerprints of the snapshot diff.
+ *
+ * @author bo
+ */
+public class CIMXMLInstance {
+    public static final String PROPERTY = "PROPERTY";
+    public static final String PROPERTY_ARRAY = "PROPERTY.ARRAY";
+    public static final String PROPERTY_REFERENCE = "PROPERTY.REFERENCE";
+    private static final String HASH_ALGORITHM = "SHA-1";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String elementName;
+    private String pathName;
+    private String className;
+    private String instanceClassName;
+    private String host;
+    private String namespace;
+    private final List<String> keyBindings;
+    private final List<String[]> keyValues;
+    private final List<Property> properties;
+    private boolean plain;
+    private boolean projected;
+    private String source;
+    private Element element;
+
+    /**
+     * Property of the instance.
+     */
+    public static class Property {
+        private final String name;
+        private final String type;
+        private final String kind;
+        private final List<String> values;
+        private List<String> meanings;
+        private List<String> attributes;
+        private boolean valueArray;
+        private String canonical;
+
+        public Property(String name, String type, String kind) {
+            this.name = name;
+            this.type = type;
+            this.kind = kind;
+            this.values = new ArrayList<String>(1);
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * CIM type, i.e. "uint16". References have none.
+         *
+         * @return
+         */
+        public String getType() {
+            return this.type;
+        }
+
+        /**
+         * Element of the property: PROPERTY, PROPERTY.ARRAY or PROPERTY.REFERENCE.
+         *
+         * @return
+         */
+        public String getKind() {
+            return this.kind;
+        }
+
+        public boolean isArray() {
+            return this.kind.equals(CIMXMLInstance.PROPERTY_ARRAY);
+        }
+
+        /**
+         * Values as they are written, null for VALUE.NULL.
+         * Reference is the VALUE.REFERENCE element.
+         *
+         * @return
+         */
+        public List<String> getValues() {
+            return Collections.unmodifiableList(this.values);
+        }
+
+        /**
+         * Get the value of the scalar property.
+         *
+         * @return Value or null.
+         */
+        public String getValue() {
+            return this.values.isEmpty() ? null : this.values.get(0);
+        }
+
+        /**
+         * Get decoded meaning of the value.
+         *
+         * @param index
+         * @return Meaning or null.
+         */
+        public String getMeaning(int index) {
+            return this.meanings != null ? this.meanings.get(index) : null;
+        }
+
+        /**
+         * Attributes of the property element besides the name and the type,
+         * i.e. CLASSORIGIN, as pairs of names and values.
+         *
+         * @return
+         */
+        public List<String> getAttributes() {
+            return this.attributes != null ? Collections.unmodifiableList(this.attributes) : Collections.<String>emptyList();
+        }
+
+        /**
+         * Array property has VALUE.ARRAY, even an empty one.
+         *
+         * @return
+         */
+        public boolean hasValueArray() {
+            return this.valueArray;
+        }
+
+        void setValueArray() {
+            this.valueArray = true;
+        }
+
+        void addValue(String value, String meaning) {
+            if (meaning != null && this.meanings == null) {
+                this.meanings = new ArrayList<String>();
+                for (int i = 0; i < this.values.size(); i++) {
+                    this.meanings.add(null);
+                }
+            }
+            this.values.add(value);
+            if (this.meanings != null) {
+                this.meanings.add(meaning);
+            }
+        }
+
+        void addAttribute(String name, String value) {
+            if (this.attributes == null) {
+                this.attributes = new ArrayList<String>(2);
+            }
+            this.attributes.add(name);
+            this.attributes.add(value);
+        }
+
+        void setCanonical(String canonical) {
+            this.canonical = canonical;
+        }
+    }
+
+
+    CIMXMLInstance(String elementName) {
+        this.elementName = elementName;
+        this.keyBindings = new ArrayList<String>();
+        this.keyValues = new ArrayList<String[]>();
+        this.properties = new ArrayList<Property>();
+        this.plain = true;
+    }
+
+
+    /**
+     * Element of the instance: VALUE.NAMEDINSTANCE or VALUE.OBJECTWITHPATH.
+     *
+     * @return
+     */
+    public String getElementName() {
+        return this.elementName;
+    }
+
+
+    /**
+     * First element of the instance: INSTANCEPATH, LOCALINSTANCEPATH or INSTANCENAME.
+     *
+     * @return
+     */
+    public String getPathName() {
+        return this.pathName;
+    }
+
+
+    /**
+     * Class name of the instance name.
+     *
+     * @return
+     */
+    public String getClassName() {
+        return this.className;
+    }
+
+
+    /**
+     * Class name of the INSTANCE element.
+     *
+     * @return
+     */
+    public String getInstanceClassName() {
+        return this.instanceClassName;
+    }
+
+
+    /**
+     * Host of the instance path or null.
+     *
+     * @return
+     */
+    public String getHost() {
+        return this.host;
+    }
+
+
+    /**
+     * Namespace of the instance path, i.e. "root/cimv2", or null.
+     *
+     * @return
+     */
+    public String getNamespace() {
+        return this.namespace;
+    }
+
+
+    public List<Property> getProperties() {
+        return Collections.unmodifiableList(this.properties);
+    }
+
+
+    /**
+     * Key bindings with the key values: name, VALUETYPE (or empty) and the value.
+     * Key bindings with references are not in the list.
+     *
+     * @return
+     */
+    public List<String[]> getKeyValues() {
+        return Collections.unmodifiableList(this.keyValues);
+    }
+
+
+    /**
+     * Instance has nothing else, but the instance path and the properties with values:
+     * no qualifiers, references in the key bindings or unknown attributes.
+     * Such instance is completely described by its model.
+     *
+     * @return
+     */
+    public boolean isPlain() {
+        return this.plain;
+    }
+
+
+    /**
+     * Instance has only the properties of the projection of the reader.
+     *
+     * @return
+     */
+    public boolean isProjected() {
+        return this.projected;
+    }
+
+
+    /**
+     * Get key of the instance: class name with the key bindings, sorted by name.
+     *
+     * @return Key or empty string, if the instance has no name.
+     */
+    public String getKey() {
+        if (this.className == null) {
+            return "";
+        }
+
+        List<String> bindings = new ArrayList<String>(this.keyBindings);
+        Collections.sort(bindings);
+        StringBuilder key = new StringBuilder(this.className);
+        for (int i = 0; i < bindings.size(); i++) {
+            key.append(i == 0 ? '.' : ',').append(bindings.get(i));
+        }
+
+        return key.toString();
+    }
+
+
+    /**
+     * Get hash of the properties in the canonical form.
+     *
+     * @return
+     */
+    public String getHash() {
+        if (this.projected) {
+            throw new IllegalStateException(String.format("Instance %s is projected, its hash is unknown.", this.getKey()));
+        }
+        String[] canonical = new String[this.properties.size()];
+        for (int i = 0; i < canonical.length; i++) {
+            canonical[i] = this.properties.get(i).canonical;
+        }
+        Arrays.sort(canonical);
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance(CIMXMLInstance.HASH_ALGORITHM);
+            for (int i = 0; i < canonical.length; i++) {
+                digest.update(canonical[i].getBytes("UTF-8"));
+                digest.update((byte) '\n');
+            }
+
+            byte[] data = digest.digest();
+            char[] hex = new char[data.length * 2];
+            for (int i = 0; i < data.length; i++) {
+                hex[i * 2] = CIMXMLInstance.HEX[(data[i] >> 4) & 0x0f];
+                hex[i * 2 + 1] = CIMXMLInstance.HEX[data[i] & 0x0f];
+            }
+
+            return new String(hex);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+
+    /**
+     * Get CIM-XML of the instance (VALUE.NAMEDINSTANCE or VALUE.OBJECTWITHPATH),
+     * if the reader has kept it.
+     *
+     * @return Source or null.
+     * @throws TransformerException
+     */
+    public String getSource() throws TransformerException {
+        if (this.source == null && this.element != null) {
+            return SRMFUtils.getXMLFragment(this.element);
+        }
+
+        return this.source;
+    }
+
+
+    void setPathName(String pathName) {
+        this.pathName = pathName;
+    }
+
+
+    void setClassName(String className) {
+        this.className = className;
+    }
+
+
+    void setInstanceClassName(String instanceClassName) {
+        this.instanceClassName = instanceClassName;
+    }
+
+
+    void setHost(String host) {
+        this.host = host;
+    }
+
+
+    void addNamespace(String name) {
+        this.namespace = this.namespace == null ? name : this.namespace + "/" + name;
+    }
+
+
+    void addKeyBinding(String name, String valueType, String value) {
+        this.keyBindings.add(name.toLowerCase() + "=" + value);
+        if (valueType != null) {
+            this.keyValues.add(new String[]{name, valueType, value});
+        }
+    }
+
+
+    void addProperty(Property property) {
+        this.properties.add(property);
+    }
+
+
+    void setPlain(boolean plain) {
+        this.plain = plain;
+    }
+
+
+    void setProjected(boolean projected) {
+        this.projected = projected;
+    }
+
+
+    void setSource(String source) {
+        this.source = source;
+    }
+
+
+    void setElement(Element element) {
+        this.element = element;
+    }
+}
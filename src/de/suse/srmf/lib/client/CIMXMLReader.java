@@ -0,0 +1,730 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client;
+
+import de.suse.srmf.lib.client.export.SRMFMessage;
+import de.suse.srmf.lib.client.export.SRMFUtils;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Streaming reader of the CIM-XML instances.
+ *
+ * Reads the message one instance (VALUE.NAMEDINSTANCE or VALUE.OBJECTWITHPATH)
+ * at a time and passes it to the handler, so only one instance is kept
+ * in the memory, not the whole document. Reads the stored files and
+ * streams with StAX, and the documents, that are already parsed, by walking
+ * their tree: both give exactly the same instances.
+ *
+ * @author bo
+ */
+public class CIMXMLReader {
+    public static final String VALUE_NAMEDINSTANCE = "VALUE.NAMEDINSTANCE";
+    public static final String VALUE_OBJECTWITHPATH = "VALUE.OBJECTWITHPATH";
+    private static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    // Factories are not guaranteed to be thread-safe
+    private static final ThreadLocal<XMLInputFactory> FACTORY = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+            if (factory.isPropertySupported(CIMXMLReader.REPORT_CDATA)) {
+                factory.setProperty(CIMXMLReader.REPORT_CDATA, true); // Separate from the text, as in the parsed document
+            }
+
+            return factory;
+        }
+    };
+
+    private final boolean keepSource;
+    private Set<String> projection;
+    private CIMXMLInstanceHandler handler;
+    private boolean partial;
+    private String operation;
+    private int count;
+    private int depth;
+    private final StringBuilder text;
+
+    // Instance being read
+    private CIMXMLInstance instance;
+    private int instanceDepth;
+    private StringBuilder source;
+    private StringBuilder host;
+    private int nameDepth;
+    private int bindingDepth;
+    private String bindingName;
+    private String bindingType;
+    private StringBuilder binding;
+    private boolean keyValue;
+    private int propertiesDepth;
+    private CIMXMLInstance.Property property;
+    private int propertyDepth;
+    private int arrayDepth;
+    private StringBuilder canonical;
+    private StringBuilder value;
+    private int valueDepth;
+    private String meaning;
+    private StringBuilder reference;
+    private int referenceDepth;
+    private int skipDepth;
+
+    /**
+     * Handler of the instances, that are read.
+     */
+    public static interface CIMXMLInstanceHandler {
+        public void onInstance(CIMXMLInstance instance) throws Exception;
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param keepSource Keep CIM-XML of every instance.
+     */
+    public CIMXMLReader(boolean keepSource) {
+        this.keepSource = keepSource;
+        this.text = new StringBuilder();
+    }
+
+
+    /**
+     * Constructor of the reader, that does not keep the sources.
+     */
+    public CIMXMLReader() {
+        this(false);
+    }
+
+
+    /**
+     * Read only the given properties of the instances and skip the rest.
+     * Projected instances have no hash, as the canonical form is not built.
+     *
+     * @param properties Property names or null for all of them.
+     */
+    public void setProjection(Collection<String> properties) {
+        this.projection = properties != null ? new HashSet<String>(properties) : null;
+    }
+
+
+    /**
+     * Read all the instances of the stream.
+     *
+     * @param in
+     * @param handler
+     * @return Amount of the instances.
+     * @throws Exception
+     */
+    public int read(InputStream in, CIMXMLInstanceHandler handler) throws Exception {
+        this.begin(handler);
+        XMLStreamReader reader = CIMXMLReader.FACTORY.get().createXMLStreamReader(in);
+        try {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        String[] attributes = new String[reader.getAttributeCount() * 2];
+                        for (int i = 0; i < reader.getAttributeCount(); i++) {
+                            attributes[i * 2] = CIMXMLReader.getName(reader.getAttributeName(i));
+                            attributes[i * 2 + 1] = reader.getAttributeValue(i);
+                        }
+                        this.startElement(CIMXMLReader.getName(reader.getName()), attributes, null);
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        this.endElement(CIMXMLReader.getName(reader.getName()));
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.SPACE:
+                        this.text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        break;
+                    case XMLStreamConstants.CDATA:
+                        this.flushText();
+                        this.text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        this.flushText(true);
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return this.finish();
+    }
+
+
+    /**
+     * Read all the instances of the stored message file, compressed (.lmx) or not.
+     *
+     * @param file
+     * @param handler
+     * @return Amount of the instances.
+     * @throws Exception
+     */
+    public int read(File file, CIMXMLInstanceHandler handler) throws Exception {
+        InputStream in = SRMFUtils.openStoredFile(file);
+        try {
+            return this.read(in, handler);
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Read all the instances of the document or element, that is already parsed.
+     * Sources of the instances are their elements.
+     *
+     * @param node
+     * @param handler
+     * @return Amount of the instances.
+     * @throws Exception
+     */
+    public int read(Node node, CIMXMLInstanceHandler handler) throws Exception {
+        this.begin(handler);
+        if (node.getNodeType() == Node.DOCUMENT_NODE) {
+            node = ((Document) node).getDocumentElement();
+        }
+        if (node != null && node.getNodeType() == Node.ELEMENT_NODE) {
+            this.walk((Element) node);
+        }
+
+        return this.finish();
+    }
+
+
+    /**
+     * Read one instance element.
+     *
+     * @param element VALUE.NAMEDINSTANCE or VALUE.OBJECTWITHPATH element.
+     * @return
+     * @throws Exception
+     */
+    public static CIMXMLInstance getInstance(Element element) throws Exception {
+        final CIMXMLInstance[] result = new CIMXMLInstance[1];
+        new CIMXMLReader().read(element, new CIMXMLInstanceHandler() {
+            @Override
+            public void onInstance(CIMXMLInstance instance) {
+                if (result[0] == null) {
+                    result[0] = instance;
+                }
+            }
+        });
+
+        return result[0];
+    }
+
+
+    /**
+     * The message has only a part of the instances.
+     *
+     * @return
+     */
+    public boolean isPartial() {
+        return this.partial;
+    }
+
+
+    /**
+     * Name of the intrinsic method of the response, i.e. "EnumerateInstances".
+     *
+     * @return Name or null.
+     */
+    public String getOperation() {
+        return this.operation;
+    }
+
+
+    /**
+     * Reset the reader for the next message.
+     *
+     * @param handler
+     */
+    private void begin(CIMXMLInstanceHandler handler) {
+        this.handler = handler;
+        this.partial = false;
+        this.operation = null;
+        this.count = 0;
+        this.depth = 0;
+        this.text.setLength(0);
+        this.resetInstance();
+    }
+
+
+    /**
+     * Done with the message.
+     *
+     * @return Amount of the instances.
+     */
+    private int finish() {
+        this.handler = null;
+        this.resetInstance();
+
+        return this.count;
+    }
+
+
+    /**
+     * Forget the instance being read.
+     */
+    private void resetInstance() {
+        this.instance = null;
+        this.source = null;
+        this.host = null;
+        this.nameDepth = 0;
+        this.binding = null;
+        this.keyValue = false;
+        this.propertiesDepth = 0;
+        this.property = null;
+        this.arrayDepth = 0;
+        this.canonical = null;
+        this.value = null;
+        this.reference = null;
+        this.skipDepth = 0;
+    }
+
+
+    /**
+     * Walk the element as the stream of events.
+     *
+     * @param element
+     * @throws Exception
+     */
+    private void walk(Element element) throws Exception {
+        NamedNodeMap attributeNodes = element.getAttributes();
+        String[] attributes = new String[attributeNodes.getLength() * 2];
+        for (int i = 0; i < attributeNodes.getLength(); i++) {
+            attributes[i * 2] = attributeNodes.item(i).getNodeName();
+            attributes[i * 2 + 1] = attributeNodes.item(i).getNodeValue();
+        }
+        this.startElement(element.getNodeName(), attributes, element);
+
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                this.walk((Element) child);
+            } else if (child.getNodeType() == Node.TEXT_NODE || child.getNodeType() == Node.CDATA_SECTION_NODE) {
+                this.text.append(child.getNodeValue());
+                this.flushText(child.getNodeType() == Node.CDATA_SECTION_NODE);
+            }
+        }
+
+        this.endElement(element.getNodeName());
+    }
+
+
+    /**
+     * Start of the element.
+     *
+     * @param name
+     * @param attributes Pairs of names and values.
+     * @param element Element of the parsed document or null.
+     */
+    private void startElement(String name, String[] attributes, Element element) {
+        this.flushText();
+        this.depth++;
+        if (this.depth == 1) {
+            this.partial = Boolean.parseBoolean(CIMXMLReader.getAttribute(attributes, SRMFMessage.PARTIAL));
+        }
+
+        if (this.instance == null) {
+            if (this.operation == null && name.equals("IMETHODRESPONSE")) {
+                this.operation = CIMXMLReader.getAttribute(attributes, "NAME");
+            }
+            if (!name.equals(CIMXMLReader.VALUE_NAMEDINSTANCE) && !name.equals(CIMXMLReader.VALUE_OBJECTWITHPATH)) {
+                return;
+            }
+
+            this.instance = new CIMXMLInstance(name);
+            this.instance.setProjected(this.projection != null);
+            this.instanceDepth = this.depth;
+            if (this.keepSource && element != null) {
+                this.instance.setElement(element);
+            } else if (this.keepSource) {
+                this.source = new StringBuilder();
+            }
+        }
+
+        if (this.source != null) {
+            CIMXMLReader.writeStart(name, attributes, this.source);
+        }
+        if (this.skipDepth > 0) {
+            return;
+        }
+
+        // Key value is the text, the rest of the key binding is in the canonical form
+        if (this.binding != null && this.depth == this.bindingDepth + 1 && name.equals("KEYVALUE")) {
+            this.keyValue = true;
+            this.bindingType = CIMXMLReader.getAttribute(attributes, "VALUETYPE");
+            this.checkAttributes(attributes, "VALUETYPE");
+        } else if (this.binding != null && !this.keyValue) {
+            this.instance.setPlain(false);
+        }
+        if (this.binding != null && !this.keyValue) {
+            CIMXMLReader.canonicalize(name, attributes, this.binding);
+        }
+
+        if (this.depth == this.instanceDepth + 1 && this.instance.getPathName() == null) {
+            this.instance.setPathName(name);
+        }
+
+        if (this.reference != null) {
+            CIMXMLReader.writeStart(name, attributes, this.reference);
+        } else if (this.nameDepth == 0 && name.equals("INSTANCENAME")) {
+            this.nameDepth = this.depth;
+            this.instance.setClassName(CIMXMLReader.getAttribute(attributes, "CLASSNAME"));
+        } else if (this.nameDepth > 0 && this.depth == this.nameDepth + 1 && name.equals("KEYBINDING")) {
+            this.binding = new StringBuilder();
+            this.bindingName = CIMXMLReader.getAttribute(attributes, "NAME");
+            this.bindingType = null;
+            this.bindingDepth = this.depth;
+        } else if (this.nameDepth == 0 && name.equals("HOST")) {
+            this.host = new StringBuilder();
+        } else if (this.nameDepth == 0 && name.equals("NAMESPACE")) {
+            this.instance.addNamespace(CIMXMLReader.getAttribute(attributes, "NAME"));
+        } else if (this.propertiesDepth == 0 && name.equals("INSTANCE")) {
+            this.propertiesDepth = this.depth;
+            this.instance.setInstanceClassName(CIMXMLReader.getAttribute(attributes, "CLASSNAME"));
+        } else if (this.propertiesDepth > 0 && this.depth == this.propertiesDepth + 1 && name.startsWith(CIMXMLInstance.PROPERTY)) {
+            String propertyName = CIMXMLReader.getAttribute(attributes, "NAME");
+            if (this.projection != null && !this.projection.contains(propertyName)) {
+                this.skipDepth = this.depth;
+                return;
+            }
+            this.property = new CIMXMLInstance.Property(propertyName, CIMXMLReader.getAttribute(attributes, "TYPE"), name);
+            for (int i = 0; i < attributes.length; i += 2) {
+                if (!attributes[i].equals("NAME") && !attributes[i].equals("TYPE")) {
+                    this.property.addAttribute(attributes[i], attributes[i + 1]);
+                }
+            }
+            this.propertyDepth = this.depth;
+            this.canonical = this.projection == null ? new StringBuilder(propertyName.toLowerCase()).append('\u0000') : null;
+        } else if (this.property != null && this.value == null) {
+            this.startValue(name, attributes);
+        } else if (this.propertiesDepth > 0 && this.property == null || this.value != null) {
+            this.instance.setPlain(false); // Qualifiers and the like are not in the instance model
+        }
+
+        if (this.canonical != null) {
+            CIMXMLReader.canonicalize(name, attributes, this.canonical);
+        }
+    }
+
+
+    /**
+     * Start of the element inside the property.
+     *
+     * @param name
+     * @param attributes
+     */
+    private void startValue(String name, String[] attributes) {
+        String kind = this.property.getKind();
+        if (this.depth == this.propertyDepth + 1 && name.equals("VALUE.ARRAY") && kind.equals(CIMXMLInstance.PROPERTY_ARRAY)) {
+            this.arrayDepth = this.depth;
+            this.property.setValueArray();
+            this.checkAttributes(attributes);
+        } else if (this.arrayDepth > 0 && this.depth == this.arrayDepth + 1 && name.equals("VALUE.NULL")) {
+            this.property.addValue(null, null);
+            this.checkAttributes(attributes);
+        } else if (name.equals("VALUE") && (this.arrayDepth > 0 ? this.depth == this.arrayDepth + 1
+                                                                 : this.depth == this.propertyDepth + 1
+                                                                   && kind.equals(CIMXMLInstance.PROPERTY))) {
+            this.value = new StringBuilder();
+            this.valueDepth = this.depth;
+            this.meaning = CIMXMLReader.getAttribute(attributes, CIMInstanceCapture.VALUE_MEANING);
+            this.checkAttributes(attributes, CIMInstanceCapture.VALUE_MEANING);
+        } else if (this.depth == this.propertyDepth + 1 && name.equals("VALUE.REFERENCE") && kind.equals(CIMXMLInstance.PROPERTY_REFERENCE)) {
+            this.reference = new StringBuilder();
+            this.referenceDepth = this.depth;
+            CIMXMLReader.writeStart(name, attributes, this.reference);
+        } else {
+            this.instance.setPlain(false);
+        }
+    }
+
+
+    /**
+     * Attributes, that are not known to the instance model, keep the instance only as the source.
+     *
+     * @param attributes
+     * @param known
+     */
+    private void checkAttributes(String[] attributes, String... known) {
+        for (int i = 0; i < attributes.length; i += 2) {
+            if (!Arrays.asList(known).contains(attributes[i])) {
+                this.instance.setPlain(false);
+            }
+        }
+    }
+
+
+    /**
+     * End of the element.
+     *
+     * @param name
+     * @throws Exception
+     */
+    private void endElement(String name) throws Exception {
+        this.flushText();
+        if (this.instance == null) {
+            this.depth--;
+            return;
+        }
+
+        if (this.source != null) {
+            this.source.append("</").append(name).append('>');
+        }
+        if (this.skipDepth > 0) {
+            if (this.depth == this.skipDepth) {
+                this.skipDepth = 0;
+            }
+            this.depth--;
+            return;
+        }
+        if (this.canonical != null) {
+            this.canonical.append('/');
+        }
+        if (this.reference != null) {
+            this.reference.append("</").append(name).append('>');
+        }
+        if (this.binding != null && !this.keyValue && this.depth > this.bindingDepth) {
+            this.binding.append('/');
+        }
+        if (this.keyValue && this.depth == this.bindingDepth + 1) {
+            this.keyValue = false;
+        }
+
+        if (this.value != null && this.depth == this.valueDepth) {
+            this.property.addValue(this.value.toString(), this.meaning.isEmpty() ? null : this.meaning);
+            this.value = null;
+        } else if (this.reference != null && this.depth == this.referenceDepth) {
+            this.property.addValue(this.reference.toString(), null);
+            this.reference = null;
+        } else if (this.property != null && this.depth == this.propertyDepth) {
+            if (this.property.getKind().equals(CIMXMLInstance.PROPERTY) && this.property.getValues().size() > 1) {
+                this.instance.setPlain(false);
+            }
+            this.property.setCanonical(this.canonical != null ? this.canonical.toString() : null);
+            this.instance.addProperty(this.property);
+            this.property = null;
+            this.canonical = null;
+            this.arrayDepth = 0;
+        } else if (this.binding != null && this.depth == this.bindingDepth) {
+            this.instance.addKeyBinding(this.bindingName, this.bindingType, this.binding.toString());
+            this.binding = null;
+        } else if (this.host != null) {
+            this.instance.setHost(this.host.toString());
+            this.host = null;
+        } else if (this.depth == this.nameDepth) {
+            this.nameDepth = -1;
+        } else if (this.depth == this.propertiesDepth) {
+            this.propertiesDepth = -1;
+        } else if (this.depth == this.instanceDepth) {
+            CIMXMLInstance done = this.instance;
+            if (this.source != null) {
+                done.setSource(this.source.toString());
+            }
+            this.resetInstance();
+            this.count++;
+            this.handler.onInstance(done);
+        }
+
+        this.depth--;
+    }
+
+
+    /**
+     * Pass the collected text to the instance being read.
+     */
+    private void flushText() {
+        this.flushText(false);
+    }
+
+
+    /**
+     * Pass the collected text to the instance being read.
+     * Canonical form has every text trimmed, as the whitespace of the XML is not the data.
+     *
+     * @param cdata Text is the CDATA section.
+     */
+    private void flushText(boolean cdata) {
+        if (this.text.length() == 0) {
+            return;
+        }
+
+        String data = this.text.toString();
+        this.text.setLength(0);
+        if (this.instance == null) {
+            return;
+        }
+
+        if (this.source != null && cdata) {
+            this.source.append("<![CDATA[").append(data).append("]]>");
+        } else if (this.source != null) {
+            CIMXMLReader.escape(data, this.source);
+        }
+        if (this.skipDepth > 0) {
+            return;
+        }
+        String trimmed = data.trim();
+        if (this.canonical != null) {
+            this.canonical.append(trimmed);
+        }
+        if (this.binding != null) {
+            this.binding.append(this.keyValue ? data : trimmed);
+        }
+
+        if (this.reference != null) {
+            CIMXMLReader.escape(data, this.reference);
+        } else if (this.value != null) {
+            this.value.append(data);
+        } else if (this.host != null) {
+            this.host.append(data);
+        } else if (!this.keyValue && !trimmed.isEmpty()) {
+            this.instance.setPlain(false);
+        }
+    }
+
+
+    /**
+     * Write start of the element.
+     *
+     * @param name
+     * @param attributes
+     * @param buffer
+     */
+    private static void writeStart(String name, String[] attributes, StringBuilder buffer) {
+        buffer.append('<').append(name);
+        for (int i = 0; i < attributes.length; i += 2) {
+            buffer.append(' ').append(attributes[i]).append("=\"");
+            CIMXMLReader.escape(attributes[i + 1], buffer);
+            buffer.append('"');
+        }
+        buffer.append('>');
+    }
+
+
+    /**
+     * Write start of the element in the canonical form: name and sorted attributes.
+     * Decoded meanings of the values are skipped, they only follow the values.
+     *
+     * @param name
+     * @param attributes
+     * @param buffer
+     */
+    private static void canonicalize(String name, String[] attributes, StringBuilder buffer) {
+        buffer.append('<').append(name);
+        String[] pairs = new String[attributes.length / 2];
+        int length = 0;
+        for (int i = 0; i < attributes.length; i += 2) {
+            if (!attributes[i].equals(CIMInstanceCapture.VALUE_MEANING)) {
+                pairs[length++] = attributes[i] + "=" + attributes[i + 1];
+            }
+        }
+        Arrays.sort(pairs, 0, length);
+        for (int i = 0; i < length; i++) {
+            buffer.append(' ').append(pairs[i]);
+        }
+        buffer.append('>');
+    }
+
+
+    /**
+     * Get attribute value by the name.
+     *
+     * @param attributes
+     * @param name
+     * @return Value or empty string, if there is no such attribute.
+     */
+    private static String getAttribute(String[] attributes, String name) {
+        for (int i = 0; i < attributes.length; i += 2) {
+            if (attributes[i].equals(name)) {
+                return attributes[i + 1];
+            }
+        }
+
+        return "";
+    }
+
+
+    /**
+     * Get qualified name.
+     *
+     * @param name
+     * @return
+     */
+    private static String getName(QName name) {
+        return name.getPrefix() == null || name.getPrefix().isEmpty() ? name.getLocalPart()
+                                                                       : name.getPrefix() + ":" + name.getLocalPart();
+    }
+
+
+    /**
+     * Escape text or attribute value of the XML.
+     *
+     * @param data
+     * @param buffer
+     */
+    private static void escape(String data, StringBuilder buffer) {
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            switch (c) {
+                case '&':
+                    buffer.append("&amp;");
+                    break;
+                case '<':
+                    buffer.append("&lt;");
+                    break;
+                case '>':
+                    buffer.append("&gt;");
+                    break;
+                case '"':
+                    buffer.append("&quot;");
+                    break;
+                default:
+                    buffer.append(c);
+            }
+        }
+    }
+}
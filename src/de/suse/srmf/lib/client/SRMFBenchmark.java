@@ -0,0 +1,393 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client;
+
+import de.suse.srmf.lib.client.export.ExportDispatcher;
+import de.suse.srmf.lib.client.export.SRMFMessage;
+import de.suse.srmf.lib.client.export.SRMFMessageDiff;
+import de.suse.srmf.lib.client.export.SRMFRenderMap;
+import de.suse.srmf.lib.client.export.SRMFRenderer;
+import de.suse.srmf.lib.client.export.SRMFUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.w3c.dom.Document;
+
+/**
+ * Throughput of snapshot and export against the replay broker.
+ *
+ * The broker is started in the same JVM, all the hosts of the configuration
+ * should point to its port. Every round runs the snapshot and/or export
+ * on all the hosts, and is measured in hosts per minute and MB per second
+ * of the CIM-XML, that the broker has sent:
+ *
+ *     $ java -cp srmf.jar de.suse.srmf.lib.client.SRMFBenchmark \
+ *           --config=bench.conf --snapshot --export=all --rounds=3
+ *
+ * Memory of the instances of a stored message, as DOM and in the compact form,
+ * is measured without the broker:
+ *
+ *     $ java -cp srmf.jar de.suse.srmf.lib.client.SRMFBenchmark \
+ *           --footprint=examples/cim-process.xml --copies=100
+ *
+ * Native renderers are compared to their stylesheets on a stored message:
+ *
+ *     $ java -cp srmf.jar de.suse.srmf.lib.client.SRMFBenchmark \
+ *           --config=bench.conf --renders=examples/cim-process.xml --rounds=200
+ *
+ * @author bo
+ */
+public class SRMFBenchmark {
+    public static final int DEFAULT_ROUNDS = 1;
+    public static final int DEFAULT_COPIES = 50;
+
+    private final SRMFConfig setup;
+    private final SRMFRenderMap renderMap;
+    private final List<String> hosts;
+    private final CIMReplayBroker broker;
+    private final List<List> results;
+    private int workers;
+    private String namespace;
+
+    /**
+     * Constructor.
+     *
+     * @param config
+     * @param renderMap
+     * @param hosts
+     * @param broker
+     */
+    public SRMFBenchmark(SRMFConfig config, SRMFRenderMap renderMap, List<String> hosts, CIMReplayBroker broker) {
+        this.setup = config;
+        this.renderMap = renderMap;
+        this.hosts = hosts;
+        this.broker = broker;
+        this.workers = Integer.parseInt(config.getItem(".srmf.fleet.workers", String.valueOf(SRMFFleet.DEFAULT_WORKERS)));
+        this.results = new ArrayList<List>();
+
+        List<String> header = new ArrayList<String>();
+        header.add("Run");
+        header.add("Hosts");
+        header.add("Failed");
+        header.add("Time, ms");
+        header.add("Hosts/min");
+        header.add("MB");
+        header.add("MB/s");
+        this.results.add(header);
+    }
+
+
+    /**
+     * Set amount of hosts processed at once.
+     *
+     * @param workers
+     */
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+
+    /**
+     * Set the model namespace for all the clients.
+     *
+     * @param namespace
+     */
+    public void setNamespace(String namespace) {
+        this.namespace = namespace;
+    }
+
+
+    /**
+     * Run the task on all the hosts and measure it.
+     *
+     * @param name
+     * @param task
+     * @throws InterruptedException
+     */
+    public void measure(String name, SRMFFleet.SRMFFleetTask task) throws InterruptedException {
+        SRMFFleet fleet = new SRMFFleet(this.setup, this.renderMap, this.hosts, this.workers);
+        fleet.setNamespace(this.namespace);
+
+        long sent = this.broker.getBytes();
+        long start = System.currentTimeMillis();
+        int failed = fleet.run(task);
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        double megabytes = (this.broker.getBytes() - sent) / 1048576.0;
+
+        List<String> row = new ArrayList<String>();
+        row.add(name);
+        row.add(String.valueOf(this.hosts.size()));
+        row.add(String.valueOf(failed));
+        row.add(String.valueOf(elapsed));
+        row.add(String.format("%.1f", this.hosts.size() * 60000.0 / elapsed));
+        row.add(String.format("%.2f", megabytes));
+        row.add(String.format("%.2f", megabytes * 1000.0 / elapsed));
+        this.results.add(row);
+    }
+
+
+    /**
+     * Print the measurements of all the runs.
+     *
+     * @param out
+     */
+    public void report(PrintStream out) {
+        SRMFUtils.printTable(this.results, out);
+        this.broker.report(out);
+    }
+
+
+    /**
+     * Measure heap, that the copies of the message take as DOM and as compact instances.
+     * All nodes of the DOM are visited, as the diff and the renders do,
+     * so the deferred nodes are expanded.
+     *
+     * @param message
+     * @param copies
+     * @param out
+     * @throws Exception
+     */
+    public static void footprint(File message, int copies, PrintStream out) throws Exception {
+        List<Object> held = new ArrayList<Object>();
+        long base = SRMFBenchmark.getUsedMemory();
+        int instances = 0;
+        for (int i = 0; i < copies; i++) {
+            Document document = SRMFUtils.getXMLDocumentFromStoredFile(message);
+            SRMFUtils.expandDocument(document);
+            instances = SRMFMessageDiff.getInstances(document).getLength();
+            held.add(document);
+        }
+        long dom = SRMFBenchmark.getUsedMemory() - base;
+        held.clear();
+
+        base = SRMFBenchmark.getUsedMemory();
+        for (int i = 0; i < copies; i++) {
+            final List<CIMCompactInstance> compact = new ArrayList<CIMCompactInstance>();
+            new CIMXMLReader(true).read(message, new CIMXMLReader.CIMXMLInstanceHandler() {
+                @Override
+                public void onInstance(CIMXMLInstance instance) throws Exception {
+                    compact.add(CIMCompactInstance.valueOf(instance));
+                }
+            });
+            held.add(compact);
+        }
+        long packed = SRMFBenchmark.getUsedMemory() - base;
+
+        long total = Math.max(1, (long) instances * copies);
+        List<List> table = new ArrayList<List>();
+        List<String> header = new ArrayList<String>();
+        header.add("Form");
+        header.add("Instances");
+        header.add("MB");
+        header.add("Bytes/instance");
+        table.add(header);
+        String[] forms = new String[]{"DOM", "compact"};
+        long[] sizes = new long[]{dom, packed};
+        for (int i = 0; i < forms.length; i++) {
+            List<String> row = new ArrayList<String>();
+            row.add(forms[i]);
+            row.add(String.valueOf(total));
+            row.add(String.format("%.2f", sizes[i] / 1048576.0));
+            row.add(String.valueOf(sizes[i] / total));
+            table.add(row);
+        }
+        SRMFUtils.printTable(table, out);
+        out.println(String.format("Compact form takes %.1fx less memory than DOM", (double) dom / Math.max(1, packed)));
+        held.clear();
+    }
+
+
+    private static long getUsedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+
+    /**
+     * Render the message with every native renderer and with its stylesheet, and compare them.
+     * The message is rebuilt from its instances first, so both get the same document.
+     *
+     * @param renderers Directory of the stylesheets.
+     * @param message
+     * @param rounds
+     * @param out
+     * @throws Exception
+     */
+    public static void renders(File renderers, File message, int rounds, PrintStream out) throws Exception {
+        SRMFRenderMap renderMap = new SRMFRenderMap(renderers);
+        renderMap.setNativeRenderers(true);
+        SRMFMessage stored = new SRMFMessage(null, null, null, null, SRMFUtils.getXMLDocumentFromStoredFile(message));
+        Document document = new SRMFMessage(null, null, null, null, CIMInstanceCapture.OP_ENUMERATE_INSTANCES,
+                                            stored.getInstances(), stored.isPartial()).getDocument();
+        SRMFUtils.expandDocument(document);
+
+        List<List> table = new ArrayList<List>();
+        List<String> header = new ArrayList<String>();
+        header.add("Render");
+        header.add("XSLT, ms");
+        header.add("Native, ms");
+        header.add("Speed-up");
+        header.add("Output");
+        table.add(header);
+
+        File[] styles = renderers.listFiles();
+        if (styles == null) {
+            throw new Exception(String.format("Unable to read %s", renderers.getAbsolutePath()));
+        }
+        Arrays.sort(styles);
+        for (File style : styles) {
+            String renderId = style.getName().replaceAll("\\.xsl$", "");
+            SRMFRenderer renderer = renderMap.getRenderer(renderId);
+            if (renderer == null || renderId.equals(style.getName())) {
+                continue;
+            }
+
+            ByteArrayOutputStream xslt = new ByteArrayOutputStream();
+            StringWriter rendered = new StringWriter();
+            for (int i = 0; i < Math.max(1, rounds / 10); i++) { // Warm up
+                SRMFUtils.xproc(document, style, xslt);
+                ExportDispatcher.render(document, renderer, renderId, rendered);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                xslt.reset();
+                SRMFUtils.xproc(document, style, xslt);
+            }
+            long transformed = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                rendered.getBuffer().setLength(0);
+                ExportDispatcher.render(document, renderer, renderId, rendered);
+            }
+            long natively = System.nanoTime() - start;
+
+            List<String> row = new ArrayList<String>();
+            row.add(renderId);
+            row.add(String.format("%.1f", transformed / 1000000.0));
+            row.add(String.format("%.1f", natively / 1000000.0));
+            row.add(String.format("%.1fx", (double) transformed / Math.max(1, natively)));
+            row.add(xslt.toString("UTF-8").equals(rendered.toString()) ? "same" : "differs");
+            table.add(row);
+        }
+        SRMFUtils.printTable(table, out);
+    }
+
+
+    /**
+     * Main.
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        CIMReplayBroker broker = null;
+        try {
+            final Map<String, String[]> params = SRMFUtils.getArgs(args, "snapshot");
+            if (params.get("footprint") != null) {
+                SRMFBenchmark.footprint(new File(params.get("footprint")[0]),
+                                        params.get("copies") != null ? Integer.parseInt(params.get("copies")[0]) : SRMFBenchmark.DEFAULT_COPIES,
+                                        System.err);
+                return;
+            }
+            if (params.get("renders") != null) {
+                SRMFConfig config = SRMFConfig.initialize(params.get("config") != null ? params.get("config")[0] : null);
+                SRMFBenchmark.renders(new File(config.getItem(".srmf.manifest.renderers", SRMFRenderMap.DEFAUILT_SRMF_RENDER_PATH)),
+                                      new File(params.get("renders")[0]),
+                                      params.get("rounds") != null ? Integer.parseInt(params.get("rounds")[0]) : SRMFBenchmark.DEFAULT_COPIES,
+                                      System.err);
+                return;
+            }
+            if (!params.containsKey("snapshot") && !params.containsKey("export")) {
+                System.err.println("Usage: [--config=<path>] [--hostname=<host,...|all>] [--snapshot] [--export=<destination,...|all>]"
+                                   + " [--rounds=<n>] [--workers=<n>]\n"
+                                   + "       --footprint=<message> [--copies=<n>]\n"
+                                   + "       [--config=<path>] --renders=<message> [--rounds=<n>]");
+                System.exit(0);
+            }
+
+            SRMFConfig config = SRMFConfig.initialize(params.get("config") != null ? params.get("config")[0] : null);
+            broker = new CIMReplayBroker(config);
+            broker.start();
+
+            SRMFBenchmark benchmark = new SRMFBenchmark(config, CIMClientLib.loadRenderMap(config, null),
+                                                        SRMFFleet.resolveHosts(config, params.get("hostname") != null
+                                                                                       ? params.get("hostname")
+                                                                                       : new String[]{SRMFFleet.HOSTS_ALL}),
+                                                        broker);
+            benchmark.setNamespace(params.get("namespace") != null ? params.get("namespace")[0] : "root/cimv2");
+            if (params.get("workers") != null) {
+                benchmark.setWorkers(Integer.parseInt(params.get("workers")[0]));
+            }
+
+            int rounds = params.get("rounds") != null ? Integer.parseInt(params.get("rounds")[0]) : SRMFBenchmark.DEFAULT_ROUNDS;
+            for (int round = 1; round <= rounds; round++) {
+                if (params.containsKey("snapshot")) {
+                    benchmark.measure("snapshot #" + round, new SRMFFleet.SRMFFleetTask() {
+                        @Override
+                        public void run(CIMClientLib client) throws Exception {
+                            client.doManifestSnapshot();
+                        }
+                    });
+                }
+                if (params.containsKey("export")) {
+                    benchmark.measure("export #" + round, new SRMFFleet.SRMFFleetTask() {
+                        @Override
+                        public void run(CIMClientLib client) throws Exception {
+                            client.doExportToDestination(params.get("export"), params.get("output-path"));
+                        }
+                    });
+                }
+            }
+
+            benchmark.report(System.err);
+            SRMFTransport.getInstance().report(System.err);
+            SRMFTransport.getInstance().shutdown();
+        } catch (Exception ex) {
+            System.err.println("Error: " + ex.getLocalizedMessage());
+        } finally {
+            if (broker != null) {
+                broker.stop();
+            }
+        }
+    }
+}
@@ -36,8 +36,11 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -126,6 +129,19 @@ public final class SRMFConfig {
     }
 
 
+    /**
+     * Get IDs of all configured hosts.
+     * 
+     * @return 
+     */
+    public List<String> getHosts() {
+        List<String> ids = new ArrayList<String>(this.hosts.keySet());
+        Collections.sort(ids);
+
+        return Collections.unmodifiableList(ids);
+    }
+
+
     /**
      * Get port of the client host.
      * 
@@ -0,0 +1,429 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client;
+
+import de.suse.srmf.lib.client.export.SRMFRenderMap;
+import de.suse.srmf.lib.client.export.SRMFUtils;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-running mode with the snapshot scheduler.
+ *
+ * Configuration, render map and the transport with its pooled connections
+ * are loaded once and kept warm between the runs: idle clients are kept at least
+ * till the next run of the longest interval. Every host gets its own
+ * snapshot and export jobs, and every provider with its own interval gets
+ * a separate snapshot job per host. A job is never run twice at once: the next
+ * run is scheduled after the previous one has finished. First runs are spread
+ * over the splay, each next run is shifted by the random jitter, so the brokers
+ * are not all hit at once.
+ *
+ * Configuration in srmf.conf (seconds, 0 disables the job):
+ *
+ *     .srmf.daemon.snapshot.interval = 3600
+ *     .srmf.daemon.snapshot.interval.<host> = 600
+ *     .srmf.daemon.provider.interval.<provider> = 300
+ *     .srmf.daemon.export = <destination,...|all>
+ *     .srmf.daemon.export.interval = 0
+ *     .srmf.daemon.export.path = /var/opt/srmf/export
+ *     .srmf.daemon.jitter = 10 (percent of the interval)
+ *     .srmf.daemon.splay = 60
+ *     .srmf.daemon.workers = 8
+ *     .srmf.daemon.report = 3600
+ *
+ * @author bo
+ */
+public class SRMFDaemon {
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 3600;
+    public static final long DEFAULT_EXPORT_INTERVAL = 0;
+    public static final int DEFAULT_JITTER = 10;
+    public static final long DEFAULT_SPLAY = 60;
+    public static final long DEFAULT_REPORT_INTERVAL = 3600;
+    private static final long SHUTDOWN_GRACE = 60;
+
+    private final SRMFConfig setup;
+    private final SRMFRenderMap renderMap;
+    private final List<String> hosts;
+    private final List<SRMFJob> jobs;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final Random random;
+    private final CountDownLatch stopped;
+    private final int jitter;
+    private final long splay;
+    private String namespace;
+    private boolean debugMode;
+
+    /**
+     * Scheduled job on one host with its timings.
+     */
+    private abstract class SRMFJob implements Runnable {
+        private final String title;
+        private final String host;
+        private final long interval;
+        private int runs;
+        private int failures;
+        private long last;
+        private long min;
+        private long max;
+        private long total;
+
+        public SRMFJob(String title, String host, long interval) {
+            this.title = title;
+            this.host = host;
+            this.interval = interval;
+        }
+
+        protected abstract void execute(CIMClientLib client) throws Exception;
+
+        @Override
+        public void run() {
+            long start = System.currentTimeMillis();
+            boolean failed = false;
+            try {
+                CIMClientLib client = new CIMClientLib(this.host, SRMFDaemon.this.setup, SRMFDaemon.this.renderMap);
+                try {
+                    client.setNamespace(SRMFDaemon.this.namespace);
+                    client.setTraceCrashes(SRMFDaemon.this.debugMode);
+                    this.execute(client);
+                } finally {
+                    client.close();
+                }
+            } catch (Exception ex) {
+                failed = true;
+                System.err.println(String.format("%s: failed: %s", this.getName(), ex.getLocalizedMessage()));
+                if (SRMFDaemon.this.debugMode) {
+                    ex.printStackTrace();
+                }
+            }
+
+            long elapsed = System.currentTimeMillis() - start;
+            this.record(elapsed, failed);
+            long next = SRMFDaemon.this.schedule(this, SRMFDaemon.this.getNextDelay(this.interval));
+            if (!failed) {
+                System.err.println(String.format("%s: done in %d ms, next in %d s", this.getName(), elapsed, next / 1000));
+            }
+        }
+
+        public String getName() {
+            return String.format("%s/%s", this.host, this.title);
+        }
+
+        public long getInterval() {
+            return this.interval;
+        }
+
+        private synchronized void record(long elapsed, boolean failed) {
+            this.last = elapsed;
+            this.min = this.runs == 0 ? elapsed : Math.min(this.min, elapsed);
+            this.max = Math.max(this.max, elapsed);
+            this.total += elapsed;
+            this.runs++;
+            if (failed) {
+                this.failures++;
+            }
+        }
+
+        public synchronized List<String> getTimings() {
+            List<String> row = new ArrayList<String>();
+            row.add(this.getName());
+            row.add(String.valueOf(this.runs));
+            row.add(String.valueOf(this.failures));
+            row.add(String.valueOf(this.last));
+            row.add(String.valueOf(this.min));
+            row.add(String.valueOf(this.runs > 0 ? this.total / this.runs : 0));
+            row.add(String.valueOf(this.max));
+
+            return row;
+        }
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param config
+     * @param renderMap
+     * @param hosts
+     */
+    public SRMFDaemon(SRMFConfig config, SRMFRenderMap renderMap, List<String> hosts) {
+        this.setup = config;
+        this.renderMap = renderMap;
+        this.hosts = new ArrayList<String>(hosts);
+        this.jobs = new ArrayList<SRMFJob>();
+        this.random = new Random();
+        this.stopped = new CountDownLatch(1);
+        this.jitter = Math.max(0, Math.min(100, Integer.parseInt(config.getItem(".srmf.daemon.jitter",
+                                                                                String.valueOf(SRMFDaemon.DEFAULT_JITTER)))));
+        this.splay = Long.parseLong(config.getItem(".srmf.daemon.splay", String.valueOf(SRMFDaemon.DEFAULT_SPLAY))) * 1000;
+        this.scheduler = new ScheduledThreadPoolExecutor(Math.max(1, Integer.parseInt(
+                config.getItem(".srmf.daemon.workers", config.getItem(".srmf.fleet.workers",
+                                                                      String.valueOf(SRMFFleet.DEFAULT_WORKERS))))));
+        this.scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+
+    /**
+     * Set the model namespace for all the clients.
+     *
+     * @param namespace
+     */
+    public void setNamespace(String namespace) {
+        this.namespace = namespace;
+    }
+
+
+    /**
+     * Show fully printed tracebacks, if errors occurs.
+     *
+     * @param debug
+     */
+    public void setTraceCrashes(boolean debug) {
+        this.debugMode = debug;
+    }
+
+
+    /**
+     * Get interval of the job in milliseconds, per host if configured.
+     *
+     * @param key
+     * @param host
+     * @param defaultValue
+     * @return
+     */
+    private long getInterval(String key, String host, long defaultValue) {
+        return Long.parseLong(this.setup.getItem(key + "." + host,
+                                                 this.setup.getItem(key, String.valueOf(defaultValue)))) * 1000;
+    }
+
+
+    /**
+     * Create jobs of all the hosts.
+     */
+    private void createJobs() {
+        // Providers on their own schedules
+        final List<SRMFRenderMap.SRMFMapProvider> hostProviders = new ArrayList<SRMFRenderMap.SRMFMapProvider>();
+        List<SRMFRenderMap.SRMFMapProvider> ownProviders = new ArrayList<SRMFRenderMap.SRMFMapProvider>();
+        List<SRMFRenderMap.SRMFMapProvider> providers = this.renderMap.getProviders();
+        for (int i = 0; i < providers.size(); i++) {
+            if (this.setup.getItem(".srmf.daemon.provider.interval." + providers.get(i).getId(), null) != null) {
+                ownProviders.add(providers.get(i));
+            } else {
+                hostProviders.add(providers.get(i));
+            }
+        }
+
+        final String destination = this.setup.getItem(".srmf.daemon.export", null);
+        final String exportPath = this.setup.getItem(".srmf.daemon.export.path", null);
+        for (int i = 0; i < this.hosts.size(); i++) {
+            String host = this.hosts.get(i);
+            this.jobs.add(new SRMFJob("snapshot", host, this.getInterval(".srmf.daemon.snapshot.interval", host,
+                                                                         SRMFDaemon.DEFAULT_SNAPSHOT_INTERVAL)) {
+                @Override
+                protected void execute(CIMClientLib client) throws Exception {
+                    client.doManifestSnapshot(hostProviders);
+                }
+            });
+
+            for (int p = 0; p < ownProviders.size(); p++) {
+                final SRMFRenderMap.SRMFMapProvider provider = ownProviders.get(p);
+                this.jobs.add(new SRMFJob(provider.getId(), host, this.getInterval(".srmf.daemon.provider.interval." + provider.getId(),
+                                                                                   host, 0)) {
+                    @Override
+                    protected void execute(CIMClientLib client) throws Exception {
+                        List<SRMFRenderMap.SRMFMapProvider> single = new ArrayList<SRMFRenderMap.SRMFMapProvider>();
+                        single.add(provider);
+                        client.doManifestSnapshot(single);
+                    }
+                });
+            }
+
+            if (destination != null) {
+                this.jobs.add(new SRMFJob("export:" + destination, host, this.getInterval(".srmf.daemon.export.interval", host,
+                                                                                          SRMFDaemon.DEFAULT_EXPORT_INTERVAL)) {
+                    @Override
+                    protected void execute(CIMClientLib client) throws Exception {
+                        client.doExportToDestination(destination.split(","),
+                                                     exportPath != null ? new String[]{exportPath} : null);
+                    }
+                });
+            }
+        }
+    }
+
+
+    /**
+     * Get delay till the next run: interval, shifted by the random jitter.
+     *
+     * @param interval
+     * @return
+     */
+    private long getNextDelay(long interval) {
+        long shift = interval * this.jitter / 100;
+        if (shift <= 0) {
+            return interval;
+        }
+
+        return interval - shift + (long) (this.random.nextDouble() * 2 * shift);
+    }
+
+
+    /**
+     * Schedule the job, unless the daemon is stopping.
+     *
+     * @param job
+     * @param delay
+     * @return Delay in milliseconds.
+     */
+    private long schedule(SRMFJob job, long delay) {
+        try {
+            this.scheduler.schedule(job, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            if (!this.scheduler.isShutdown()) {
+                throw ex;
+            }
+        }
+
+        return delay;
+    }
+
+
+    /**
+     * Run the daemon until it is stopped.
+     *
+     * @throws InterruptedException
+     */
+    public void run() throws InterruptedException {
+        this.createJobs();
+        int scheduled = 0;
+        long longest = 0;
+        for (int i = 0; i < this.jobs.size(); i++) {
+            SRMFJob job = this.jobs.get(i);
+            if (job.getInterval() > 0) {
+                this.schedule(job, (long) (this.random.nextDouble() * Math.min(this.splay, job.getInterval())));
+                longest = Math.max(longest, job.getInterval() + job.getInterval() * this.jitter / 100);
+                scheduled++;
+            }
+        }
+        if (scheduled == 0) {
+            throw new IllegalStateException("No jobs are scheduled.");
+        }
+
+        // Pooled client of the host should wait for its next run instead of being evicted, splay is the margin
+        try {
+            SRMFTransport.getInstance().keepIdle(longest + this.splay);
+        } catch (Exception ex) {
+            System.err.println("Error: " + ex.getLocalizedMessage());
+        }
+
+        long reportInterval = Long.parseLong(this.setup.getItem(".srmf.daemon.report",
+                                                                String.valueOf(SRMFDaemon.DEFAULT_REPORT_INTERVAL))) * 1000;
+        if (reportInterval > 0) {
+            this.scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    SRMFDaemon.this.report(System.err);
+                }
+            }, reportInterval, reportInterval, TimeUnit.MILLISECONDS);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SRMFDaemon.this.stop();
+            }
+        }));
+        System.err.println(String.format("Daemon started: %d jobs on %d hosts.", scheduled, this.hosts.size()));
+        this.stopped.await();
+    }
+
+
+    /**
+     * Stop the scheduler, wait for the running jobs and report their timings.
+     */
+    public void stop() {
+        if (this.stopped.getCount() == 0) {
+            return;
+        }
+
+        this.scheduler.shutdown();
+        try {
+            this.scheduler.awaitTermination(SRMFDaemon.SHUTDOWN_GRACE, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        this.report(System.err);
+        try {
+            SRMFTransport.getInstance().shutdown();
+        } catch (Exception ex) {
+            System.err.println("Error: " + ex.getLocalizedMessage());
+        }
+        this.stopped.countDown();
+    }
+
+
+    /**
+     * Print timings of all the jobs in milliseconds.
+     *
+     * @param out
+     */
+    public void report(PrintStream out) {
+        List<List> table = new ArrayList<List>();
+        List<String> header = new ArrayList<String>();
+        header.add("Job");
+        header.add("Runs");
+        header.add("Failed");
+        header.add("Last");
+        header.add("Min");
+        header.add("Avg");
+        header.add("Max");
+        table.add(header);
+        for (int i = 0; i < this.jobs.size(); i++) {
+            if (this.jobs.get(i).getInterval() > 0) {
+                table.add(this.jobs.get(i).getTimings());
+            }
+        }
+
+        SRMFUtils.printTable(table, out);
+        try {
+            SRMFTransport.getInstance().report(out);
+        } catch (Exception ex) {
+            System.err.println("Error: " + ex.getLocalizedMessage());
+        }
+    }
+}
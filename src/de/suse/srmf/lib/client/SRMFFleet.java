@@ -0,0 +1,194 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client;
+
+import de.suse.srmf.lib.client.export.SRMFRenderMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the same operation against many hosts at once on a bounded worker pool.
+ * Every worker has its own client (and thus its own WBEM connection),
+ * while the render map is loaded once and shared.
+ *
+ * @author bo
+ */
+public class SRMFFleet {
+    public static final String HOSTS_ALL = "all";
+    public static final int DEFAULT_WORKERS = 8;
+
+    private final SRMFConfig setup;
+    private final SRMFRenderMap renderMap;
+    private final List<String> hosts;
+    private final int workers;
+    private String namespace;
+    private String source;
+    private boolean debugMode;
+
+    /**
+     * Operation on one host.
+     */
+    public static interface SRMFFleetTask {
+        public void run(CIMClientLib client) throws Exception;
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param config
+     * @param renderMap
+     * @param hosts
+     * @param workers
+     */
+    public SRMFFleet(SRMFConfig config, SRMFRenderMap renderMap, List<String> hosts, int workers) {
+        this.setup = config;
+        this.renderMap = renderMap;
+        this.hosts = new ArrayList<String>(hosts);
+        this.workers = Math.max(1, Math.min(workers, this.hosts.size()));
+    }
+
+
+    /**
+     * Resolve host IDs from the command line.
+     * "all" means every host in the configuration.
+     *
+     * @param config
+     * @param ids
+     * @return
+     * @throws Exception
+     */
+    public static List<String> resolveHosts(SRMFConfig config, String[] ids) throws Exception {
+        if (ids.length == 1 && ids[0].equals(SRMFFleet.HOSTS_ALL)) {
+            return config.getHosts();
+        }
+
+        List<String> hosts = new ArrayList<String>();
+        for (int i = 0; i < ids.length; i++) {
+            if (!config.getHosts().contains(ids[i])) {
+                throw new Exception(String.format("Host \"%s\" is not configured.", ids[i]));
+            }
+            if (!hosts.contains(ids[i])) {
+                hosts.add(ids[i]);
+            }
+        }
+
+        return hosts;
+    }
+
+
+    /**
+     * Set the model namespace for all the clients.
+     *
+     * @param namespace
+     */
+    public void setNamespace(String namespace) {
+        this.namespace = namespace;
+    }
+
+
+    /**
+     * Render the exports from the stored snapshots instead of the brokers.
+     *
+     * @param source "files", "graph" or null for the live brokers.
+     */
+    public void setSnapshotSource(String source) {
+        this.source = source;
+    }
+
+
+    /**
+     * Show fully printed tracebacks, if errors occurs.
+     *
+     * @param debug
+     */
+    public void setTraceCrashes(boolean debug) {
+        this.debugMode = debug;
+    }
+
+
+    /**
+     * Run the task on every host and wait until all of them are done.
+     *
+     * @param task
+     * @return amount of failed hosts.
+     * @throws InterruptedException
+     */
+    public int run(final SRMFFleetTask task) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(this.workers);
+        Map<String, Future<Long>> results = new LinkedHashMap<String, Future<Long>>();
+        for (int i = 0; i < this.hosts.size(); i++) {
+            final String host = this.hosts.get(i);
+            results.put(host, pool.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    long start = System.currentTimeMillis();
+                    CIMClientLib client = new CIMClientLib(host, SRMFFleet.this.setup, SRMFFleet.this.renderMap,
+                                                          SRMFFleet.this.source);
+                    try {
+                        client.setNamespace(SRMFFleet.this.namespace);
+                        client.setTraceCrashes(SRMFFleet.this.debugMode);
+                        task.run(client);
+                    } finally {
+                        client.close();
+                    }
+
+                    return System.currentTimeMillis() - start;
+                }
+            }));
+        }
+        pool.shutdown();
+
+        int failed = 0;
+        for (Map.Entry<String, Future<Long>> result : results.entrySet()) {
+            try {
+                System.err.println(String.format("%s: done in %d ms", result.getKey(), result.getValue().get()));
+            } catch (ExecutionException ex) {
+                failed++;
+                System.err.println(String.format("%s: failed: %s", result.getKey(), ex.getCause().getLocalizedMessage()));
+                if (this.debugMode) {
+                    ex.getCause().printStackTrace();
+                }
+            }
+        }
+        System.err.println(String.format("Processed %d hosts, %d failed.", this.hosts.size(), failed));
+
+        return failed;
+    }
+}
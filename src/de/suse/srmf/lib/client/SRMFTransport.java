@@ -0,0 +1,280 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import javax.cim.CIMObjectPath;
+import javax.security.auth.Subject;
+import javax.wbem.WBEMException;
+import javax.wbem.client.PasswordCredential;
+import javax.wbem.client.UserPrincipal;
+import javax.wbem.client.WBEMClient;
+import javax.wbem.client.WBEMClientConstants;
+import javax.wbem.client.WBEMClientFactory;
+
+/**
+ * Managed transport to the CIM brokers.
+ *
+ * In "pooled" mode every client keeps its HTTP connections alive between the operations
+ * and the released clients are kept for the idle timeout, so the next run to the same
+ * host reuses both the connections and the TLS session of the client.
+ * In "direct" mode every operation opens a new connection and nothing is kept.
+ * TLS sessions of the new connections are resumed by the own session cache of JSSE,
+ * that is on anyway; in pooled mode its size is taken from the configuration.
+ *
+ * Configuration in srmf.conf:
+ *
+ *     .srmf.transport.mode = pooled|direct
+ *     .srmf.transport.pool.size = 4
+ *     .srmf.transport.pool.idle = 60
+ *     .srmf.transport.tls.cache = 512
+ *     .srmf.timeout.operation = 60
+ *
+ * Operation timeout (seconds) is the socket read timeout of every request,
+ * so the hung broker fails the request instead of blocking it forever.
+ *
+ * @author bo
+ */
+public class SRMFTransport {
+    public static final String MODE_POOLED = "pooled";
+    public static final String MODE_DIRECT = "direct";
+    public static final int DEFAULT_OPERATION_TIMEOUT = 60;
+    private static final String PROP_HTTP_TIMEOUT = "sblim.wbem.httpTimeout";
+
+    private static SRMFTransport instance;
+
+    private final boolean pooled;
+    private volatile long idleTimeout;
+    private final long operationTimeout;
+    private final Map<String, LinkedList<PooledClient>> idle;
+    private int opened;
+    private int reused;
+    private int operations;
+
+    /**
+     * Client that waits in the pool.
+     */
+    private static class PooledClient {
+        private final WBEMClient client;
+        private final long released;
+
+        public PooledClient(WBEMClient client) {
+            this.client = client;
+            this.released = System.currentTimeMillis();
+        }
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @throws IOException
+     */
+    private SRMFTransport() throws IOException {
+        SRMFConfig config = SRMFConfig.getInstance();
+        this.pooled = config.getItem(".srmf.transport.mode", SRMFTransport.MODE_POOLED).toLowerCase().equals(SRMFTransport.MODE_POOLED);
+        this.idleTimeout = Long.parseLong(config.getItem(".srmf.transport.pool.idle", "60")) * 1000;
+        this.operationTimeout = Long.parseLong(config.getItem(".srmf.timeout.operation",
+                                                             String.valueOf(SRMFTransport.DEFAULT_OPERATION_TIMEOUT))) * 1000;
+        this.idle = new HashMap<String, LinkedList<PooledClient>>();
+
+        // Applies to every client, created afterwards
+        System.setProperty("sblim.wbem.httpPoolSize", this.pooled ? config.getItem(".srmf.transport.pool.size", "4") : "0");
+        if (this.pooled) {
+            System.setProperty("javax.net.ssl.sessionCacheSize", config.getItem(".srmf.transport.tls.cache", "512"));
+        }
+    }
+
+
+    /**
+     * Get transport instance.
+     *
+     * @return
+     * @throws IOException
+     */
+    public static synchronized SRMFTransport getInstance() throws IOException {
+        if (SRMFTransport.instance == null) {
+            SRMFTransport.instance = new SRMFTransport();
+        }
+
+        return SRMFTransport.instance;
+    }
+
+
+    /**
+     * Acquire initialized client to the host. Idle client to the same host is reused.
+     *
+     * @param hostId
+     * @return
+     * @throws WBEMException
+     * @throws IOException
+     */
+    public WBEMClient acquire(String hostId) throws WBEMException, IOException {
+        synchronized (this) {
+            this.evictIdle();
+            LinkedList<PooledClient> clients = this.idle.get(hostId);
+            if (clients != null && !clients.isEmpty()) {
+                this.reused++;
+                return clients.removeFirst().client;
+            }
+            this.opened++;
+        }
+
+        SRMFConfig config = SRMFConfig.getInstance();
+        URL location = config.getConnectionUrl(hostId);
+        WBEMClient client = WBEMClientFactory.getClient(WBEMClientConstants.PROTOCOL_CIMXML);
+        CIMObjectPath path = new CIMObjectPath(location.getProtocol(),
+                location.getHost(), String.valueOf(location.getPort()), null, null, null);
+        Subject subj = new Subject();
+        subj.getPrincipals().add(new UserPrincipal(config.getUsername(hostId)));
+        subj.getPrivateCredentials().add(new PasswordCredential(config.getPassword(hostId)));
+        client.initialize(path, subj, new Locale[]{Locale.US});
+        if (this.operationTimeout > 0) {
+            client.setProperty(SRMFTransport.PROP_HTTP_TIMEOUT, String.valueOf(this.operationTimeout));
+        }
+
+        return client;
+    }
+
+
+    /**
+     * Release the client. In pooled mode it waits for the next run with its
+     * connections and TLS session, otherwise it is closed.
+     *
+     * @param hostId
+     * @param client
+     */
+    public void release(String hostId, WBEMClient client) {
+        if (!this.pooled || this.idleTimeout <= 0) {
+            client.close();
+            return;
+        }
+
+        synchronized (this) {
+            if (!this.idle.containsKey(hostId)) {
+                this.idle.put(hostId, new LinkedList<PooledClient>());
+            }
+            this.idle.get(hostId).addLast(new PooledClient(client));
+            this.evictIdle();
+        }
+    }
+
+
+    /**
+     * Keep idle clients at least for the given time, so the client of the host
+     * outlives the pause between the scheduled runs. Disabled idle pool stays disabled.
+     *
+     * @param timeout Milliseconds.
+     */
+    public synchronized void keepIdle(long timeout) {
+        if (this.idleTimeout > 0) {
+            this.idleTimeout = Math.max(this.idleTimeout, timeout);
+        }
+    }
+
+
+    /**
+     * Close the client, that must not be used again (i.e. cancelled at the deadline).
+     *
+     * @param client
+     */
+    public void discard(WBEMClient client) {
+        client.close();
+    }
+
+
+    /**
+     * Count one operation over the transport.
+     */
+    public synchronized void countOperation() {
+        this.operations++;
+    }
+
+
+    /**
+     * Close clients that are idle longer than the timeout.
+     */
+    private synchronized void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<LinkedList<PooledClient>> hosts = this.idle.values().iterator();
+        while (hosts.hasNext()) {
+            LinkedList<PooledClient> clients = hosts.next();
+            Iterator<PooledClient> it = clients.iterator();
+            while (it.hasNext()) {
+                PooledClient pooledClient = it.next();
+                if (now - pooledClient.released > this.idleTimeout) {
+                    pooledClient.client.close();
+                    it.remove();
+                }
+            }
+            if (clients.isEmpty()) {
+                hosts.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Close all idle clients.
+     */
+    public synchronized void shutdown() {
+        for (LinkedList<PooledClient> clients : this.idle.values()) {
+            for (int i = 0; i < clients.size(); i++) {
+                clients.get(i).client.close();
+            }
+        }
+        this.idle.clear();
+    }
+
+
+    /**
+     * Print the operations and the clients, created and taken from the pool, since the last report.
+     * Connections are opened inside the client and are not counted.
+     *
+     * @param stream
+     */
+    public synchronized void report(PrintStream stream) {
+        stream.println(String.format("Transport (%s): %d operations, %d clients created, %d taken from the pool.",
+                                     this.pooled ? SRMFTransport.MODE_POOLED : SRMFTransport.MODE_DIRECT,
+                                     this.operations, this.opened, this.reused));
+        this.opened = 0;
+        this.reused = 0;
+        this.operations = 0;
+    }
+}
@@ -31,11 +31,28 @@
 
 package de.suse.srmf.lib.client.export;
 
+import de.suse.srmf.lib.client.CIMCompactInstance;
+import de.suse.srmf.lib.client.CIMXMLInstance;
+import de.suse.srmf.lib.client.CIMXMLReader;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.transform.TransformerException;
+import org.w3c.dom.Document;
 
 /**
  * Export dispatcher.
@@ -98,7 +115,302 @@ public class ExportDispatcher {
         }
     }
 
+    /**
+     * Sink of the destination. Output is written straight into it,
+     * so it is never kept in memory as a whole.
+     */
+    public static interface ExportSink {
+        /**
+         * Open the sink for writing.
+         *
+         * @return
+         * @throws IOException
+         */
+        public OutputStream open() throws IOException;
+
+        /**
+         * Finish writing to the sink.
+         *
+         * @throws IOException
+         */
+        public void close() throws IOException;
+
+        /**
+         * Drop what is written to the sink so far, if it fails.
+         *
+         * @throws IOException
+         */
+        public void abort() throws IOException;
+    }
+
+
+    /**
+     * Writes to the file, located in the destination host subdir.
+     * Output goes to the temporary file next to it, that replaces the file at once
+     * when it is written. The file is not touched, if its content has not changed.
+     */
+    public static final class FileSink implements ExportSink {
+        private static final String HASH_ALGORITHM = "SHA-1";
+
+        private final File file;
+        private final String lifecycle;
+        private final ExportDispatcher dispatcher;
+        private File temporary;
+        private HashingOutputStream out;
+
+        public FileSink(File file) {
+            this(file, null, null);
+        }
+
+        /**
+         * Constructor.
+         *
+         * @param file
+         * @param lifecycle Lifecycle of the file or null.
+         * @param dispatcher Dispatcher, that counts the written files, or null.
+         */
+        public FileSink(File file, String lifecycle, ExportDispatcher dispatcher) {
+            this.file = file;
+            this.lifecycle = lifecycle;
+            this.dispatcher = dispatcher;
+        }
+
+        @Override
+        public OutputStream open() throws IOException {
+            File directory = this.file.getAbsoluteFile().getParentFile();
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException(String.format("Unable to write to %s", directory.getAbsolutePath()));
+            }
+
+            if (SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender.LIFECYCLE_VOLATILE.equals(this.lifecycle)
+                && this.file.exists()) {
+                this.out = new HashingOutputStream(null, null); // Never refreshed
+            } else {
+                this.temporary = File.createTempFile("." + this.file.getName() + "-", ".tmp", directory);
+                this.out = new HashingOutputStream(new BufferedOutputStream(new FileOutputStream(this.temporary)),
+                                                   SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender.LIFECYCLE_TEMPORARY.equals(this.lifecycle)
+                                                   ? null : FileSink.getDigest());
+            }
+
+            return this.out;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.out == null) {
+                return;
+            }
+            HashingOutputStream written = this.out;
+            this.out = null;
+            written.close();
+
+            if (this.temporary == null
+                || (written.getDigest() != null && this.file.exists() && this.file.length() == written.getLength()
+                    && Arrays.equals(written.getDigest().digest(), FileSink.getHash(this.file)))) {
+                if (this.temporary != null) {
+                    this.temporary.delete();
+                    this.temporary = null;
+                }
+                if (this.dispatcher != null) {
+                    this.dispatcher.skippedFiles.incrementAndGet();
+                    this.dispatcher.skippedBytes.addAndGet(written.getLength());
+                }
+                return;
+            }
+
+            // Rename replaces the file at once, except where the target has to be removed first
+            if (!this.temporary.renameTo(this.file) && !(this.file.delete() && this.temporary.renameTo(this.file))) {
+                this.temporary.delete();
+                this.temporary = null;
+                throw new IOException(String.format("Unable to write to %s", this.file.getAbsolutePath()));
+            }
+            this.temporary = null;
+            if (this.dispatcher != null) {
+                this.dispatcher.writtenFiles.incrementAndGet();
+                this.dispatcher.writtenBytes.addAndGet(written.getLength());
+            }
+        }
+
+        @Override
+        public void abort() throws IOException {
+            if (this.out != null) {
+                this.out.close();
+                this.out = null;
+            }
+            if (this.temporary != null) {
+                this.temporary.delete();
+                this.temporary = null;
+            }
+        }
+
+        /**
+         * Get new digest of the content.
+         *
+         * @return
+         */
+        private static MessageDigest getDigest() {
+            try {
+                return MessageDigest.getInstance(FileSink.HASH_ALGORITHM);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        /**
+         * Get hash of the file content.
+         *
+         * @param file
+         * @return
+         * @throws IOException
+         */
+        private static byte[] getHash(File file) throws IOException {
+            MessageDigest digest = FileSink.getDigest();
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[0x2000];
+                int length;
+                while ((length = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, length);
+                }
+            } finally {
+                in.close();
+            }
+
+            return digest.digest();
+        }
+    }
+
+
+    /**
+     * Counts and hashes the bytes on the way to the stream.
+     * Without the stream, bytes are only counted.
+     */
+    private static final class HashingOutputStream extends FilterOutputStream {
+        private final MessageDigest digest;
+        private long length;
+
+        public HashingOutputStream(OutputStream out, MessageDigest digest) {
+            super(out);
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            if (this.out != null) {
+                this.out.write(data, offset, length);
+            }
+            if (this.digest != null) {
+                this.digest.update(data, offset, length);
+            }
+            this.length += length;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (this.out != null) {
+                this.out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.out != null) {
+                this.out.close();
+            }
+        }
+
+        public MessageDigest getDigest() {
+            return this.digest;
+        }
+
+        public long getLength() {
+            return this.length;
+        }
+    }
+
+
+    /**
+     * Prints on the console using STDOUT or STDERR channels.
+     * The channel itself is never closed.
+     */
+    public static final class ConsoleSink implements ExportSink {
+        private final PrintStream stream;
+
+        public ConsoleSink(PrintStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public OutputStream open() throws IOException {
+            for (int i = 0; i < 80; i++) {
+                this.stream.print("=");
+            }
+            this.stream.print("\n");
+
+            return new FilterOutputStream(this.stream) {
+                @Override
+                public void write(byte[] data, int offset, int length) throws IOException {
+                    this.out.write(data, offset, length);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    this.flush();
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.stream.print("\n\n");
+            this.stream.flush();
+        }
+
+        @Override
+        public void abort() throws IOException {
+            this.close();
+        }
+    }
+
+
+    /**
+     * Drops line breaks from the plain XML on the way to the sink.
+     */
+    private static final class LineJoiningOutputStream extends FilterOutputStream {
+        public LineJoiningOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (b != '\n' && b != '\r') {
+                this.out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            int start = offset;
+            for (int i = offset; i < offset + length; i++) {
+                if (data[i] == '\n' || data[i] == '\r') {
+                    this.out.write(data, start, i - start);
+                    start = i + 1;
+                }
+            }
+            this.out.write(data, start, offset + length - start);
+        }
+    }
+
     private File root; // Export destination. Creates subdirectories per host.
+    private final AtomicInteger writtenFiles = new AtomicInteger();
+    private final AtomicLong writtenBytes = new AtomicLong();
+    private final AtomicInteger skippedFiles = new AtomicInteger();
+    private final AtomicLong skippedBytes = new AtomicLong();
 
     /**
      * Constructor.
@@ -109,7 +421,7 @@ public class ExportDispatcher {
             throws IOException {
         if (!destination.exists()) {
             if (!destination.mkdirs()) {
-                throw new IOException("Unable to write to %s".format(destination.getAbsolutePath()));
+                throw new IOException(String.format("Unable to write to %s", destination.getAbsolutePath()));
             }
         }
 
@@ -117,40 +429,191 @@ public class ExportDispatcher {
     }
 
 
+    /**
+     * Get sink of the destination.
+     * Format of "out" parameter is: "destination-type:filename".
+     *
+     * @param reference Host subdir of the destination.
+     * @param out
+     * @return
+     * @throws Exception
+     */
+    public ExportSink getSink(String reference, String out) throws Exception {
+        return this.getSink(reference, out, null);
+    }
+
+
+    /**
+     * Get sink of the destination with the lifecycle of the output.
+     *
+     * @param reference Host subdir of the destination.
+     * @param out
+     * @param lifecycle Lifecycle of the output or null.
+     * @return
+     * @throws Exception
+     */
+    public ExportSink getSink(String reference, String out, String lifecycle) throws Exception {
+        DestinationEntity destEntity = new DestinationEntity(out);
+        if (destEntity.getMediaType().equals(ExportDispatcher.TYPE_FILE)) {
+            return new FileSink(new File(this.root.getAbsolutePath() + "/" + reference + "/" + destEntity.getFilename()),
+                                lifecycle, this);
+        } else if (destEntity.getMediaType().equals(ExportDispatcher.TYPE_CONSOLE)) {
+            return new ConsoleSink(destEntity.getFilename().equals(ExportDispatcher.CONSOLE_STDOUT) ? System.out : System.err);
+        }
+
+        throw new Exception(String.format("Unknown destination type: %s", destEntity.getMediaType()));
+    }
+
+
+    /**
+     * Renders the document with the stylesheet straight into the sink.
+     * Without the stylesheet, the document is written as XML in one line.
+     *
+     * @param document
+     * @param style Stylesheet or null.
+     * @param sink
+     * @throws TransformerException
+     * @throws IOException
+     */
+    public static void dispatch(Document document, File style, ExportSink sink)
+            throws TransformerException,
+                   IOException {
+        boolean done = false;
+        try {
+            OutputStream stream = sink.open();
+            SRMFUtils.xproc(document, style, style == null ? new LineJoiningOutputStream(stream) : stream);
+            done = true;
+        } finally {
+            ExportDispatcher.finish(sink, done);
+        }
+    }
+
+
+    /**
+     * Renders instances of the document with the native renderer straight into the sink.
+     *
+     * @param document
+     * @param renderer
+     * @param renderId
+     * @param sink
+     * @throws Exception
+     */
+    public static void dispatch(Document document, SRMFRenderer renderer, String renderId, ExportSink sink)
+            throws Exception {
+        boolean done = false;
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(sink.open(), "UTF-8"));
+            ExportDispatcher.render(document, renderer, renderId, writer);
+            writer.flush();
+            done = true;
+        } finally {
+            ExportDispatcher.finish(sink, done);
+        }
+    }
+
+
+    /**
+     * Close the sink, once it is written, otherwise drop what is written to it.
+     *
+     * @param sink
+     * @param done
+     * @throws IOException
+     */
+    public static void finish(ExportSink sink, boolean done) throws IOException {
+        if (done) {
+            sink.close();
+        } else {
+            sink.abort();
+        }
+    }
+
+
+    /**
+     * Render instances of the document with the native renderer.
+     *
+     * @param document
+     * @param renderer
+     * @param renderId
+     * @param writer
+     * @throws Exception
+     */
+    public static void render(Document document, SRMFRenderer renderer, String renderId, Writer writer)
+            throws Exception {
+        final SRMFRenderer.SRMFRender render = renderer.newRender(renderId, writer);
+        CIMXMLReader reader = new CIMXMLReader();
+        String[] properties = renderer.getProperties(renderId);
+        if (properties != null) {
+            reader.setProjection(Arrays.asList(properties)); // Instances are only rendered, not hashed
+        }
+        reader.read(document, new CIMXMLReader.CIMXMLInstanceHandler() {
+            @Override
+            public void onInstance(CIMXMLInstance instance) throws Exception {
+                render.onInstance(CIMCompactInstance.valueOf(instance));
+            }
+        });
+        render.finish();
+    }
+
+
     /**
      * Dispatches the source to the destination.
      * Format of "out" parameter is: "destination-type:filename".
-     * Parameter "reference" is 
+     *
      * @param source
-     * @param reference 
-     * @param out 
+     * @param reference Host subdir of the destination.
+     * @param out
      */
     public void dispatch(String source, String reference, String out)
             throws IOException,
                    Exception {
-        File destinationDirectory = new File(this.root.getAbsolutePath() + "/" + reference);
-        if (!destinationDirectory.exists()) {
-            if (!destinationDirectory.mkdirs()) {
-                throw new IOException("Unable to write to %s".format(destinationDirectory.getAbsolutePath()));
-            }
+        ExportSink sink = this.getSink(reference, out);
+        boolean done = false;
+        try {
+            sink.open().write(source.getBytes("UTF-8"));
+            done = true;
+        } finally {
+            ExportDispatcher.finish(sink, done);
         }
+    }
 
-        DestinationEntity destEntity = new DestinationEntity(out);
-        if (destEntity.getMediaType().equals(ExportDispatcher.TYPE_FILE)) {
-            File outfile = new File(destinationDirectory.getAbsolutePath() + "/" + destEntity.getFilename());
-            if (outfile.exists()) {
-                outfile.delete();
-            }
-            FileWriter writer = new FileWriter(outfile.getAbsoluteFile());
-            BufferedWriter buff = new BufferedWriter(writer);
-            buff.write(source);
-            buff.close();
-        } else if (destEntity.getMediaType().equals(ExportDispatcher.TYPE_CONSOLE)) {
-            PrintStream stream = destEntity.getFilename().equals(ExportDispatcher.CONSOLE_STDOUT) ? System.out : System.err;
-            for (int i = 0; i < 80; i++) {
-                stream.print("=");
-            }
-            stream.print("\n" + source + "\n\n");
-        }
+
+    /**
+     * Amount of the files, written since the dispatcher is created.
+     *
+     * @return
+     */
+    public int getWrittenFiles() {
+        return this.writtenFiles.get();
+    }
+
+
+    /**
+     * Amount of the bytes, written since the dispatcher is created.
+     *
+     * @return
+     */
+    public long getWrittenBytes() {
+        return this.writtenBytes.get();
+    }
+
+
+    /**
+     * Amount of the files, that are not rewritten, because they have not changed
+     * or are never refreshed.
+     *
+     * @return
+     */
+    public int getSkippedFiles() {
+        return this.skippedFiles.get();
+    }
+
+
+    /**
+     * Amount of the bytes, that are not rewritten.
+     *
+     * @return
+     */
+    public long getSkippedBytes() {
+        return this.skippedBytes.get();
     }
 }
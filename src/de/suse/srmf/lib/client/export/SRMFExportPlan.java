@@ -0,0 +1,217 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client.export;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plan of the export to one or more destinations.
+ *
+ * All references of the destinations and their merge sets are collected
+ * per provider, so every provider is queried only once and its result
+ * is passed to all the renderers, that need it. The same render into the
+ * same output is done only once. Renders of the merge sets are fragments
+ * of their merge set, the same merge set is done only once too.
+ *
+ * @author bo
+ */
+public class SRMFExportPlan {
+    public static final String DESTINATIONS_ALL = "all";
+
+    private final List<SRMFRenderMap.SRMFMapDestination> destinations;
+    private final Map<String, List<SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender>> renderers;
+    private final Map<String, Set<String>> providerDestinations;
+    private final Set<String> renderKeys;
+    private final List<SRMFRenderMap.SRMFMapDestination.SRMFMergeSet> mergeSets;
+    private int references;
+
+
+    /**
+     * Constructor.
+     *
+     * @param renderMap
+     * @param destinationIds Names of the destinations or "all".
+     * @throws Exception if the destination is not known.
+     */
+    public SRMFExportPlan(SRMFRenderMap renderMap, String[] destinationIds) throws Exception {
+        this.destinations = new ArrayList<SRMFRenderMap.SRMFMapDestination>();
+        this.renderers = new LinkedHashMap<String, List<SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender>>();
+        this.providerDestinations = new LinkedHashMap<String, Set<String>>();
+        this.renderKeys = new HashSet<String>();
+        this.mergeSets = new ArrayList<SRMFRenderMap.SRMFMapDestination.SRMFMergeSet>();
+
+        List<SRMFRenderMap.SRMFMapDestination> supported = renderMap.getSupportedRenderIDs();
+        if (destinationIds == null || destinationIds.length == 0) {
+            throw new Exception(String.format("Destination \"%s\" not recognized.", (Object) null));
+        } else if (destinationIds.length == 1 && destinationIds[0].equals(SRMFExportPlan.DESTINATIONS_ALL)) {
+            this.destinations.addAll(supported);
+        } else {
+            for (int i = 0; i < destinationIds.length; i++) {
+                SRMFRenderMap.SRMFMapDestination destination = null;
+                for (int d = 0; d < supported.size() && destination == null; d++) {
+                    if (supported.get(d).getName().equals(destinationIds[i])) {
+                        destination = supported.get(d);
+                    }
+                }
+                if (destination == null) {
+                    throw new Exception(String.format("Destination \"%s\" not recognized.", destinationIds[i]));
+                }
+                if (!this.destinations.contains(destination)) {
+                    this.destinations.add(destination);
+                }
+            }
+        }
+
+        for (int i = 0; i < this.destinations.size(); i++) {
+            SRMFRenderMap.SRMFMapDestination destination = this.destinations.get(i);
+            List<SRMFRenderMap.SRMFMapDestination.SRMFMergeSet> mergeSets = destination.getMergeSets();
+            for (int m = 0; m < mergeSets.size(); m++) {
+                if (this.renderKeys.add(SRMFExportPlan.getMergeKey(mergeSets.get(m)))) {
+                    this.mergeSets.add(mergeSets.get(m));
+                    this.addReferences(destination, mergeSets.get(m).getReferences(), mergeSets.get(m));
+                }
+            }
+            this.addReferences(destination, destination.getReferences(), null);
+        }
+    }
+
+
+    /**
+     * Add references of the destination to the plan.
+     *
+     * @param destination
+     * @param refs
+     * @param mergeSet Merge set of the references or null.
+     */
+    private void addReferences(SRMFRenderMap.SRMFMapDestination destination, List<SRMFRenderMap.SRMFMapDestination.SRMFMapRef> refs,
+                               SRMFRenderMap.SRMFMapDestination.SRMFMergeSet mergeSet) {
+        for (int i = 0; i < refs.size(); i++) {
+            SRMFRenderMap.SRMFMapDestination.SRMFMapRef ref = refs.get(i);
+            List<SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender> providerRenderers = this.renderers.get(ref.getId());
+            if (providerRenderers == null) {
+                providerRenderers = new ArrayList<SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender>();
+                this.renderers.put(ref.getId(), providerRenderers);
+                this.providerDestinations.put(ref.getId(), new LinkedHashSet<String>());
+            }
+            this.providerDestinations.get(ref.getId()).add(destination.getTitle());
+            this.references++;
+
+            for (SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender render : ref.getRenderers()) {
+                if (mergeSet != null) {
+                    providerRenderers.add(render); // Fragment of the merge set, that is done only once
+                } else if (this.renderKeys.add(render.getRender() + "\u0000" + render.getDestinationDescriptor())) {
+                    providerRenderers.add(render);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Destinations of the plan.
+     *
+     * @return
+     */
+    public List<SRMFRenderMap.SRMFMapDestination> getDestinations() {
+        return Collections.unmodifiableList(this.destinations);
+    }
+
+
+    /**
+     * Merge sets of all the destinations, each only once.
+     *
+     * @return
+     */
+    public List<SRMFRenderMap.SRMFMapDestination.SRMFMergeSet> getMergeSets() {
+        return Collections.unmodifiableList(this.mergeSets);
+    }
+
+
+    /**
+     * Key of the merge set: its render into its output.
+     *
+     * @param mergeSet
+     * @return
+     */
+    private static String getMergeKey(SRMFRenderMap.SRMFMapDestination.SRMFMergeSet mergeSet) {
+        return "merge\u0000" + mergeSet.getRender() + "\u0000" + mergeSet.getDestinationDescriptor();
+    }
+
+
+    /**
+     * IDs of the providers to query, each only once.
+     *
+     * @return
+     */
+    public List<String> getProviderIds() {
+        return new ArrayList<String>(this.renderers.keySet());
+    }
+
+
+    /**
+     * All renderers of the provider result.
+     *
+     * @param providerId
+     * @return
+     */
+    public List<SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender> getRenderers(String providerId) {
+        return Collections.unmodifiableList(this.renderers.get(providerId));
+    }
+
+
+    /**
+     * Titles of the destinations, that need the provider.
+     *
+     * @param providerId
+     * @return
+     */
+    public Set<String> getDestinationTitles(String providerId) {
+        return Collections.unmodifiableSet(this.providerDestinations.get(providerId));
+    }
+
+
+    /**
+     * Amount of references in all the destinations, as they would be queried without the plan.
+     *
+     * @return
+     */
+    public int getReferenceCount() {
+        return this.references;
+    }
+}
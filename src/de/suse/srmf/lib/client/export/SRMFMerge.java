@@ -0,0 +1,311 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client.export;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamResult;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Merge of the rendered references into one output.
+ *
+ * Every render of the merge set writes its fragment here instead of its own
+ * destination. Fragments are kept in memory, large ones are spilled to
+ * a temporary file. Once all of them are rendered, the stylesheet of the
+ * merge set runs once over all the fragments, that are passed to it as:
+ *
+ *     <MERGE ID="kiwi-export">
+ *       <FRAGMENT REF="installed-packages" RENDER="cim-installed-packages-kiwi">...</FRAGMENT>
+ *       ...
+ *     </MERGE>
+ *
+ * The text of every fragment is its rendered output, so the stylesheet
+ * can copy it as it is with disable-output-escaping or the text output method.
+ *
+ * @author bo
+ */
+public class SRMFMerge {
+    public static final long DEFAULT_SPILL_SIZE = 8 * 1024 * 1024;
+    public static final String ELEMENT_MERGE = "MERGE";
+    public static final String ELEMENT_FRAGMENT = "FRAGMENT";
+
+    private final SRMFRenderMap.SRMFMapDestination.SRMFMergeSet mergeSet;
+    private final Map<SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender, Fragment> fragments;
+
+    /**
+     * Rendered output of one reference.
+     */
+    public static final class Fragment implements ExportDispatcher.ExportSink {
+        private final String reference;
+        private final String render;
+        private final long spillSize;
+        private ByteArrayOutputStream memory;
+        private File spill;
+        private OutputStream file;
+        private volatile boolean complete;
+
+        public Fragment(String reference, String render, long spillSize) {
+            this.reference = reference;
+            this.render = render;
+            this.spillSize = spillSize;
+        }
+
+        @Override
+        public OutputStream open() throws IOException {
+            this.release();
+            this.memory = new ByteArrayOutputStream();
+
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    this.write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] data, int offset, int length) throws IOException {
+                    if (Fragment.this.memory != null && Fragment.this.memory.size() + length > Fragment.this.spillSize) {
+                        Fragment.this.spill();
+                    }
+                    (Fragment.this.memory != null ? Fragment.this.memory : Fragment.this.file).write(data, offset, length);
+                }
+            };
+        }
+
+        /**
+         * Move the fragment out of the memory to the temporary file.
+         *
+         * @throws IOException
+         */
+        private void spill() throws IOException {
+            this.spill = File.createTempFile("srmf-merge-", ".part");
+            this.spill.deleteOnExit();
+            this.file = new FileOutputStream(this.spill);
+            this.memory.writeTo(this.file);
+            this.memory = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.file != null) {
+                this.file.close();
+                this.file = null;
+            }
+            this.complete = true;
+        }
+
+        @Override
+        public void abort() throws IOException {
+            if (this.file != null) {
+                this.file.close();
+                this.file = null;
+            }
+            this.release();
+        }
+
+        /**
+         * Fragment is rendered.
+         *
+         * @return
+         */
+        public boolean isComplete() {
+            return this.complete;
+        }
+
+        /**
+         * Fragment is spilled to the disk.
+         *
+         * @return
+         */
+        public boolean isSpilled() {
+            return this.spill != null;
+        }
+
+        /**
+         * Read the rendered text.
+         *
+         * @return
+         * @throws IOException
+         */
+        public Reader getReader() throws IOException {
+            InputStream in = this.spill != null ? new FileInputStream(this.spill)
+                                                : new ByteArrayInputStream(this.memory != null ? this.memory.toByteArray() : new byte[0]);
+            return new InputStreamReader(in, "UTF-8");
+        }
+
+        /**
+         * Drop the fragment.
+         */
+        public void release() {
+            this.memory = null;
+            this.complete = false;
+            if (this.spill != null) {
+                this.spill.delete();
+                this.spill = null;
+            }
+        }
+    }
+
+
+    /**
+     * Emits the fragments as SAX events, so they are never parsed or copied into one document.
+     */
+    private final class FragmentReader extends XMLFilterImpl {
+        @Override
+        public void parse(InputSource input) throws SAXException, IOException {
+            AttributesImpl attributes = new AttributesImpl();
+            attributes.addAttribute("", "ID", "ID", "CDATA", SRMFMerge.this.mergeSet.getRender());
+
+            this.getContentHandler().startDocument();
+            this.getContentHandler().startElement("", SRMFMerge.ELEMENT_MERGE, SRMFMerge.ELEMENT_MERGE, attributes);
+            char[] buffer = new char[8192];
+            for (Fragment fragment : SRMFMerge.this.fragments.values()) {
+                attributes.clear();
+                attributes.addAttribute("", "REF", "REF", "CDATA", fragment.reference);
+                attributes.addAttribute("", "RENDER", "RENDER", "CDATA", fragment.render);
+                this.getContentHandler().startElement("", SRMFMerge.ELEMENT_FRAGMENT, SRMFMerge.ELEMENT_FRAGMENT, attributes);
+                Reader reader = fragment.getReader();
+                try {
+                    int length;
+                    while ((length = reader.read(buffer)) > 0) {
+                        this.getContentHandler().characters(buffer, 0, length);
+                    }
+                } finally {
+                    reader.close();
+                }
+                this.getContentHandler().endElement("", SRMFMerge.ELEMENT_FRAGMENT, SRMFMerge.ELEMENT_FRAGMENT);
+            }
+            this.getContentHandler().endElement("", SRMFMerge.ELEMENT_MERGE, SRMFMerge.ELEMENT_MERGE);
+            this.getContentHandler().endDocument();
+        }
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param mergeSet
+     * @param spillSize Fragments larger than this (bytes) are spilled to the disk.
+     */
+    public SRMFMerge(SRMFRenderMap.SRMFMapDestination.SRMFMergeSet mergeSet, long spillSize) {
+        this.mergeSet = mergeSet;
+        this.fragments = new LinkedHashMap<SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender, Fragment>();
+        for (SRMFRenderMap.SRMFMapDestination.SRMFMapRef reference : mergeSet.getReferences()) {
+            for (SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender render : reference.getRenderers()) {
+                this.fragments.put(render, new Fragment(reference.getId(), render.getRender(), spillSize));
+            }
+        }
+    }
+
+
+    /**
+     * Get the merge set.
+     *
+     * @return
+     */
+    public SRMFRenderMap.SRMFMapDestination.SRMFMergeSet getMergeSet() {
+        return this.mergeSet;
+    }
+
+
+    /**
+     * Get fragments of the merge by their renders, in the order of the merge set.
+     *
+     * @return
+     */
+    public Map<SRMFRenderMap.SRMFMapDestination.SRMFMapRef.SRMFRender, Fragment> getFragments() {
+        return this.fragments;
+    }
+
+
+    /**
+     * Run the stylesheet of the merge set over all the fragments and write the result into the sink.
+     * The merge is refused, if any of the fragments is not rendered.
+     *
+     * @param style
+     * @param sink
+     * @throws TransformerException
+     * @throws IOException
+     * @throws Exception
+     */
+    public void commit(File style, ExportDispatcher.ExportSink sink)
+            throws TransformerException,
+                   IOException,
+                   Exception {
+        List<String> missing = new ArrayList<String>();
+        for (Fragment fragment : this.fragments.values()) {
+            if (!fragment.isComplete()) {
+                missing.add(fragment.reference);
+            }
+        }
+        if (!missing.isEmpty()) {
+            throw new Exception(String.format("Merge \"%s\" has no %s.", this.mergeSet.getRender(),
+                                              SRMFUtils.join(missing.toArray(new String[missing.size()]), ", ")));
+        }
+
+        boolean done = false;
+        try {
+            SRMFStyleCache.getInstance().newTransformer(style)
+                    .transform(new SAXSource(new FragmentReader(), new InputSource()), new StreamResult(sink.open()));
+            done = true;
+        } finally {
+            ExportDispatcher.finish(sink, done);
+        }
+    }
+
+
+    /**
+     * Drop all the fragments.
+     */
+    public void release() {
+        for (Fragment fragment : this.fragments.values()) {
+            fragment.release();
+        }
+    }
+}
@@ -32,7 +32,12 @@
 
 package de.suse.srmf.lib.client.export;
 
+import de.suse.srmf.lib.client.CIMCompactInstance;
+import de.suse.srmf.lib.client.CIMXMLInstance;
+import de.suse.srmf.lib.client.CIMXMLReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import javax.xml.parsers.ParserConfigurationException;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
@@ -42,6 +47,9 @@ import org.xml.sax.SAXException;
  * @author bo
  */
 public class SRMFMessage {
+    public static final String PARTIAL = "PARTIAL"; // Attribute of the root element, if the result is not complete.
+    public static final String ENVELOPE_END = "</IRETURNVALUE></IMETHODRESPONSE></SIMPLERSP></MESSAGE></CIM>";
+
     private String objectId;
     private String baseClassName;
     private String className;
@@ -59,11 +67,48 @@ public class SRMFMessage {
             throws ParserConfigurationException,
                    SAXException,
                    IOException {
+        this(hostname, objectId, baseClassName, className, SRMFUtils.getXMLDocumentFromString(source));
+    }
+
+
+    /**
+     * Constructor for the SRMF Message from already built document.
+     * 
+     * @param hostname
+     * @param objectId
+     * @param baseClassName
+     * @param className
+     * @param document 
+     */
+    /**
+     * Constructor for the SRMF Message of the compact instances.
+     * The response envelope is rebuilt around them.
+     *
+     * @param hostname
+     * @param objectId
+     * @param baseClassName
+     * @param className
+     * @param operation Intrinsic method of the response.
+     * @param instances
+     * @param partial
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws IOException
+     */
+    public SRMFMessage(String hostname, String objectId, String baseClassName, String className,
+                       String operation, List<CIMCompactInstance> instances, boolean partial)
+            throws ParserConfigurationException,
+                   SAXException,
+                   IOException {
+        this(hostname, objectId, baseClassName, className, SRMFMessage.getSource(operation, instances, partial));
+    }
+
+    public SRMFMessage(String hostname, String objectId, String baseClassName, String className, Document document) {
         this.hostname = hostname;
         this.objectId = objectId;
         this.baseClassName = baseClassName;
         this.className = className;
-        this.document = SRMFUtils.getXMLDocumentFromString(source);
+        this.document = document;
     }
 
     /**
@@ -113,6 +158,38 @@ public class SRMFMessage {
     }
     
     
+    /**
+     * Get instances of the message in the compact form.
+     *
+     * @return
+     * @throws Exception
+     */
+    public List<CIMCompactInstance> getInstances() throws Exception {
+        final List<CIMCompactInstance> instances = new ArrayList<CIMCompactInstance>();
+        if (this.document != null) {
+            new CIMXMLReader(true).read(this.document, new CIMXMLReader.CIMXMLInstanceHandler() {
+                @Override
+                public void onInstance(CIMXMLInstance instance) throws Exception {
+                    instances.add(CIMCompactInstance.valueOf(instance));
+                }
+            });
+        }
+
+        return instances;
+    }
+
+
+    /**
+     * The result was cut at the deadline, so not all instances are there.
+     * 
+     * @return 
+     */
+    public boolean isPartial() {
+        return this.document != null && this.document.getDocumentElement() != null &&
+               Boolean.parseBoolean(this.document.getDocumentElement().getAttribute(SRMFMessage.PARTIAL));
+    }
+
+
     /**
      * Get XML source.
      * 
@@ -130,4 +207,37 @@ public class SRMFMessage {
     public String transform(SRMFRenderMap mapping) {
         return null;
     }
+
+
+    /**
+     * Start of the response envelope, that is rebuilt around the stored instances.
+     * Instances follow it, ENVELOPE_END closes it.
+     * 
+     * @param operation Intrinsic method of the response.
+     * @param partial
+     * @return 
+     */
+    public static String getEnvelopeStart(String operation, boolean partial) {
+        return String.format("<CIM CIMVERSION=\"2.0\" DTDVERSION=\"2.0\"%s><MESSAGE ID=\"0\" PROTOCOLVERSION=\"1.0\"><SIMPLERSP>"
+                             + "<IMETHODRESPONSE NAME=\"%s\"><IRETURNVALUE>",
+                             partial ? " " + SRMFMessage.PARTIAL + "=\"true\"" : "", operation);
+    }
+
+
+    /**
+     * Get CIM-XML of the response with the compact instances.
+     *
+     * @param operation
+     * @param instances
+     * @param partial
+     * @return
+     */
+    private static String getSource(String operation, List<CIMCompactInstance> instances, boolean partial) {
+        StringBuilder source = new StringBuilder(SRMFMessage.getEnvelopeStart(operation, partial));
+        for (CIMCompactInstance instance : instances) {
+            instance.write(source);
+        }
+
+        return source.append(SRMFMessage.ENVELOPE_END).toString();
+    }
 }
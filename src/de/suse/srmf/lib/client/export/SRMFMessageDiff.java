@@ -29,14 +29,274 @@
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
-
 package de.suse.srmf.lib.client.export;
 
+import de.suse.srmf.lib.client.CIMCompactInstance;
+import de.suse.srmf.lib.client.CIMXMLInstance;
+import de.suse.srmf.lib.client.CIMXMLReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
 /**
- * Diff of two messages.
- * 
+ * Diff of the message to the previous snapshot of the same provider on the same host.
+ *
+ * Every instance is fingerprinted by its key (class name and the sorted key bindings)
+ * and the hash of its properties in the canonical form: sorted by name, with the values
+ * and types, but without the decoded meanings. Instances with the key, that was not there,
+ * are added, with the other hash are modified, and the keys, that are gone, are deleted.
+ * Partial message does not delete anything, since the missing instances are unknown.
+ *
+ * Change set is the diff of only few instances, e.g. from the indications:
+ * the rest of the previous snapshot stays as it is.
+ *
  * @author bo
  */
 public class SRMFMessageDiff {
-    // XXX: TBD
+    private final SRMFMessage message;
+    private final Map<String, CIMCompactInstance> instances;
+    private final Map<String, String> fingerprints;
+    private final List<String> added;
+    private final List<String> modified;
+    private final List<String> deleted;
+    private boolean changeSet;
+
+
+    /**
+     * Constructor of the empty diff.
+     *
+     * @param message
+     */
+    private SRMFMessageDiff(SRMFMessage message) {
+        this.message = message;
+        this.instances = new LinkedHashMap<String, CIMCompactInstance>();
+        this.fingerprints = new LinkedHashMap<String, String>();
+        this.added = new ArrayList<String>();
+        this.modified = new ArrayList<String>();
+        this.deleted = new ArrayList<String>();
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param message
+     * @param previous Fingerprints of the previous snapshot (key to hash) or null, if there was none.
+     */
+    public SRMFMessageDiff(SRMFMessage message, final Map<String, String> previous) {
+        this(message);
+        final Map<String, Integer> occurrences = new HashMap<String, Integer>();
+        SRMFMessageDiff.readInstances(message, new CIMXMLReader.CIMXMLInstanceHandler() {
+            @Override
+            public void onInstance(CIMXMLInstance instance) throws Exception {
+                String key = instance.getKey();
+                Integer seen = occurrences.get(key);
+                occurrences.put(key, seen == null ? 1 : seen + 1);
+                if (seen != null) {
+                    key = key + "#" + seen; // Classes without keys
+                }
+
+                String hash = instance.getHash();
+                SRMFMessageDiff.this.fingerprints.put(key, hash);
+                if (previous == null || !previous.containsKey(key)) {
+                    SRMFMessageDiff.this.added.add(key);
+                    SRMFMessageDiff.this.instances.put(key, CIMCompactInstance.valueOf(instance));
+                } else if (!previous.get(key).equals(hash)) {
+                    SRMFMessageDiff.this.modified.add(key);
+                    SRMFMessageDiff.this.instances.put(key, CIMCompactInstance.valueOf(instance));
+                }
+            }
+        });
+
+        if (previous != null) {
+            for (Map.Entry<String, String> entry : previous.entrySet()) {
+                if (!this.fingerprints.containsKey(entry.getKey())) {
+                    if (message.isPartial()) {
+                        this.fingerprints.put(entry.getKey(), entry.getValue());
+                    } else {
+                        this.deleted.add(entry.getKey());
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Get change set of the instances in the message.
+     *
+     * @param message
+     * @param previous Fingerprints of the previous snapshot (key to hash) or null, if there was none.
+     * @param deleted Instances of the message are deleted, otherwise they are created or modified.
+     * @return
+     */
+    public static SRMFMessageDiff getChanges(SRMFMessage message, Map<String, String> previous, final boolean deleted) {
+        final SRMFMessageDiff diff = new SRMFMessageDiff(message);
+        diff.changeSet = true;
+        if (previous != null) {
+            diff.fingerprints.putAll(previous);
+        }
+
+        SRMFMessageDiff.readInstances(message, new CIMXMLReader.CIMXMLInstanceHandler() {
+            @Override
+            public void onInstance(CIMXMLInstance instance) throws Exception {
+                String key = instance.getKey();
+                if (deleted) {
+                    if (diff.fingerprints.remove(key) != null) {
+                        diff.deleted.add(key);
+                    }
+                    return;
+                }
+
+                String hash = instance.getHash();
+                String previousHash = diff.fingerprints.put(key, hash);
+                if (previousHash == null) {
+                    diff.added.add(key);
+                    diff.instances.put(key, CIMCompactInstance.valueOf(instance));
+                } else if (!previousHash.equals(hash)) {
+                    diff.modified.add(key);
+                    diff.instances.put(key, CIMCompactInstance.valueOf(instance));
+                }
+            }
+        });
+
+        return diff;
+    }
+
+
+    /**
+     * Read the instances of the message one by one.
+     * Instances keep their elements, so the ones, that are not plain, can be stored as they are.
+     *
+     * @param message
+     * @param handler
+     */
+    private static void readInstances(SRMFMessage message, CIMXMLReader.CIMXMLInstanceHandler handler) {
+        try {
+            new CIMXMLReader(true).read(message.getDocument(), handler);
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+
+    /**
+     * Diff is only the change set: instances, that are not in the message, are kept.
+     *
+     * @return
+     */
+    public boolean isChangeSet() {
+        return this.changeSet;
+    }
+
+
+    /**
+     * Get the message.
+     *
+     * @return
+     */
+    public SRMFMessage getMessage() {
+        return this.message;
+    }
+
+
+    /**
+     * Nothing has changed since the previous snapshot.
+     *
+     * @return
+     */
+    public boolean isEmpty() {
+        return this.added.isEmpty() && this.modified.isEmpty() && this.deleted.isEmpty();
+    }
+
+
+    /**
+     * Keys of the new instances.
+     *
+     * @return
+     */
+    public List<String> getAdded() {
+        return Collections.unmodifiableList(this.added);
+    }
+
+
+    /**
+     * Keys of the changed instances.
+     *
+     * @return
+     */
+    public List<String> getModified() {
+        return Collections.unmodifiableList(this.modified);
+    }
+
+
+    /**
+     * Keys of the instances, that are gone.
+     *
+     * @return
+     */
+    public List<String> getDeleted() {
+        return Collections.unmodifiableList(this.deleted);
+    }
+
+
+    /**
+     * Get added or modified instance of the message by the key.
+     *
+     * @param key
+     * @return Instance or null, if the instance is not added or modified.
+     */
+    public CIMCompactInstance getInstance(String key) {
+        return this.instances.get(key);
+    }
+
+
+    /**
+     * Fingerprints of the snapshot after this diff is applied.
+     *
+     * @return
+     */
+    public Map<String, String> getFingerprints() {
+        return Collections.unmodifiableMap(this.fingerprints);
+    }
+
+
+    /**
+     * Get instance elements of the document.
+     *
+     * @param document
+     * @return
+     */
+    public static NodeList getInstances(Document document) {
+        NodeList instances = document.getElementsByTagName("VALUE.NAMEDINSTANCE");
+        if (instances.getLength() == 0) {
+            instances = document.getElementsByTagName("VALUE.OBJECTWITHPATH");
+        }
+
+        return instances;
+    }
+
+
+    /**
+     * Get class name from the instance key.
+     *
+     * @param key
+     * @return
+     */
+    public static String getClassName(String key) {
+        int end = key.length();
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) == '.' || key.charAt(i) == '#') {
+                end = i;
+                break;
+            }
+        }
+
+        return key.substring(0, end);
+    }
 }
@@ -36,13 +36,20 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.xml.parsers.ParserConfigurationException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
@@ -61,9 +68,15 @@ import org.xml.sax.SAXException;
  */
 public class SRMFRenderMap {
     public static final String DEFAUILT_SRMF_RENDER_PATH = "/etc/srmf/export";
+    private static final Pattern PROPERTY_ANY = Pattern.compile("PROPERTY(\\.ARRAY|\\.REFERENCE)?(?![\\w.])");
+    private static final Pattern PROPERTY_NAMED = Pattern.compile("PROPERTY(\\.ARRAY|\\.REFERENCE)?\\s*\\[\\s*@NAME\\s*=\\s*['\"]([^'\"]+)['\"]\\s*\\]");
+    private static final Pattern PROPERTY_WILDCARD = Pattern.compile("INSTANCE\\s*/\\s*(\\*|node\\(\\))|INSTANCE\\s*//");
     private final List<SRMFMapDestination> rmap;
     private Map<String, SRMFMapProvider> rproviders;
+    private final Map<String, String[]> renderedProperties;
     private final File renderers;
+    private boolean nativeRenderers;
+    private static Map<String, SRMFRenderer> registry;
 
     /**
      * Provider description.
@@ -78,9 +91,27 @@ public class SRMFRenderMap {
         private final String type;
         private final String query;
         private final String objectClass;
+        private final String[] properties;
 
 
         public SRMFMapProvider(String path, String id, String title, String type, String query) throws Exception {
+            this(path, id, title, type, query, null);
+        }
+
+
+        /**
+         * Constructor with the properties, that are only needed from the object.
+         * Null or empty properties means all of them.
+         * 
+         * @param path
+         * @param id
+         * @param title
+         * @param type
+         * @param query
+         * @param properties
+         * @throws Exception 
+         */
+        public SRMFMapProvider(String path, String id, String title, String type, String query, String[] properties) throws Exception {
             String nsp = null;
             String cls = null;
             if (path.contains(":")) {
@@ -97,10 +128,13 @@ public class SRMFRenderMap {
             if (query != null && query.trim().isEmpty()) {
                 query = null;
             }
+            if (properties != null && properties.length == 0) {
+                properties = null;
+            }
             if (query != null) {
                 query = query.trim();
             } else if (query == null && cls != null) {
-                query = "SELECT * FROM " + cls;
+                query = "SELECT " + (properties != null ? SRMFUtils.join(properties, ", ") : "*") + " FROM " + cls;
             } else {
                 throw new Exception(String.format("Unable to parse object! Path: %s, ID: %s", path, id));
             }
@@ -111,6 +145,7 @@ public class SRMFRenderMap {
             this.title = title;
             this.type = type;
             this.query = query;
+            this.properties = properties;
         }
 
         public String getObjectClass() {
@@ -136,6 +171,15 @@ public class SRMFRenderMap {
         public String getType() {
             return this.type;
         }
+
+        /**
+         * Get properties that are only needed from the object.
+         * 
+         * @return Property names or null, if all of them are needed.
+         */
+        public String[] getProperties() {
+            return this.properties != null ? this.properties.clone() : null;
+        }
     }
     
     /**
@@ -206,8 +250,12 @@ public class SRMFRenderMap {
              * Rendering action: XSL to output
              */
             public static final class SRMFRender {
+                public static final String LIFECYCLE_VOLATILE = "volatile"; // Only created, never refreshed.
+                public static final String LIFECYCLE_TEMPORARY = "temporary"; // Always created again.
+
                 private final String render;
                 private final String outDestinationDescriptor;
+                private final String lifecycle;
 
                 /**
                  * Constructor.
@@ -216,8 +264,20 @@ public class SRMFRenderMap {
                  * @param outFilename 
                  */
                 public SRMFRender(String render, String outFilename) {
+                    this(render, outFilename, null);
+                }
+
+                /**
+                 * Constructor.
+                 *
+                 * @param render
+                 * @param outFilename
+                 * @param lifecycle Lifecycle of the output or null.
+                 */
+                public SRMFRender(String render, String outFilename, String lifecycle) {
                     this.render = render;
                     this.outDestinationDescriptor = outFilename;
+                    this.lifecycle = lifecycle != null && !lifecycle.isEmpty() ? lifecycle : null;
                 }
 
                 /**
@@ -237,6 +297,16 @@ public class SRMFRenderMap {
                 public String getRender() {
                     return render;
                 }
+
+                /**
+                 * Lifecycle of the output: "volatile", "temporary" or null.
+                 * Without the lifecycle, the output is refreshed, once its content has changed.
+                 *
+                 * @return
+                 */
+                public String getLifecycle() {
+                    return this.lifecycle;
+                }
             }
 
             private final String id;
@@ -359,6 +429,20 @@ public class SRMFRenderMap {
         this.renderers = renderers;
         this.rmap = new ArrayList<SRMFMapDestination>();
         this.rproviders = new HashMap<String, SRMFMapProvider>();
+        this.renderedProperties = new HashMap<String, String[]>();
+        this.nativeRenderers = false;
+    }
+
+
+    /**
+     * Use native renderers instead of the stylesheets with the same render ID.
+     * Native renderers do not follow the edits of the stylesheets, so they are off by default.
+     * Should be set before the mapping is loaded.
+     *
+     * @param nativeRenderers
+     */
+    public void setNativeRenderers(boolean nativeRenderers) {
+        this.nativeRenderers = nativeRenderers;
     }
     
     /**
@@ -418,6 +502,141 @@ public class SRMFRenderMap {
                 this.rmap.add(destination);
             }
         }
+
+        this.inferRenderedProperties();
+        this.precompileStyles();
+    }
+
+
+    /**
+     * Compile the stylesheets of all the renderers and merge sets at once.
+     */
+    private void precompileStyles() {
+        Map<String, File> styles = new HashMap<String, File>();
+        for (SRMFMapDestination destination : this.rmap) {
+            List<SRMFMapDestination.SRMFMapRef> references = new ArrayList<SRMFMapDestination.SRMFMapRef>(destination.getReferences());
+            for (SRMFMapDestination.SRMFMergeSet mergeSet : destination.getMergeSets()) {
+                references.addAll(mergeSet.getReferences());
+                try {
+                    styles.put(mergeSet.getRender(), this.getRenderingStyle(mergeSet.getRender()));
+                } catch (IOException ex) {
+                    // Reported, once the merge is committed
+                }
+            }
+            for (SRMFMapDestination.SRMFMapRef reference : references) {
+                for (SRMFMapDestination.SRMFMapRef.SRMFRender render : reference.getRenderers()) {
+                    if (this.getRenderer(render.getRender()) != null) {
+                        continue;
+                    }
+                    try {
+                        styles.put(render.getRender(), this.getRenderingStyle(render.getRender()));
+                    } catch (IOException ex) {
+                        // Reported, once the render is used
+                    }
+                }
+            }
+        }
+
+        SRMFStyleCache.getInstance().precompile(styles.values());
+    }
+
+
+    /**
+     * Find the properties of every provider, that are read by all of its renderers.
+     */
+    private void inferRenderedProperties() {
+        // Renderers of every provider from all the destinations
+        Map<String, List<String>> providerRenders = new HashMap<String, List<String>>();
+        for (SRMFMapDestination destination : this.rmap) {
+            List<SRMFMapDestination.SRMFMapRef> references = new ArrayList<SRMFMapDestination.SRMFMapRef>(destination.getReferences());
+            for (SRMFMapDestination.SRMFMergeSet mergeSet : destination.getMergeSets()) {
+                references.addAll(mergeSet.getReferences());
+            }
+            for (SRMFMapDestination.SRMFMapRef reference : references) {
+                if (!providerRenders.containsKey(reference.getId())) {
+                    providerRenders.put(reference.getId(), new ArrayList<String>());
+                }
+                for (SRMFMapDestination.SRMFMapRef.SRMFRender render : reference.getRenderers()) {
+                    providerRenders.get(reference.getId()).add(render.getRender());
+                }
+            }
+        }
+
+        this.renderedProperties.clear();
+        for (Map.Entry<String, List<String>> entry : providerRenders.entrySet()) {
+            Set<String> properties = new TreeSet<String>();
+            for (String renderId : entry.getValue()) {
+                Set<String> styleProperties = this.getStyleProperties(renderId);
+                if (styleProperties == null) {
+                    properties = null;
+                    break;
+                }
+                properties.addAll(styleProperties);
+            }
+
+            if (properties != null && !properties.isEmpty()) {
+                this.renderedProperties.put(entry.getKey(), properties.toArray(new String[properties.size()]));
+            }
+        }
+    }
+
+
+    /**
+     * Get the properties the stylesheet reads by name, i.e. PROPERTY[@NAME='Name'].
+     * 
+     * @param renderId
+     * @return Property names or null, if the stylesheet is not accessible
+     *         or might read any other property.
+     */
+    private Set<String> getStyleProperties(String renderId) {
+        SRMFRenderer renderer = this.getRenderer(renderId);
+        if (renderer != null) {
+            String[] properties = renderer.getProperties(renderId);
+            return properties != null && properties.length > 0 ? new TreeSet<String>(Arrays.asList(properties)) : null;
+        }
+
+        Document style;
+        try {
+            style = SRMFUtils.getXMLDocumentFromFile(this.getRenderingStyle(renderId));
+        } catch (Exception ex) {
+            return null;
+        }
+
+        Set<String> properties = new TreeSet<String>();
+        NodeList elements = style.getElementsByTagName("*");
+        for (int i = 0; i < elements.getLength(); i++) {
+            Element element = (Element) elements.item(i);
+            if (element.getTagName().endsWith(":include") || element.getTagName().endsWith(":import")) {
+                return null;
+            }
+
+            NamedNodeMap attributes = element.getAttributes();
+            for (int j = 0; j < attributes.getLength(); j++) {
+                String expression = attributes.item(j).getNodeValue();
+                if (SRMFRenderMap.PROPERTY_WILDCARD.matcher(expression).find()) {
+                    return null;
+                }
+
+                int named = 0;
+                Matcher matcher = SRMFRenderMap.PROPERTY_NAMED.matcher(expression);
+                while (matcher.find()) {
+                    properties.add(matcher.group(2));
+                    named++;
+                }
+
+                int any = 0;
+                matcher = SRMFRenderMap.PROPERTY_ANY.matcher(expression);
+                while (matcher.find()) {
+                    any++;
+                }
+
+                if (any != named) {
+                    return null;
+                }
+            }
+        }
+
+        return properties.isEmpty() ? null : properties;
     }
     
     /**
@@ -448,7 +667,8 @@ public class SRMFRenderMap {
         SRMFMapDestination.SRMFMapRef reference = new SRMFMapDestination.SRMFMapRef(ref.getAttribute("id"));
         for (int k = 0; k < renderNodeList.getLength(); k++) {
             Element renderElement = (Element) renderNodeList.item(k);
-            reference.addRender(new SRMFMapDestination.SRMFMapRef.SRMFRender(renderElement.getAttribute("id"), renderElement.getAttribute("out")));
+            reference.addRender(new SRMFMapDestination.SRMFMapRef.SRMFRender(renderElement.getAttribute("id"), renderElement.getAttribute("out"),
+                                                                             renderElement.getAttribute("lifecycle")));
         }
         
         return reference;
@@ -488,6 +708,18 @@ public class SRMFRenderMap {
     }
 
     
+    /**
+     * Get properties of the provider, that are read by all its renderers.
+     * 
+     * @param id
+     * @return Property names or null, if they cannot be found out.
+     */
+    public String[] getRenderedProperties(String id) {
+        String[] properties = this.renderedProperties.get(id);
+        return properties != null ? properties.clone() : null;
+    }
+
+
     /**
      * Get all available providers.
      * 
@@ -509,6 +741,36 @@ public class SRMFRenderMap {
 
     
 
+    /**
+     * Get native renderer by the ID.
+     *
+     * @param renderId
+     * @return Renderer or null, if the render is done by the XSL stylesheet.
+     */
+    public SRMFRenderer getRenderer(String renderId) {
+        return this.nativeRenderers ? SRMFRenderMap.getRegistry().get(renderId) : null;
+    }
+
+
+    /**
+     * Native renderers on the classpath by their render IDs.
+     *
+     * @return
+     */
+    private static synchronized Map<String, SRMFRenderer> getRegistry() {
+        if (SRMFRenderMap.registry == null) {
+            SRMFRenderMap.registry = new HashMap<String, SRMFRenderer>();
+            for (SRMFRenderer renderer : ServiceLoader.load(SRMFRenderer.class)) {
+                for (String renderId : renderer.getRenderIds()) {
+                    SRMFRenderMap.registry.put(renderId, renderer);
+                }
+            }
+        }
+
+        return SRMFRenderMap.registry;
+    }
+
+
     /**
      * Get render XSL stylesheet by the ID.
      * 
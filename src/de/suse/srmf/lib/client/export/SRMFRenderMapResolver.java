@@ -36,8 +36,10 @@ import de.suse.srmf.lib.client.export.SRMFRenderMap.SRMFMapProvider;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -99,7 +101,8 @@ public final class SRMFRenderMapResolver {
                                                                objElement.getAttribute("id"),
                                                                objElement.getAttribute("title"),
                                                                objElement.getAttribute("type"),
-                                                               this.getQuery(objElement));
+                                                               this.getQuery(objElement),
+                                                               this.getProperties(objElement));
                 this.providers.put(provider.getId(), provider);
             }
         }
@@ -128,6 +131,29 @@ public final class SRMFRenderMapResolver {
         return null;
     }
 
+
+    /**
+     * Get the properties, declared in the object element as:
+     * 
+     *     <property name="Name"/>
+     * 
+     * @param obj
+     * @return Property names or null, if none declared (all are needed).
+     */
+    private String[] getProperties(Element obj) {
+        List<String> properties = new ArrayList<String>();
+        NodeList propertyNodeList = obj.getElementsByTagName("property");
+        for (int i = 0; i < propertyNodeList.getLength(); i++) {
+            String name = ((Element) propertyNodeList.item(i)).getAttribute("name").trim();
+            if (!name.isEmpty() && !properties.contains(name)) {
+                properties.add(name);
+            }
+        }
+
+        return properties.isEmpty() ? null : properties.toArray(new String[properties.size()]);
+    }
+
+
     /**
      * Get resolved providers.
      * @return 
@@ -0,0 +1,94 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client.export;
+
+import de.suse.srmf.lib.client.CIMCompactInstance;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Native renderer of the export, used instead of the XSL stylesheet
+ * with the same render ID.
+ *
+ * Renderers are found by java.util.ServiceLoader in
+ * META-INF/services/de.suse.srmf.lib.client.export.SRMFRenderer,
+ * so the plugins are added just by putting their jar to the classpath.
+ * One renderer is shared by all the exports, so it must keep nothing
+ * but in the SRMFRender of one message.
+ *
+ * @author bo
+ */
+public interface SRMFRenderer {
+    /**
+     * Render of one message. Gets the instances one by one, as they are read.
+     */
+    public static interface SRMFRender {
+        /**
+         * Render next instance of the message.
+         *
+         * @param instance
+         * @throws IOException
+         */
+        public void onInstance(CIMCompactInstance instance) throws IOException;
+
+        /**
+         * All the instances are rendered. Writer is flushed and closed by the caller.
+         *
+         * @throws IOException
+         */
+        public void finish() throws IOException;
+    }
+
+    /**
+     * Render IDs, as of the stylesheets, i.e. "cim-process-text".
+     *
+     * @return
+     */
+    public String[] getRenderIds();
+
+    /**
+     * Properties, that are read by the render.
+     *
+     * @param renderId
+     * @return Property names or null, if any of them might be read.
+     */
+    public String[] getProperties(String renderId);
+
+    /**
+     * Start rendering of one message.
+     *
+     * @param renderId
+     * @param out
+     * @return
+     */
+    public SRMFRender newRender(String renderId, Writer out);
+}
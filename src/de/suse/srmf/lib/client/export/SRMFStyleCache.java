@@ -0,0 +1,197 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Compiled XSL stylesheets.
+ *
+ * Every stylesheet is compiled only once and shared by all the renders,
+ * each of them gets its own cheap transformer. The stylesheet is compiled
+ * again, once it has been changed on the disk.
+ *
+ * @author bo
+ */
+public final class SRMFStyleCache {
+    private static SRMFStyleCache instance;
+    private final ConcurrentMap<String, CompiledStyle> styles;
+
+    /**
+     * Stylesheet, compiled (or being compiled) at its modification time.
+     */
+    private static class CompiledStyle {
+        private final long modified;
+        private final FutureTask<Templates> templates;
+
+        public CompiledStyle(final File style, long modified) {
+            this.modified = modified;
+            this.templates = new FutureTask<Templates>(new Callable<Templates>() {
+                @Override
+                public Templates call() throws Exception {
+                    return TransformerFactory.newInstance().newTemplates(new StreamSource(style));
+                }
+            });
+        }
+    }
+
+
+    private SRMFStyleCache() {
+        this.styles = new ConcurrentHashMap<String, CompiledStyle>();
+    }
+
+
+    /**
+     * Get the cache instance.
+     *
+     * @return
+     */
+    public static synchronized SRMFStyleCache getInstance() {
+        if (SRMFStyleCache.instance == null) {
+            SRMFStyleCache.instance = new SRMFStyleCache();
+        }
+
+        return SRMFStyleCache.instance;
+    }
+
+
+    /**
+     * Get compiled stylesheet. Concurrent calls wait for the same compilation.
+     *
+     * @param style
+     * @return
+     * @throws TransformerConfigurationException
+     */
+    public Templates getTemplates(File style) throws TransformerConfigurationException {
+        String path;
+        try {
+            path = style.getCanonicalPath();
+        } catch (IOException ex) {
+            throw new TransformerConfigurationException(ex);
+        }
+        long modified = style.lastModified();
+
+        CompiledStyle compiled = this.styles.get(path);
+        if (compiled == null || compiled.modified != modified) {
+            CompiledStyle fresh = new CompiledStyle(style, modified);
+            boolean owner = compiled == null ? this.styles.putIfAbsent(path, fresh) == null
+                                             : this.styles.replace(path, compiled, fresh);
+            compiled = owner ? fresh : this.styles.get(path);
+            if (owner) {
+                fresh.templates.run();
+            } else if (compiled == null) {
+                return this.getTemplates(style); // Dropped after the failure in between
+            }
+        }
+
+        try {
+            return compiled.templates.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new TransformerConfigurationException(ex);
+        } catch (ExecutionException ex) {
+            this.styles.remove(path, compiled); // Next render tries again
+            if (ex.getCause() instanceof TransformerConfigurationException) {
+                throw (TransformerConfigurationException) ex.getCause();
+            }
+            throw new TransformerConfigurationException(ex.getCause());
+        }
+    }
+
+
+    /**
+     * Get new transformer of the compiled stylesheet.
+     * Transformer is not thread-safe, so it is used only once.
+     *
+     * @param style
+     * @return
+     * @throws TransformerConfigurationException
+     */
+    public Transformer newTransformer(File style) throws TransformerConfigurationException {
+        return this.getTemplates(style).newTransformer();
+    }
+
+
+    /**
+     * Compile all the stylesheets at once and wait for them.
+     * Broken stylesheets are only reported here, their renders fail later.
+     *
+     * @param styles
+     */
+    public void precompile(Collection<File> styles) {
+        if (styles.isEmpty()) {
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(styles.size(), Runtime.getRuntime().availableProcessors()));
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (final File style : styles) {
+            results.add(pool.submit(new Callable<Templates>() {
+                @Override
+                public Templates call() throws Exception {
+                    return SRMFStyleCache.this.getTemplates(style);
+                }
+            }));
+        }
+        pool.shutdown();
+
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ex) {
+                Logger.getLogger(SRMFStyleCache.class.getName()).log(Level.WARNING, ex.getCause().getLocalizedMessage());
+            }
+        }
+    }
+}
@@ -30,8 +30,12 @@
  */
 package de.suse.srmf.lib.client.export;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.StringReader;
 import java.io.StringWriter;
@@ -41,18 +45,22 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
 import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
@@ -204,7 +212,61 @@ class CLITablePrint {
  * @author bo
  */
 public class SRMFUtils {
-    
+    private static final String LOAD_EXTERNAL_DTD = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+    private static final DocumentBuilderFactory BUILDER_FACTORY = SRMFUtils.createBuilderFactory();
+    private static final ThreadLocal<DocumentBuilder> BUILDER = new ThreadLocal<DocumentBuilder>();
+
+    // External entities and DTDs are never fetched
+    private static final EntityResolver NO_EXTERNAL_ENTITIES = new EntityResolver() {
+        @Override
+        public InputSource resolveEntity(String publicId, String systemId) {
+            return new InputSource(new StringReader(""));
+        }
+    };
+
+
+    /**
+     * Create the factory of the parsers. It is configured only once.
+     * 
+     * @return 
+     */
+    private static DocumentBuilderFactory createBuilderFactory() {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setValidating(false);
+        factory.setXIncludeAware(false);
+        try {
+            factory.setFeature(SRMFUtils.LOAD_EXTERNAL_DTD, false);
+        } catch (ParserConfigurationException ex) {
+            // Entity resolver still keeps the DTDs away
+        }
+
+        return factory;
+    }
+
+
+    /**
+     * Get XML parser of the current thread, reset for the next use.
+     * Parsers are not thread-safe, so every thread has its own one.
+     * 
+     * @return
+     * @throws ParserConfigurationException 
+     */
+    public static DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
+        DocumentBuilder builder = SRMFUtils.BUILDER.get();
+        if (builder == null) {
+            synchronized (SRMFUtils.BUILDER_FACTORY) {
+                builder = SRMFUtils.BUILDER_FACTORY.newDocumentBuilder();
+            }
+            SRMFUtils.BUILDER.set(builder);
+        } else {
+            builder.reset();
+        }
+        builder.setEntityResolver(SRMFUtils.NO_EXTERNAL_ENTITIES);
+
+        return builder;
+    }
+
+
     /**
      * Get XML document from file.
      * 
@@ -218,7 +280,7 @@ public class SRMFUtils {
             throws ParserConfigurationException,
                    SAXException,
                    IOException {
-        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(docfile);
+        return SRMFUtils.getDocumentBuilder().parse(docfile);
     }
 
     
@@ -235,7 +297,92 @@ public class SRMFUtils {
             throws ParserConfigurationException,
                    SAXException,
                    IOException {
-        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(docSource)));
+        return SRMFUtils.getDocumentBuilder().parse(new InputSource(new StringReader(docSource)));
+    }
+
+
+    /**
+     * Get XML document from the stored message file, compressed (.lmx) or not.
+     * 
+     * @param docfile
+     * @return
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws IOException 
+     */
+    public static Document getXMLDocumentFromStoredFile(File docfile)
+            throws ParserConfigurationException,
+                   SAXException,
+                   IOException {
+        InputStream in = SRMFUtils.openStoredFile(docfile);
+        try {
+            return SRMFUtils.getDocumentBuilder().parse(in);
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Open the stored message file, compressed (.lmx) or not.
+     * 
+     * @param docfile
+     * @return
+     * @throws IOException 
+     */
+    public static InputStream openStoredFile(File docfile) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(docfile));
+        try {
+            in.mark(2);
+            boolean compressed = in.read() == 0x1f && in.read() == 0x8b;
+            in.reset();
+
+            return compressed ? new GZIPInputStream(in) : in;
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+    }
+
+
+    /**
+     * Expand all the nodes of the parsed document, which the parser defers
+     * till they are read. Expanded document can be read by many threads at once,
+     * as long as nobody changes it.
+     *
+     * @param node
+     */
+    public static void expandDocument(Node node) {
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            SRMFUtils.expandDocument(child);
+        }
+        node.getNodeValue();
+        NamedNodeMap attributes = node.getAttributes();
+        if (attributes != null) {
+            for (int i = 0; i < attributes.getLength(); i++) {
+                SRMFUtils.expandDocument(attributes.item(i));
+            }
+        }
+    }
+
+
+    /**
+     * Get XML of one node, without the XML declaration.
+     * 
+     * @param node
+     * @return
+     * @throws TransformerConfigurationException
+     * @throws TransformerException 
+     */
+    public static String getXMLFragment(Node node)
+            throws TransformerConfigurationException,
+                   TransformerException {
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        StringWriter out = new StringWriter();
+        transformer.transform(new DOMSource(node), new StreamResult(out));
+
+        return out.toString();
     }
 
 
@@ -252,7 +399,7 @@ public class SRMFUtils {
                    TransformerException {
         Transformer transformer = null;
         if (xsltFile != null) {
-            transformer = TransformerFactory.newInstance().newTransformer(new StreamSource(xsltFile));
+            transformer = SRMFStyleCache.getInstance().newTransformer(xsltFile);
         } else {
             transformer = TransformerFactory.newInstance().newTransformer();
         }
@@ -264,6 +411,30 @@ public class SRMFUtils {
     }
 
     
+    /**
+     * Write XML out of DOM into the stream or transform with XSLT,
+     * without keeping the whole output in memory.
+     * 
+     * @param source
+     * @param xsltFile
+     * @param out
+     * @throws TransformerConfigurationException
+     * @throws TransformerException 
+     */
+    public static void xproc(Document source, File xsltFile, OutputStream out)
+            throws TransformerConfigurationException,
+                   TransformerException {
+        Transformer transformer = null;
+        if (xsltFile != null) {
+            transformer = SRMFStyleCache.getInstance().newTransformer(xsltFile);
+        } else {
+            transformer = TransformerFactory.newInstance().newTransformer();
+        }
+
+        transformer.transform(new DOMSource(source), new StreamResult(out));
+    }
+
+    
     /**
      * Check CLI params.
      * 
@@ -365,6 +536,26 @@ public class SRMFUtils {
     }
     
 
+    /**
+     * Join the items with the separator.
+     * 
+     * @param items
+     * @param separator
+     * @return 
+     */
+    public static String join(String[] items, String separator) {
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < items.length; i++) {
+            if (i > 0) {
+                buffer.append(separator);
+            }
+            buffer.append(items[i]);
+        }
+
+        return buffer.toString();
+    }
+
+
     /**
      * Wrap text with prefix.
      * @param text
@@ -0,0 +1,119 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client.export.renderers;
+
+import de.suse.srmf.lib.client.CIMCompactInstance;
+import de.suse.srmf.lib.client.export.SRMFRenderer;
+
+/**
+ * Common parts of the stock renderers, that are ported from the stylesheets.
+ *
+ * @author bo
+ */
+public abstract class SRMFBaseRenderer implements SRMFRenderer {
+    public static final String NAMED_INSTANCE = "VALUE.NAMEDINSTANCE";
+    public static final String OBJECT_WITH_PATH = "VALUE.OBJECTWITHPATH";
+
+    private final String[] renderIds;
+    private final String[] properties;
+
+    /**
+     * Constructor.
+     *
+     * @param renderIds
+     * @param properties
+     */
+    protected SRMFBaseRenderer(String[] renderIds, String[] properties) {
+        this.renderIds = renderIds;
+        this.properties = properties;
+    }
+
+
+    @Override
+    public String[] getRenderIds() {
+        return this.renderIds.clone();
+    }
+
+
+    @Override
+    public String[] getProperties(String renderId) {
+        return this.properties.clone();
+    }
+
+
+    /**
+     * Get text of the scalar property, as XPath string of PROPERTY[@NAME='name'].
+     *
+     * @param instance
+     * @param name
+     * @return Text or empty string, if there is no such property or it has no value.
+     */
+    protected static String getString(CIMCompactInstance instance, String name) {
+        for (int i = 0; i < instance.getPropertyCount(); i++) {
+            if (!instance.isArray(i) && !instance.isReference(i) && instance.getPropertyName(i).equals(name)) {
+                return instance.hasValue(i) ? instance.getText(i) : "";
+            }
+        }
+
+        return "";
+    }
+
+
+    /**
+     * Strip and collapse the whitespace, as XPath normalize-space() does.
+     *
+     * @param text
+     * @return
+     */
+    protected static String normalizeSpace(String text) {
+        if (text == null) {
+            return "";
+        }
+
+        StringBuilder out = new StringBuilder(text.length());
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                space = out.length() > 0;
+            } else {
+                if (space) {
+                    out.append(' ');
+                    space = false;
+                }
+                out.append(c);
+            }
+        }
+
+        return out.toString();
+    }
+}
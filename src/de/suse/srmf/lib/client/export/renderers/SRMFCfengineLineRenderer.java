@@ -0,0 +1,103 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client.export.renderers;
+
+import de.suse.srmf.lib.client.CIMCompactInstance;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Cfengine bundle, that replaces the end of one line of the Apache configuration
+ * with the property of the first instance, that has it.
+ * Port of cim-httpd-set-docroot-cfengine.xsl and cim-httpd-set-port-cfengine.xsl.
+ *
+ * @author bo
+ */
+public class SRMFCfengineLineRenderer extends SRMFBaseRenderer {
+    public static final String DOCROOT = "cim-httpd-set-docroot-cfengine";
+    public static final String PORT = "cim-httpd-set-port-cfengine";
+
+    private static final String BUNDLE = "\nbody common control\n"
+                                         + "{\n"
+                                         + "  bundlesequence  => { \"%1$s\" };\n"
+                                         + "  inputs => { \"/var/cfengine/masterfiles/cfengine_stdlib.cf\" };\n"
+                                         + "}\n"
+                                         + "\n"
+                                         + "bundle agent %1$s\n"
+                                         + "{\n"
+                                         + "files:\n"
+                                         + "%2$s\n"
+                                         + "}\n"
+                                         + "  ";
+
+    public SRMFCfengineLineRenderer() {
+        super(new String[]{SRMFCfengineLineRenderer.DOCROOT, SRMFCfengineLineRenderer.PORT},
+              null);
+    }
+
+
+    @Override
+    public String[] getProperties(String renderId) {
+        return new String[]{renderId.equals(SRMFCfengineLineRenderer.PORT) ? "PortNumber" : "DocumentRoot"};
+    }
+
+
+    @Override
+    public SRMFRender newRender(final String renderId, final Writer out) {
+        final String property = this.getProperties(renderId)[0];
+        return new SRMFRender() {
+            private String value;
+
+            @Override
+            public void onInstance(CIMCompactInstance instance) throws IOException {
+                if (this.value == null && instance.getElementName().equals(SRMFBaseRenderer.NAMED_INSTANCE)
+                    && instance.indexOf(property) > -1) {
+                    this.value = SRMFBaseRenderer.getString(instance, property);
+                }
+            }
+
+            @Override
+            public void finish() throws IOException {
+                String text = SRMFBaseRenderer.normalizeSpace(this.value);
+                if (renderId.equals(SRMFCfengineLineRenderer.PORT)) {
+                    out.write(String.format(SRMFCfengineLineRenderer.BUNDLE, "set_listener_port",
+                                            "  \"/etc/apache2/listen.conf\"\n"
+                                            + "  edit_line => replace_line_end(\"^Listen\", \"" + text + "\");"));
+                } else {
+                    out.write(String.format(SRMFCfengineLineRenderer.BUNDLE, "set_document_root",
+                                            "  \"/etc/apache2/default-server.conf\"                      # promiser\n"
+                                            + "  edit_line => replace_line_end(\"^DocumentRoot\", \"\\\"" + text + "\\\"\");"));
+                }
+            }
+        };
+    }
+}
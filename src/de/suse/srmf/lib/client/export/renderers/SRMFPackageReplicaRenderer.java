@@ -0,0 +1,89 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client.export.renderers;
+
+import de.suse.srmf.lib.client.CIMCompactInstance;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Puppet class, that installs all the packages of the host.
+ * Port of cim-installed-packages-kiwi.xsl and cim-installed-packages-pupppet.xsl.
+ *
+ * @author bo
+ */
+public class SRMFPackageReplicaRenderer extends SRMFBaseRenderer {
+    public SRMFPackageReplicaRenderer() {
+        super(new String[]{"cim-installed-packages-kiwi", "cim-installed-packages-pupppet"},
+              new String[]{"Name"});
+    }
+
+
+    @Override
+    public SRMFRender newRender(String renderId, final Writer out) {
+        return new SRMFRender() {
+            private StringBuilder pending = new StringBuilder(); // Packages before the first host is known
+
+            @Override
+            public void onInstance(CIMCompactInstance instance) throws IOException {
+                if (!instance.getElementName().equals(SRMFBaseRenderer.OBJECT_WITH_PATH)) {
+                    return;
+                }
+                if (this.pending != null && instance.getHost() != null) {
+                    this.start(instance.getHost());
+                }
+
+                String line = String.format("\n        package { \"%s\": ensure => \"installed\" }",
+                                            SRMFBaseRenderer.normalizeSpace(SRMFBaseRenderer.getString(instance, "Name")));
+                if (this.pending != null) {
+                    this.pending.append(line);
+                } else {
+                    out.write(line);
+                }
+            }
+
+            @Override
+            public void finish() throws IOException {
+                if (this.pending != null) {
+                    this.start("");
+                }
+                out.write("\n}\n  ");
+            }
+
+            private void start(String host) throws IOException {
+                out.write(String.format("\nclass host_%s_pkg_replica {\n", SRMFBaseRenderer.normalizeSpace(host)));
+                out.write(this.pending.toString());
+                this.pending = null;
+            }
+        };
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Author: Bo Maryniuk <bo@suse.de>
+ *
+ * Copyright (c) 2013 Bo Maryniuk. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *     3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY BO MARYNIUK "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.suse.srmf.lib.client.export.renderers;
+
+import de.suse.srmf.lib.client.CIMCompactInstance;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Table of the processes with their session IDs and priorities.
+ * Port of cim-process-text.xsl, which the kiwi system stylesheets still copy.
+ *
+ * @author bo
+ */
+public class SRMFProcessTableRenderer extends SRMFBaseRenderer {
+    private static final String HEADER = "\nPSID\tPri\tName\n----\t---\t----\n    ";
+
+    public SRMFProcessTableRenderer() {
+        super(new String[]{"cim-process-text", "cim-system-owner-kiwi", "cim-system-repositories-kiwi"},
+              new String[]{"Name", "Priority", "ProcessSessionID"});
+    }
+
+
+    @Override
+    public SRMFRender newRender(String renderId, final Writer out) {
+        return new SRMFRender() {
+            private boolean started;
+
+            @Override
+            public void onInstance(CIMCompactInstance instance) throws IOException {
+                this.start();
+                if (!instance.getElementName().equals(SRMFBaseRenderer.NAMED_INSTANCE)) {
+                    return;
+                }
+
+                String name = SRMFBaseRenderer.getString(instance, "Name");
+                if (!name.isEmpty()) {
+                    out.write(SRMFBaseRenderer.normalizeSpace(SRMFBaseRenderer.getString(instance, "ProcessSessionID")));
+                    out.write("\t");
+                    out.write(SRMFBaseRenderer.normalizeSpace(SRMFBaseRenderer.getString(instance, "Priority")));
+                    out.write("\t");
+                    out.write(SRMFBaseRenderer.normalizeSpace(name));
+                    out.write("\n");
+                }
+            }
+
+            @Override
+            public void finish() throws IOException {
+                this.start();
+            }
+
+            private void start() throws IOException {
+                if (!this.started) {
+                    out.write(SRMFProcessTableRenderer.HEADER);
+                    this.started = true;
+                }
+            }
+        };
+    }
+}
@@ -32,6 +32,7 @@
 package de.suse.srmf.lib.client.export.storage;
 
 import com.orientechnologies.orient.core.db.ODatabase;
+import com.orientechnologies.orient.core.db.ODatabaseRecordThreadLocal;
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
 import java.io.IOException;
 
@@ -39,7 +40,8 @@ import java.io.IOException;
  * Connection wrapper.
  */
 public class OrientConnection extends ODatabaseDocumentTx {
-    private Boolean acquirable;
+    private volatile boolean acquirable;
+    private OrientDBConnectionPool pool;
 
     /**
      * Constructor.
@@ -64,12 +66,36 @@ public class OrientConnection extends ODatabaseDocumentTx {
     }
 
 
+    /**
+     * Leases the connection from the pool to the current thread.
+     *
+     * @param pool Pool, that gets the connection back on close.
+     */
+    protected final void lease(OrientDBConnectionPool pool) {
+        this.pool = pool;
+        this.acquirable = false;
+        ODatabaseRecordThreadLocal.INSTANCE.set(this);
+    }
+
+
     /**
      * Releases the connection for the pool.
      */
     @Override
     public void close() {
-        this.acquirable = Boolean.FALSE;
+        if (this.pool != null) {
+            this.pool.release(this);
+        } else {
+            this.acquirable = true;
+        }
+    }
+
+
+    /**
+     * Marks the connection as free. Called by the pool only.
+     */
+    final void setAcquirable() {
+        this.acquirable = true;
     }
 
     @Override
@@ -79,10 +105,10 @@ public class OrientConnection extends ODatabaseDocumentTx {
     }
 
     public final void open() {
-        this.acquirable = Boolean.TRUE;        
+        this.acquirable = true;
     }
 
-    public Boolean isAcquirable() {
+    public boolean isAcquirable() {
         return this.acquirable;
     }
 }
@@ -43,11 +43,13 @@ import java.util.List;
 public class OrientDBConnectionPool {
     
     private List<OrientConnection> pool;
+    private final int maxConnections;
     private static OrientDBConnectionPool instance;
 
     private OrientDBConnectionPool() throws IOException {
         this.pool = new ArrayList<OrientConnection>();
-        for (int i = 0; i < Integer.parseInt(SRMFConfig.getInstance().getItem(".srmf.graph.maxconn", "2")); i++) {
+        this.maxConnections = Math.max(1, Integer.parseInt(SRMFConfig.getInstance().getItem(".srmf.graph.maxconn", "2")));
+        for (int i = 0; i < this.maxConnections; i++) {
             this.addConnection();
         }
     }
@@ -61,21 +63,55 @@ public class OrientDBConnectionPool {
     }
 
     /**
-     * Acquire new connection. If not enough, new will be connected.
+     * Acquire new connection. If not enough, new will be connected up to
+     * ".srmf.graph.maxconn", otherwise it waits till one is released.
+     * Connection is given to one thread at a time until it is closed.
      * 
      * @return
      * @throws IOException 
      */
-    public OrientConnection acquire() throws IOException {
+    public synchronized OrientConnection acquire() throws IOException {
         this.closeExcessedConnections();
-        for (int i = 0; i < this.pool.size(); i++) {
-            OrientConnection orientConnection = pool.get(i);
-            if (!orientConnection.isClosed()) {
-                return orientConnection;
+        OrientConnection connection = null;
+        while (connection == null) {
+            for (int i = this.pool.size() - 1; i >= 0; i--) {
+                if (this.pool.get(i).isClosed()) {
+                    this.pool.remove(i); // Dropped by the server
+                }
+            }
+            for (int i = 0; i < this.pool.size(); i++) {
+                OrientConnection orientConnection = pool.get(i);
+                if (orientConnection.isAcquirable()) {
+                    connection = orientConnection;
+                    break;
+                }
+            }
+
+            if (connection == null && this.pool.size() < this.maxConnections) {
+                connection = this.addConnection();
+            } else if (connection == null) {
+                try {
+                    this.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the connection.");
+                }
             }
         }
-        
-        return this.addConnection();
+        connection.lease(this);
+
+        return connection;
+    }
+
+
+    /**
+     * Give the connection back to the pool.
+     *
+     * @param connection
+     */
+    synchronized void release(OrientConnection connection) {
+        connection.setAcquirable();
+        this.notifyAll();
     }
     
     /**
@@ -31,13 +31,31 @@
 
 package de.suse.srmf.lib.client.export.storage;
 
+import de.suse.srmf.lib.client.CIMInstanceCapture;
+import de.suse.srmf.lib.client.CIMXMLInstance;
+import de.suse.srmf.lib.client.CIMXMLReader;
 import de.suse.srmf.lib.client.export.SRMFMessage;
 import de.suse.srmf.lib.client.export.SRMFMessageDiff;
 import de.suse.srmf.lib.client.export.SRMFUtils;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
@@ -45,13 +63,18 @@ import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 
 /**
+ * Stores messages to the files per host.
+ * Fingerprints of the last stored snapshot of each provider are kept aside
+ * in <objectId>.fp, so the next snapshot is stored only, if it differs.
  *
  * @author bo
  */
 public class SRMFLocalStorage implements SRMFStorage {
     public static final String DEFAULT_STORAGE_PATH = "/var/opt/srmf/manifest";
+    private static final String FINGERPRINTS_SUFFIX = ".fp";
     private File path;
     private boolean compression;
+    private final Map<String, Map<String, String>> fingerprints = new ConcurrentHashMap<String, Map<String, String>>();
 
     
     /**
@@ -71,6 +94,7 @@ public class SRMFLocalStorage implements SRMFStorage {
                 if (!path.mkdirs()) {
                 throw new IOException(String.format("Unable to initialize storage at %s", path.getAbsolutePath()));                    
                 }
+                this.path = path;
             } else {
                 throw new IOException(String.format("Unable to access storage at %s", path.getAbsolutePath()));
             }
@@ -80,49 +104,308 @@ public class SRMFLocalStorage implements SRMFStorage {
     }
     
     
+    /**
+     * Get directory of the host.
+     * 
+     * @param hostname
+     * @return 
+     */
+    private File getHostPath(String hostname) {
+        return new File(this.path.getAbsolutePath() + "/" + hostname); // Hosts are snapshotted in parallel
+    }
+
+
     @Override
-    public void storeMessage(SRMFMessage message) {
-        File outfh = new File(this.path.getAbsolutePath() + "/" + message.getObjectId().toLowerCase() + ".lmx"); // .lmx for compressed
+    public void storeMessage(SRMFMessage message) throws IOException {
+        File hostPath = this.getHostPath(message.getHostname());
+        File outfh = new File(hostPath.getAbsolutePath() + "/" + message.getObjectId().toLowerCase() + ".lmx"); // .lmx for compressed
+        if (!hostPath.mkdirs() && !hostPath.isDirectory()) {
+            throw new IOException(String.format("Unable to initialize storage at %s", hostPath.getAbsolutePath()));
+        }
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(outfh));
         try {
-            new FileOutputStream(outfh).write(this.getMessageSource(message));
-            System.err.println("> Written " + outfh.getAbsolutePath());
-        } catch (Exception ex) {
-            Logger.getLogger(SRMFLocalStorage.class.getName()).log(Level.SEVERE, null, ex);
+            this.writeMessageSource(message, out);
+        } catch (TransformerException ex) {
+            throw new IOException(ex);
+        } finally {
+            out.close();
         }
+        System.err.println("> Written " + outfh.getAbsolutePath() + (message.isPartial() ? " (partial)" : ""));
     }
     
     
 
 
     /**
-     * Get message source as byte array.
+     * Write message source into the stream.
      * Depends on settings, it could be compressed.
      * 
      * @param message
-     * @return
+     * @param out
      * @throws TransformerConfigurationException
      * @throws TransformerException
      * @throws IOException 
      */
-    private byte[] getMessageSource(SRMFMessage message)
+    private void writeMessageSource(SRMFMessage message, OutputStream out)
             throws TransformerConfigurationException,
                    TransformerException,
                    IOException {
-        byte[] msg = SRMFUtils.xproc(message.getDocument(), null).getBytes();
         if (this.compression) {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            GZIPOutputStream zos = new GZIPOutputStream(baos);
-            zos.write(msg);
-            zos.close();
-            msg = baos.toByteArray();
+            GZIPOutputStream zos = new GZIPOutputStream(out);
+            SRMFUtils.xproc(message.getDocument(), null, zos);
+            zos.finish();
+        } else {
+            SRMFUtils.xproc(message.getDocument(), null, out);
         }
-        
-        return msg;
     }
 
 
+    /**
+     * Diff the message to the last snapshot, that was committed.
+     * 
+     * @param message
+     * @return 
+     */
     @Override
     public SRMFMessageDiff diffMessage(SRMFMessage message) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return new SRMFMessageDiff(message, this.loadFingerprints(message.getHostname(), message.getObjectId()));
+    }
+
+
+    /**
+     * Diff of the few changed instances to the last snapshot.
+     * 
+     * @param message
+     * @param deleted
+     * @return 
+     */
+    public SRMFMessageDiff diffChanges(SRMFMessage message, boolean deleted) {
+        return SRMFMessageDiff.getChanges(message, this.loadFingerprints(message.getHostname(), message.getObjectId()), deleted);
+    }
+
+
+    /**
+     * Message file keeps the whole result, so it is rewritten completely, if anything has changed.
+     * Change set and partial result are patched into the message file, that is already there,
+     * so the instances, that are missing in them, are kept.
+     * 
+     * @param diff 
+     * @throws IOException
+     */
+    @Override
+    public void storeDiff(SRMFMessageDiff diff) throws IOException {
+        if (diff.isEmpty()) {
+            return;
+        }
+
+        final SRMFMessage message = diff.getMessage();
+        File outfh = new File(this.getHostPath(message.getHostname()), message.getObjectId().toLowerCase() + ".lmx");
+        if (!diff.isChangeSet() && (!message.isPartial() || !outfh.canRead())) {
+            this.storeMessage(message);
+            return;
+        } else if (!outfh.canRead()) {
+            return; // Nothing to patch till the next snapshot
+        }
+
+        // Stored instances are streamed into the new file, only the changed ones are replaced
+        final Set<String> removed = new HashSet<String>(diff.getDeleted());
+        removed.addAll(diff.getModified());
+        File tmpFile = new File(outfh.getParentFile(), outfh.getName() + ".tmp");
+        try {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(tmpFile));
+            GZIPOutputStream zos = this.compression ? new GZIPOutputStream(os) : null;
+            final Writer out = new OutputStreamWriter(zos != null ? zos : os, "UTF-8");
+            final CIMXMLReader reader = new CIMXMLReader(true);
+            final boolean[] started = new boolean[]{false};
+            final Map<String, Integer> occurrences = new HashMap<String, Integer>();
+            try {
+                out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+                reader.read(outfh, new CIMXMLReader.CIMXMLInstanceHandler() {
+                    @Override
+                    public void onInstance(CIMXMLInstance instance) throws Exception {
+                        if (!started[0]) {
+                            out.write(SRMFLocalStorage.getEnvelopeStart(reader, message.isPartial()));
+                            started[0] = true;
+                        }
+
+                        // Keys of the instances without keys are numbered, as in the diff
+                        String key = instance.getKey();
+                        Integer seen = occurrences.get(key);
+                        occurrences.put(key, seen == null ? 1 : seen + 1);
+                        if (!removed.contains(seen != null ? key + "#" + seen : key)) {
+                            out.write(instance.getSource());
+                        }
+                    }
+                });
+                if (!started[0]) {
+                    out.write(SRMFLocalStorage.getEnvelopeStart(reader, message.isPartial()));
+                }
+
+                List<String> inserted = new ArrayList<String>(diff.getAdded());
+                inserted.addAll(diff.getModified());
+                for (String key : inserted) {
+                    out.write(diff.getInstance(key).toXML());
+                }
+                out.write(SRMFMessage.ENVELOPE_END);
+                out.flush();
+                if (zos != null) {
+                    zos.finish();
+                }
+            } finally {
+                out.close();
+            }
+
+            SRMFLocalStorage.replaceFile(tmpFile, outfh);
+            System.err.println("> Written " + outfh.getAbsolutePath() + (reader.isPartial() || message.isPartial() ? " (partial)" : ""));
+        } catch (IOException ex) {
+            tmpFile.delete();
+            throw ex;
+        } catch (Exception ex) {
+            tmpFile.delete();
+            throw new IOException(ex);
+        }
+    }
+
+
+    /**
+     * Start of the envelope of the message, that is read.
+     * 
+     * @param reader
+     * @param partial Patched with the partial result.
+     * @return 
+     */
+    private static String getEnvelopeStart(CIMXMLReader reader, boolean partial) {
+        return SRMFMessage.getEnvelopeStart(reader.getOperation() != null && !reader.getOperation().isEmpty()
+                                            ? reader.getOperation() : CIMInstanceCapture.OP_ENUMERATE_INSTANCES,
+                                            reader.isPartial() || partial);
+    }
+
+
+    /**
+     * Replace the file with the one, that is completely written.
+     * 
+     * @param tmpFile
+     * @param file
+     * @throws IOException 
+     */
+    private static void replaceFile(File tmpFile, File file) throws IOException {
+        if (!tmpFile.renameTo(file)) {
+            file.delete();
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException(String.format("Unable to write %s", file.getAbsolutePath()));
+            }
+        }
+    }
+
+
+    /**
+     * Load the last stored snapshot of the provider.
+     * 
+     * @param hostname
+     * @param objectId
+     * @return Message or null, if there is no snapshot.
+     * @throws Exception 
+     */
+    @Override
+    public SRMFMessage loadMessage(String hostname, String objectId) throws Exception {
+        File infh = new File(this.getHostPath(hostname), objectId.toLowerCase() + ".lmx");
+        if (!infh.canRead()) {
+            return null;
+        }
+
+        return new SRMFMessage(hostname, objectId, null, null, SRMFUtils.getXMLDocumentFromStoredFile(infh));
+    }
+
+
+    /**
+     * Take the diff as the last snapshot for the next diffs.
+     * 
+     * @param diff 
+     */
+    public void commitDiff(SRMFMessageDiff diff) {
+        SRMFMessage message = diff.getMessage();
+        Map<String, String> state = new LinkedHashMap<String, String>(diff.getFingerprints());
+        this.fingerprints.put(this.getFingerprintsId(message.getHostname(), message.getObjectId()), state);
+        if (diff.isEmpty()) {
+            return;
+        }
+
+        File hostPath = this.getHostPath(message.getHostname());
+        File fpFile = new File(hostPath, message.getObjectId().toLowerCase() + SRMFLocalStorage.FINGERPRINTS_SUFFIX);
+        File tmpFile = new File(hostPath, fpFile.getName() + ".tmp");
+        try {
+            if (!hostPath.mkdirs() && !hostPath.isDirectory()) {
+                throw new IOException(String.format("Unable to initialize storage at %s", hostPath.getAbsolutePath()));
+            }
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"));
+            try {
+                for (Map.Entry<String, String> entry : state.entrySet()) {
+                    out.write(entry.getValue());
+                    out.write(' ');
+                    out.write(entry.getKey());
+                    out.write('\n');
+                }
+            } finally {
+                out.close();
+            }
+            SRMFLocalStorage.replaceFile(tmpFile, fpFile);
+        } catch (IOException ex) {
+            Logger.getLogger(SRMFLocalStorage.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+
+    /**
+     * Get fingerprints of the last snapshot: "<hash> <key>" per line.
+     * 
+     * @param hostname
+     * @param objectId
+     * @return Fingerprints or null, if there was no snapshot yet.
+     */
+    private Map<String, String> loadFingerprints(String hostname, String objectId) {
+        String id = this.getFingerprintsId(hostname, objectId);
+        Map<String, String> state = this.fingerprints.get(id);
+        if (state != null) {
+            return state;
+        }
+
+        File fpFile = new File(this.getHostPath(hostname), objectId.toLowerCase() + SRMFLocalStorage.FINGERPRINTS_SUFFIX);
+        if (!fpFile.canRead()) {
+            return null;
+        }
+
+        state = new LinkedHashMap<String, String>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(fpFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int separator = line.indexOf(' ');
+                    if (separator > 0) {
+                        state.put(line.substring(separator + 1), line.substring(0, separator));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(SRMFLocalStorage.class.getName()).log(Level.WARNING, null, ex);
+            return null; // Everything is stored again
+        }
+        this.fingerprints.put(id, state);
+
+        return state;
+    }
+
+
+    /**
+     * Get ID of the provider snapshot on the host.
+     * 
+     * @param hostname
+     * @param objectId
+     * @return 
+     */
+    private String getFingerprintsId(String hostname, String objectId) {
+        return hostname + "/" + objectId.toLowerCase();
     }
 }
@@ -31,13 +31,24 @@
 
 package de.suse.srmf.lib.client.export.storage;
 
-import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.metadata.schema.OSchema;
+import com.orientechnologies.orient.core.metadata.schema.OType;
 import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.sql.OCommandSQL;
+import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
+import de.suse.srmf.lib.client.CIMCompactInstance;
+import de.suse.srmf.lib.client.CIMInstanceCapture;
+import de.suse.srmf.lib.client.CIMXMLInstance;
+import de.suse.srmf.lib.client.CIMXMLReader;
 import de.suse.srmf.lib.client.export.SRMFMessage;
 import de.suse.srmf.lib.client.export.SRMFMessageDiff;
 import de.suse.srmf.lib.client.export.SRMFUtils;
 import java.io.IOException;
 import java.util.AbstractMap.SimpleEntry;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -52,36 +63,41 @@ import org.w3c.dom.NodeList;
  * @author bo
  */
 class SimpleCIMObject {    
+    // Fields of the instance record, so it can be found by the next diff
+    public static final String FIELD_HOST = "SRMF_HOST";
+    public static final String FIELD_KEY = "SRMF_KEY";
+    public static final String FIELD_HASH = "SRMF_HASH";
+
+    // Fields of the instance record, so the snapshot can be rendered again offline
+    public static final String FIELD_OBJECT = "SRMF_OBJECT";
+    public static final String FIELD_SOURCE = "SRMF_SOURCE";
+
+    // Superclass of all the instance classes, indexed by the host and the provider
+    public static final String CLASS_INSTANCE = "SRMF_Instance";
+    private static final Set<String> preparedClasses = new HashSet<String>();
+
     private Document doc;
+    private String host;
+    private String objectId;
 
-    public SimpleCIMObject() {}
+    public SimpleCIMObject(String host, String objectId) {
+        this.host = host;
+        this.objectId = objectId;
+    }
     
-    private ODocument cimSetNamespacePath(ODocument vertex, Node instance) {
-        NodeList namespacePathList = ((Element) instance).getElementsByTagName("NAMESPACEPATH");
-        for (int i = 0; i < namespacePathList.getLength(); i++) {
-            Node el = namespacePathList.item(i);
-            // Get host name
-            NodeList nl = ((Element) el).getElementsByTagName("HOST");
-            if (nl.getLength() > 0) {
-                vertex.field("HOST", SRMFUtils.getDOMElementText(nl.item(0), null, null).toString());
-            }
-            
-            // Get local name spacepath
-            nl = ((Element) el).getElementsByTagName("LOCALNAMESPACEPATH");
-            StringBuilder namespace = new StringBuilder();
-            if (nl.getLength() > 0) {
-                nl = ((Element) nl.item(0)).getElementsByTagName("NAMESPACE");
-                for (int nsi = 0; nsi < nl.getLength(); nsi++) {
-                    namespace.append(((Element) nl.item(nsi)).getAttribute("NAME"));
-                    if (nsi < nl.getLength() - 1) {
-                        namespace.append("/");
-                    }
-                }
-            }
-
-            if (!namespace.toString().isEmpty()) {
-                vertex.field("LOCALNAMESPACEPATH", namespace.toString());
-            }
+    /**
+     * Set the namespace path of the instance.
+     * 
+     * @param vertex
+     * @param instance
+     * @return 
+     */
+    private ODocument cimSetNamespacePath(ODocument vertex, CIMCompactInstance instance) {
+        if (instance.getHost() != null) {
+            vertex.field("HOST", instance.getHost());
+        }
+        if (instance.getNamespace() != null && !instance.getNamespace().isEmpty()) {
+            vertex.field("LOCALNAMESPACEPATH", instance.getNamespace());
         }
 
         return vertex;
@@ -95,15 +111,13 @@ class SimpleCIMObject {
      * @param instance
      * @return 
      */
-    private ODocument cimSetProperties(ODocument vertex, Node instance) {
-        System.err.println("Setting properties to the instance " + instance);
-        NodeList propertyNodeList = ((Element) instance).getElementsByTagName("PROPERTY");
-        for (int i = 0; i < propertyNodeList.getLength(); i++) {
-            Node propertyNode = propertyNodeList.item(i);
-            String pKey = ((Element) propertyNode).getAttribute("NAME").trim();
-            String pValue = SRMFUtils.getDOMElementText(propertyNode, null, null).toString().trim();
-            if (!pValue.isEmpty()) {
-                vertex.field(pKey, pValue);
+    private ODocument cimSetProperties(ODocument vertex, CIMCompactInstance instance) {
+        for (int i = 0; i < instance.getPropertyCount(); i++) {
+            if (!instance.isArray(i) && !instance.isReference(i) && instance.hasValue(i)) {
+                String pValue = instance.getText(i).trim();
+                if (!pValue.isEmpty()) {
+                    vertex.field(instance.getPropertyName(i).trim(), pValue);
+                }
             }
         }
 
@@ -112,46 +126,237 @@ class SimpleCIMObject {
     
 
     /**
-     * Get DOM instances.
+     * Get one CIM instance.
      * 
-     * @return 
+     * @param instance 
+     * @param key
+     * @param hash
      */
-    private NodeList getInstances() {
-        NodeList instances = this.doc.getElementsByTagName("VALUE.NAMEDINSTANCE");
-        if (instances.getLength() == 0) {
-            instances = this.doc.getElementsByTagName("VALUE.OBJECTWITHPATH");
+    private void cimCreateInstanceDoc(CIMCompactInstance instance, String key, String hash) throws IOException {
+        OrientConnection db = OrientDBConnectionPool.getInstance().acquire();
+        try {
+            SimpleCIMObject.prepareClass(db, instance.getClassName());
+            ODocument obj = db.newInstance(instance.getClassName());
+            this.cimSetNamespacePath(obj, instance);
+            this.cimSetProperties(obj, instance);
+            obj.field(SimpleCIMObject.FIELD_HOST, this.host);
+            obj.field(SimpleCIMObject.FIELD_KEY, key);
+            obj.field(SimpleCIMObject.FIELD_HASH, hash);
+            obj.field(SimpleCIMObject.FIELD_OBJECT, this.objectId);
+            obj.field(SimpleCIMObject.FIELD_SOURCE, instance.toXML());
+            if (Boolean.parseBoolean(this.doc.getDocumentElement().getAttribute(SRMFMessage.PARTIAL))) {
+                obj.field(SRMFMessage.PARTIAL, Boolean.TRUE);
+            }
+            obj.save();
+        } finally {
+            db.close();
         }
+    }
 
-        return instances;
+    /**
+     * Make the class of the instance a subclass of SRMF_Instance, so the snapshot
+     * of the provider is found by one indexed query, whatever classes it has.
+     * Classes, stored before, are moved under it too.
+     *
+     * @param db
+     * @param className
+     */
+    private static void prepareClass(OrientConnection db, String className) {
+        synchronized (SimpleCIMObject.preparedClasses) {
+            if (SimpleCIMObject.preparedClasses.contains(className)) {
+                return;
+            }
+
+            OSchema schema = db.getMetadata().getSchema();
+            OClass base = schema.getClass(SimpleCIMObject.CLASS_INSTANCE);
+            if (base == null) {
+                base = schema.createClass(SimpleCIMObject.CLASS_INSTANCE);
+                base.createProperty(SimpleCIMObject.FIELD_HOST, OType.STRING);
+                base.createProperty(SimpleCIMObject.FIELD_OBJECT, OType.STRING);
+                base.createIndex(SimpleCIMObject.CLASS_INSTANCE + ".snapshot", OClass.INDEX_TYPE.NOTUNIQUE,
+                                 SimpleCIMObject.FIELD_HOST, SimpleCIMObject.FIELD_OBJECT);
+            }
+
+            OClass cls = schema.getClass(className);
+            if (cls == null) {
+                schema.createClass(className, base);
+            } else if (cls.getSuperClass() == null && !cls.getName().equals(base.getName())) {
+                cls.setSuperClass(base);
+            }
+            SimpleCIMObject.preparedClasses.add(className);
+        }
     }
-    
+
     /**
-     * Get one CIM instance.
+     * Delete CIM instance of the host by its key.
      * 
-     * @param instance 
+     * @param key 
+     */
+    private void cimDeleteInstanceDoc(String key) throws IOException {
+        String className = SRMFMessageDiff.getClassName(key);
+        OrientConnection db = OrientDBConnectionPool.getInstance().acquire();
+        try {
+            if (db.getMetadata().getSchema().existsClass(className)) {
+                db.command(new OCommandSQL(String.format("DELETE FROM %s WHERE %s = ? AND %s = ?", className,
+                                                         SimpleCIMObject.FIELD_HOST, SimpleCIMObject.FIELD_KEY)))
+                  .execute(this.host, key);
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Delete all instances of the provider on the host, so the next full snapshot
+     * replaces the previous one instead of being added to it.
+     */
+    private void cimDeleteSnapshotDocs() throws IOException {
+        OrientConnection db = OrientDBConnectionPool.getInstance().acquire();
+        try {
+            if (db.getMetadata().getSchema().existsClass(SimpleCIMObject.CLASS_INSTANCE)) {
+                db.command(new OCommandSQL(String.format("DELETE FROM %s WHERE %s = ? AND %s = ?", SimpleCIMObject.CLASS_INSTANCE,
+                                                         SimpleCIMObject.FIELD_HOST, SimpleCIMObject.FIELD_OBJECT)))
+                  .execute(this.host, this.objectId);
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Delete all association edges of the host, so the edges that are gone
+     * since the last crawl do not stay.
+     *
+     * @param host
+     */
+    private void cimDeleteEdgeDocs(String host) throws IOException {
+        OrientConnection db = OrientDBConnectionPool.getInstance().acquire();
+        try {
+            if (db.getMetadata().getSchema().existsClass("SRMF_Association")) {
+                db.command(new OCommandSQL("DELETE FROM SRMF_Association WHERE HOST = ?")).execute(host);
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Get one association edge.
+     * 
+     * @param edge
+     * @param host 
      */
-    private void cimCreateInstanceDoc(Node instance) throws IOException {
+    private void cimCreateEdgeDoc(Element edge, String host) throws IOException {
         OrientConnection db = OrientDBConnectionPool.getInstance().acquire();
-        ODocument obj = db.newInstance(((Element)((Element) instance).getElementsByTagName("INSTANCENAME").item(0)).getAttribute("CLASSNAME"));
-        this.cimSetNamespacePath(obj, instance);
-        this.cimSetProperties(obj, instance);
-        obj.save();
-        ORID oid = obj.getIdentity();
-        db.close();
+        try {
+            ODocument obj = db.newInstance("SRMF_Association");
+            obj.field("HOST", host);
+            obj.field("FROM", edge.getAttribute("FROM"));
+            obj.field("TO", edge.getAttribute("TO"));
+            obj.field("DEPTH", Integer.parseInt(edge.getAttribute("DEPTH")));
+            obj.save();
+        } finally {
+            db.close();
+        }
     }
 
     /**
-     * Store the document to the OrientDB.
+     * Store the document to the OrientDB. Full snapshot replaces all the stored
+     * instances of the provider, partial one replaces only the instances it has.
      * 
      * @param document 
      */
     public void store(Document document) throws IOException {
         this.doc = document;
-        NodeList instances = this.getInstances();
-        for (int i = 0; i < instances.getLength(); i++) {
-            Node instance = instances.item(i);
-            this.cimCreateInstanceDoc(instance);
-        }        
+        if (document.getDocumentElement().getNodeName().equals("ASSOCIATIONS")) {
+            NodeList edges = document.getElementsByTagName("EDGE");
+            this.cimDeleteEdgeDocs(document.getDocumentElement().getAttribute("HOST"));
+            for (int i = 0; i < edges.getLength(); i++) {
+                this.cimCreateEdgeDoc((Element) edges.item(i), document.getDocumentElement().getAttribute("HOST"));
+            }
+            return;
+        }
+
+        final boolean partial = Boolean.parseBoolean(document.getDocumentElement().getAttribute(SRMFMessage.PARTIAL));
+        if (!partial) {
+            this.cimDeleteSnapshotDocs();
+        }
+        try {
+            new CIMXMLReader(true).read(document, new CIMXMLReader.CIMXMLInstanceHandler() {
+                @Override
+                public void onInstance(CIMXMLInstance instance) throws Exception {
+                    if (partial) {
+                        SimpleCIMObject.this.cimDeleteInstanceDoc(instance.getKey());
+                    }
+                    SimpleCIMObject.this.cimCreateInstanceDoc(CIMCompactInstance.valueOf(instance), instance.getKey(), instance.getHash());
+                }
+            });
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Store only the changes of the diff to the OrientDB.
+     * Modified instance is replaced, since its properties could also disappear.
+     * Added instance replaces the one, that could be left by the diff, that failed before.
+     * 
+     * @param diff 
+     */
+    public void store(SRMFMessageDiff diff) throws IOException {
+        this.doc = diff.getMessage().getDocument();
+        for (String key : diff.getDeleted()) {
+            this.cimDeleteInstanceDoc(key);
+        }
+        for (String key : diff.getModified()) {
+            this.cimDeleteInstanceDoc(key);
+            this.cimCreateInstanceDoc(diff.getInstance(key), key, diff.getFingerprints().get(key));
+        }
+        for (String key : diff.getAdded()) {
+            this.cimDeleteInstanceDoc(key);
+            this.cimCreateInstanceDoc(diff.getInstance(key), key, diff.getFingerprints().get(key));
+        }
+    }
+
+    /**
+     * Load all the instances of the provider on the host back into the message document.
+     * Records of any class are found by the index of SRMF_Instance.
+     * 
+     * @return Document or null, if nothing was stored.
+     */
+    public Document load() throws Exception {
+        StringBuilder source = new StringBuilder();
+        int count = 0;
+        boolean partial = false;
+        OrientConnection db = OrientDBConnectionPool.getInstance().acquire();
+        try {
+            if (!db.getMetadata().getSchema().existsClass(SimpleCIMObject.CLASS_INSTANCE)) {
+                return null;
+            }
+            List<ODocument> records = db.query(new OSQLSynchQuery<ODocument>(
+                    String.format("SELECT FROM %s WHERE %s = ? AND %s = ?", SimpleCIMObject.CLASS_INSTANCE,
+                                  SimpleCIMObject.FIELD_HOST, SimpleCIMObject.FIELD_OBJECT)),
+                    this.host, this.objectId);
+            for (ODocument record : records) {
+                String instance = record.field(SimpleCIMObject.FIELD_SOURCE);
+                if (instance != null) {
+                    source.append(instance);
+                    partial |= Boolean.TRUE.equals(record.field(SRMFMessage.PARTIAL));
+                    count++;
+                }
+            }
+        } finally {
+            db.close();
+        }
+
+        if (count == 0) {
+            return null;
+        }
+
+        return SRMFUtils.getXMLDocumentFromString(SRMFMessage.getEnvelopeStart(CIMInstanceCapture.OP_ENUMERATE_INSTANCES, partial)
+                                                  + source + SRMFMessage.ENVELOPE_END);
     }
 
     private void dumpNodeTree(Node node, int offset) {
@@ -216,12 +421,8 @@ public class SRMFOrientDBStorage implements SRMFStorage {
     
 
     @Override
-    public void storeMessage(SRMFMessage message) {
-        try {
-            new SimpleCIMObject().store(message.getDocument());
-        } catch (IOException ex) {
-            System.err.println("Error storing message: " + ex.getLocalizedMessage());
-        }
+    public void storeMessage(SRMFMessage message) throws IOException {
+        new SimpleCIMObject(message.getHostname(), message.getObjectId()).store(message.getDocument());
     }
     
     
@@ -249,9 +450,44 @@ public class SRMFOrientDBStorage implements SRMFStorage {
     }
 
 
+    /**
+     * The graph keeps no fingerprints of the snapshots: diff is taken from the local storage.
+     * 
+     * @param message
+     * @return 
+     */
     @Override
     public SRMFMessageDiff diffMessage(SRMFMessage message) {
         throw new UnsupportedOperationException("Not supported yet.");
     }
-    
+
+
+    /**
+     * Store the changes of the diff. Failure is thrown, so the diff is not
+     * committed and the same changes are stored again by the next snapshot.
+     *
+     * @param diff
+     * @throws IOException
+     */
+    @Override
+    public void storeDiff(SRMFMessageDiff diff) throws IOException {
+        new SimpleCIMObject(diff.getMessage().getHostname(), diff.getMessage().getObjectId()).store(diff);
+    }
+
+
+    /**
+     * Load the stored snapshot of the provider.
+     * Only instances, stored with their CIM-XML source, can be loaded.
+     * 
+     * @param hostname
+     * @param objectId
+     * @return Message or null, if there is no snapshot.
+     * @throws Exception 
+     */
+    @Override
+    public SRMFMessage loadMessage(String hostname, String objectId) throws Exception {
+        Document document = new SimpleCIMObject(hostname, objectId).load();
+
+        return document != null ? new SRMFMessage(hostname, objectId, null, null, document) : null;
+    }
 }
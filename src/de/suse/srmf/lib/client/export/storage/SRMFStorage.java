@@ -33,6 +33,7 @@ package de.suse.srmf.lib.client.export.storage;
 
 import de.suse.srmf.lib.client.export.SRMFMessage;
 import de.suse.srmf.lib.client.export.SRMFMessageDiff;
+import java.io.IOException;
 
 /**
  * Exporter.
@@ -43,6 +44,8 @@ public interface SRMFStorage {
     public static final int LOCAL_STORAGE = 0;
     public static final int REMOTE_STORAGE = 1;
     
-    public void storeMessage(SRMFMessage message);
+    public void storeMessage(SRMFMessage message) throws IOException;
     public SRMFMessageDiff diffMessage(SRMFMessage message);
+    public void storeDiff(SRMFMessageDiff diff) throws IOException;
+    public SRMFMessage loadMessage(String hostname, String objectId) throws Exception;
 }